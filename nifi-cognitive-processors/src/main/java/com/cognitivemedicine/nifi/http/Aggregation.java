@@ -0,0 +1,359 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.entity.ContentType;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import com.jayway.jsonpath.InvalidJsonException;
+
+/**
+ * The ways the content of several FlowFiles can be packed into the body of a
+ * single POST when not sending as FlowFile, and the response to it split
+ * back into a part per FlowFile.
+ * <p>
+ * The framing around each FlowFile is produced up front as bytes, so that the
+ * length of the body is known without reading any content.
+ */
+enum Aggregation {
+
+    /**
+     * A JSON array with the content of each FlowFile as an element; the
+     * response is expected to be a JSON array as well.
+     */
+    JSON_ARRAY("json-array") {
+        @Override
+        public String getContentType(final String boundary) {
+            return "application/json";
+        }
+
+        @Override
+        public byte[] getStart(final String boundary) {
+            return ascii("[");
+        }
+
+        @Override
+        public byte[] getPartStart(final int index, final String contentId, final String contentType, final String boundary) {
+            return ascii(index == 0 ? "" : ",");
+        }
+
+        @Override
+        public byte[] getEnd(final String boundary) {
+            return ascii("]");
+        }
+
+        @Override
+        public List<Part> split(final InputStream in, final Charset charset, final String contentType) throws IOException {
+            final Iterable<?> elements;
+            try {
+                elements = JsonPathExtractor.getElements(JsonPathExtractor.parse(in, charset.name()));
+            } catch (final InvalidJsonException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Response is not JSON", e);
+            }
+            if (elements == null) {
+                throw new IOException("Response is not a JSON array");
+            }
+
+            final List<Part> parts = new ArrayList<>();
+            for (final Object element : elements) {
+                final String text = JsonPathExtractor.toText(element);
+                parts.add(new Part(null, (text == null ? "null" : text).getBytes(charset), charset, element));
+            }
+            return parts;
+        }
+    },
+    /**
+     * Newline-delimited JSON: the content of each FlowFile on a line of its
+     * own, so each must hold a single JSON value without line breaks; the
+     * response is expected to hold a JSON value per line as well.
+     */
+    NDJSON("ndjson") {
+        @Override
+        public String getContentType(final String boundary) {
+            return "application/x-ndjson";
+        }
+
+        @Override
+        public byte[] getPartEnd(final String boundary) {
+            return ascii("\n");
+        }
+
+        @Override
+        public List<Part> split(final InputStream in, final Charset charset, final String contentType) throws IOException {
+            final List<Part> parts = new ArrayList<>();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    parts.add(new Part(null, line.getBytes(charset), charset, null));
+                }
+            }
+            return parts;
+        }
+    },
+    /**
+     * A multipart/mixed body with the content of each FlowFile as a part,
+     * identified by its Content-ID; the response is expected to be
+     * multipart as well.
+     */
+    MULTIPART_MIXED("multipart-mixed") {
+        @Override
+        public String getContentType(final String boundary) {
+            return "multipart/mixed; boundary=" + boundary;
+        }
+
+        @Override
+        public byte[] getPartStart(final int index, final String contentId, final String contentType, final String boundary) {
+            return ascii("--" + boundary + CRLF
+                    + "Content-Type: " + contentType + CRLF
+                    + "Content-ID: <" + contentId + ">" + CRLF
+                    + CRLF);
+        }
+
+        @Override
+        public byte[] getPartEnd(final String boundary) {
+            return ascii(CRLF);
+        }
+
+        @Override
+        public byte[] getEnd(final String boundary) {
+            return ascii("--" + boundary + "--" + CRLF);
+        }
+
+        @Override
+        public List<Part> split(final InputStream in, final Charset charset, final String contentType) throws IOException {
+            final String boundary = (contentType == null) ? null : ContentType.parse(contentType).getParameter("boundary");
+            if (boundary == null) {
+                throw new IOException("Response is not multipart: its Content-Type is " + contentType);
+            }
+
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            StreamUtils.copy(in, buffer);
+            final byte[] body = buffer.toByteArray();
+            final byte[] delimiter = ascii(CRLF + "--" + boundary);
+
+            // the first delimiter may start the body, without a line break before it
+            int position = indexOf(body, ascii("--" + boundary), 0);
+            if (position < 0) {
+                throw new IOException("Response holds no part delimited by " + boundary);
+            }
+            position += delimiter.length - 2;
+
+            final List<Part> parts = new ArrayList<>();
+            while (!startsWith(body, position, ascii("--"))) {
+                // the rest of the delimiter line, then the headers of the part up to an empty line
+                position = indexOf(body, ascii(CRLF), position);
+                if (position < 0) {
+                    throw new IOException("Response ends within a part delimiter");
+                }
+                position += 2;
+
+                String contentId = null;
+                while (!startsWith(body, position, ascii(CRLF))) {
+                    final int lineEnd = indexOf(body, ascii(CRLF), position);
+                    if (lineEnd < 0) {
+                        throw new IOException("Response ends within the headers of a part");
+                    }
+                    final String header = new String(body, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                    final int colon = header.indexOf(':');
+                    if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-ID")) {
+                        contentId = header.substring(colon + 1).trim();
+                        if (contentId.startsWith("<") && contentId.endsWith(">")) {
+                            contentId = contentId.substring(1, contentId.length() - 1);
+                        }
+                    }
+                    position = lineEnd + 2;
+                }
+                position += 2;
+
+                final int end = indexOf(body, delimiter, position);
+                if (end < 0) {
+                    throw new IOException("Response ends within a part");
+                }
+                final byte[] content = new byte[end - position];
+                System.arraycopy(body, position, content, 0, content.length);
+                parts.add(new Part(contentId, content, charset, null));
+                position = end + delimiter.length;
+            }
+            return parts;
+        }
+    };
+
+    private static final String CRLF = "\r\n";
+    private static final byte[] NOTHING = new byte[0];
+
+    private final String value;
+
+    private Aggregation(final String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value of the Aggregation property that selects this
+     * aggregation
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the aggregation selected by the given value of the Aggregation
+     * property, or null if FlowFiles are not to be aggregated
+     */
+    public static Aggregation forValue(final String value) {
+        for (final Aggregation aggregation : values()) {
+            if (aggregation.value.equals(value)) {
+                return aggregation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param boundary the boundary that delimits the parts of a multipart body
+     * @return the Content-Type of an aggregated body
+     */
+    public abstract String getContentType(String boundary);
+
+    /**
+     * @return the bytes that open an aggregated body
+     */
+    public byte[] getStart(final String boundary) {
+        return NOTHING;
+    }
+
+    /**
+     * @param index the position of the FlowFile in the body, from 0
+     * @param contentId the identifier of the FlowFile in a multipart body
+     * @param contentType the MIME type of the content of the FlowFile
+     * @return the bytes that go before the content of a FlowFile
+     */
+    public byte[] getPartStart(final int index, final String contentId, final String contentType, final String boundary) {
+        return NOTHING;
+    }
+
+    /**
+     * @return the bytes that go after the content of a FlowFile
+     */
+    public byte[] getPartEnd(final String boundary) {
+        return NOTHING;
+    }
+
+    /**
+     * @return the bytes that close an aggregated body
+     */
+    public byte[] getEnd(final String boundary) {
+        return NOTHING;
+    }
+
+    /**
+     * Splits the response to an aggregated body into its parts, in the order
+     * they come in.
+     *
+     * @param in the body of the response
+     * @param charset the charset of the response
+     * @param contentType the Content-Type of the response, if any
+     * @throws IOException if the response cannot be read or is not in the
+     * expected format
+     */
+    public abstract List<Part> split(InputStream in, Charset charset, String contentType) throws IOException;
+
+    private static byte[] ascii(final String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean startsWith(final byte[] data, final int position, final byte[] prefix) {
+        if (position + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[position + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(final byte[] data, final byte[] target, final int from) {
+        for (int i = from; i <= data.length - target.length; i++) {
+            if (startsWith(data, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A part of the response to an aggregated body: the result for one of
+     * the FlowFiles.
+     */
+    static class Part {
+
+        private final String contentId;
+        private final byte[] content;
+        private final Charset charset;
+        private Object document;
+
+        Part(final String contentId, final byte[] content, final Charset charset, final Object document) {
+            this.contentId = contentId;
+            this.content = content;
+            this.charset = charset;
+            this.document = document;
+        }
+
+        /**
+         * @return the Content-ID of a multipart part, or null
+         */
+        public String getContentId() {
+            return contentId;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @return the content of this part as text
+         */
+        public String getText() {
+            return new String(content, charset);
+        }
+
+        /**
+         * @return the content of this part parsed as JSON
+         * @throws InvalidJsonException if it is not JSON
+         */
+        public Object getDocument() throws InvalidJsonException {
+            if (document == null) {
+                document = JsonPathExtractor.parse(getText());
+            }
+            return document;
+        }
+    }
+}
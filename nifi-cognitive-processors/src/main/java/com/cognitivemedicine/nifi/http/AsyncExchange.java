@@ -0,0 +1,238 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.util.StopWatch;
+
+/**
+ * A batch of FlowFiles posted through the "async" HTTP Engine. The same
+ * exchange is reused for the DELETE that releases the hold placed by the
+ * destination, if any.
+ * <p>
+ * Completion callbacks run on the I/O reactor threads and only hand the
+ * exchange over to the completion queue; the FlowFiles themselves are only
+ * ever touched by the thread that owns the ProcessSession.
+ */
+class AsyncExchange {
+
+    private final String url;
+    private final List<FlowFile> flowFiles;
+    private final String transactionId;
+    private final long bytesToSend;
+    private final HttpClientContext httpContext = HttpClientContext.create();
+    private final StopWatch stopWatch = new StopWatch(false);
+
+    private volatile Future<HttpResponse> future;
+    private volatile HttpResponse response;
+    private volatile Exception failure;
+    private String holdUri;
+    private boolean posted;
+    private long uploadMillis = -1L;
+    private String uploadDataRate;
+
+    public AsyncExchange(final String url, final List<FlowFile> flowFiles, final String transactionId, final long bytesToSend) {
+        this.url = url;
+        this.flowFiles = flowFiles;
+        this.transactionId = transactionId;
+        this.bytesToSend = bytesToSend;
+    }
+
+    /**
+     * Submits the given request; once it completes, fails or is cancelled this
+     * exchange is added to the completion queue.
+     *
+     * @param permit the permit of the concurrency limiter to give back once
+     * the request is answered; may be null
+     */
+    public void execute(final AsyncTransport transport, final HttpUriRequest request, final ConcurrencyLimiter.Permit permit,
+            final BlockingQueue<AsyncExchange> completionQueue) {
+        this.response = null;
+        this.failure = null;
+        if (holdUri == null) {
+            posted = true;
+            stopWatch.start();
+        }
+
+        this.future = transport.execute(request, httpContext, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse result) {
+                if (permit != null) {
+                    permit.onResponse(result.getStatusLine().getStatusCode());
+                }
+                response = result;
+                done();
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                if (permit != null && e instanceof Http2Transport.NoStreamAvailableException) {
+                    // the request never reached the destination
+                    permit.release();
+                } else if (permit != null) {
+                    permit.onFailure(e);
+                }
+                failure = e;
+                done();
+            }
+
+            @Override
+            public void cancelled() {
+                if (permit != null) {
+                    permit.release();
+                }
+                failure = new CancellationException("Request to " + url + " was cancelled");
+                done();
+            }
+
+            private void done() {
+                if (holdUri == null) {
+                    stopWatch.stop();
+                }
+                completionQueue.add(AsyncExchange.this);
+            }
+        });
+    }
+
+    public void cancel() {
+        final Future<HttpResponse> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * @return the URL the FlowFiles were posted to: that of the hedge if it
+     * was answered first
+     */
+    public String getUrl() {
+        return isHedgeWon() ? (String) httpContext.getAttribute(HedgedTransport.HEDGE_URL_ATTRIBUTE) : url;
+    }
+
+    /**
+     * @return the URL the POST was sent to first, whether or not a hedge was
+     * answered before it
+     */
+    public String getPrimaryUrl() {
+        return url;
+    }
+
+    /**
+     * @return true if a duplicate of the POST was sent to another endpoint
+     */
+    public boolean isHedged() {
+        return httpContext.getAttribute(HedgedTransport.HEDGE_URL_ATTRIBUTE) != null;
+    }
+
+    /**
+     * @return true if the duplicate of the POST was answered first
+     */
+    public boolean isHedgeWon() {
+        return Boolean.TRUE.equals(httpContext.getAttribute(HedgedTransport.HEDGE_WON_ATTRIBUTE));
+    }
+
+    public List<FlowFile> getFlowFiles() {
+        return flowFiles;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getFlowFileDescription() {
+        return flowFiles.size() <= 10 ? flowFiles.toString() : flowFiles.size() + " FlowFiles";
+    }
+
+    /**
+     * @return the response of the last request, or null if it failed
+     */
+    public HttpResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the reason why the last request did not complete, or null if
+     * it did
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the hold URI to DELETE, or null if the POST has not been
+     * answered with a hold yet
+     */
+    public String getHoldUri() {
+        return holdUri;
+    }
+
+    public void setHoldUri(final String holdUri) {
+        this.holdUri = holdUri;
+    }
+
+    /**
+     * @return true if the FlowFiles were posted through this exchange, rather
+     * than on an earlier attempt that left only their hold to release
+     */
+    public boolean wasPosted() {
+        return posted;
+    }
+
+    /**
+     * Records that the FlowFiles were posted through the blocking client,
+     * leaving only their hold to be released through this exchange.
+     */
+    public void setPosted(final long uploadMillis, final String uploadDataRate) {
+        this.posted = true;
+        this.uploadMillis = uploadMillis;
+        this.uploadDataRate = uploadDataRate;
+    }
+
+    public String getRemoteDn() {
+        return AsyncHttpClients.getRemoteDn(httpContext);
+    }
+
+    public long getBytesToSend() {
+        return bytesToSend;
+    }
+
+    /**
+     * @return how long the hedge took to be answered, if it was answered
+     * first; otherwise -1
+     */
+    public long getHedgeMillis() {
+        final Object millis = httpContext.getAttribute(HedgedTransport.HEDGE_MILLIS_ATTRIBUTE);
+        return (millis == null) ? -1L : (Long) millis;
+    }
+
+    public long getUploadMillis() {
+        return uploadMillis >= 0 ? uploadMillis : stopWatch.getDuration(TimeUnit.MILLISECONDS);
+    }
+
+    public String getUploadDataRate() {
+        return uploadDataRate != null ? uploadDataRate : stopWatch.calculateDataRate(bytesToSend);
+    }
+}
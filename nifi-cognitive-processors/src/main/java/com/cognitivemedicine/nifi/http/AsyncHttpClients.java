@@ -0,0 +1,213 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Builds the non-blocking HTTP/1.1 clients used by the "async" HTTP Engine. A
+ * single client multiplexes every in-flight request of every task over one
+ * I/O reactor, so the number of outstanding requests is no longer bound to the
+ * number of threads.
+ */
+final class AsyncHttpClients {
+
+    /**
+     * Name of the {@link HttpContext} attribute holding the DN of the remote
+     * peer, for HTTPS connections.
+     */
+    static final String REMOTE_DN_ATTRIBUTE = "com.cognitivemedicine.nifi.http.remote-dn";
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private AsyncHttpClients() {
+    }
+
+    /**
+     * Creates and starts a new asynchronous client.
+     *
+     * @param tlsSettings the TLS settings to use for https URLs; may be null
+     * @param maxConnections the max number of pooled connections
+     * @param userAgent the User-Agent to report; may be null
+     * @param credentialsProvider the credentials to use; may be null
+     * @param maxResponseSize the max number of bytes of a response body; a
+     * larger response fails the request as soon as its size is known
+     * @param responseBuffers creates the buffers that hold response bodies
+     * @return a started client
+     * @throws IOException if the I/O reactor cannot be created
+     */
+    static AsyncTransport create(final TlsSettings tlsSettings, final int maxConnections, final String userAgent,
+            final CredentialsProvider credentialsProvider, final long maxResponseSize, final ResponseBuffer.Factory responseBuffers) throws IOException {
+        final RegistryBuilder<SchemeIOSessionStrategy> registryBuilder = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE);
+        if (tlsSettings != null) {
+            registryBuilder.register("https", tlsSettings.createIOSessionStrategy());
+        }
+        final Registry<SchemeIOSessionStrategy> registry = registryBuilder.build();
+
+        final PoolingNHttpClientConnectionManager conMan = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT), registry);
+        conMan.setMaxTotal(maxConnections);
+        conMan.setDefaultMaxPerRoute(maxConnections);
+
+        final HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom();
+        clientBuilder.setConnectionManager(conMan);
+        clientBuilder.setUserAgent(userAgent);
+        clientBuilder.addInterceptorFirst(new HttpResponseInterceptor() {
+            @Override
+            public void process(final HttpResponse response, final HttpContext httpContext) throws HttpException, IOException {
+                final HttpConnection conn = HttpCoreContext.adapt(httpContext).getConnection();
+                if (!(conn instanceof ManagedNHttpClientConnection) || !conn.isOpen()) {
+                    return;
+                }
+
+                final SSLSession sslSession = ((ManagedNHttpClientConnection) conn).getSSLSession();
+                if (sslSession != null) {
+                    httpContext.setAttribute(REMOTE_DN_ATTRIBUTE, TlsSettings.getPeerDn(sslSession));
+                }
+            }
+        });
+        if (credentialsProvider != null) {
+            clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+        }
+
+        final CloseableHttpAsyncClient client = clientBuilder.build();
+        client.start();
+        return new AsyncTransport() {
+            @Override
+            public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context, final FutureCallback<HttpResponse> callback) {
+                return client.execute(HttpAsyncMethods.create(request), new ResponseConsumer(maxResponseSize, responseBuffers), context, callback);
+            }
+
+            @Override
+            public void close() throws IOException {
+                client.close();
+            }
+        };
+    }
+
+    /**
+     * @return the DN of the remote peer recorded in the given context, or
+     * "none" if the exchange was not secured
+     */
+    static String getRemoteDn(final HttpContext httpContext) {
+        final Object dn = httpContext.getAttribute(REMOTE_DN_ATTRIBUTE);
+        return dn == null ? "none" : dn.toString();
+    }
+
+    /**
+     * Buffers a response like the default consumer of the client does, but
+     * spills large bodies to disk and gives up as soon as the body exceeds the
+     * max response size.
+     */
+    private static class ResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+        private final long maxResponseSize;
+        private final ResponseBuffer.Factory responseBuffers;
+        private volatile HttpResponse response;
+        private volatile HttpEntity entity;
+        private volatile ResponseBuffer buffer;
+        private ByteBuffer chunk;
+
+        public ResponseConsumer(final long maxResponseSize, final ResponseBuffer.Factory responseBuffers) {
+            this.maxResponseSize = maxResponseSize;
+            this.responseBuffers = responseBuffers;
+        }
+
+        @Override
+        protected void onResponseReceived(final HttpResponse response) throws HttpException, IOException {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) throws IOException {
+            final long length = entity.getContentLength();
+            MaxSizeEntity.checkLength(length, maxResponseSize);
+
+            this.entity = entity;
+            buffer = responseBuffers.newBuffer();
+        }
+
+        @Override
+        protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+            if (chunk == null) {
+                chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            }
+            while (decoder.read(chunk) > 0) {
+                chunk.flip();
+                buffer.write(chunk);
+                chunk.clear();
+                MaxSizeEntity.checkLength(buffer.length(), maxResponseSize);
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult(final HttpContext context) throws Exception {
+            if (buffer != null) {
+                final AbstractHttpEntity body = buffer.toEntity();
+                buffer = null;
+                body.setContentType(entity.getContentType());
+                body.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(body);
+            }
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            if (buffer != null) {
+                // the request failed or was cancelled before its response was built
+                buffer.discard();
+            }
+            response = null;
+            entity = null;
+            buffer = null;
+            chunk = null;
+        }
+    }
+}
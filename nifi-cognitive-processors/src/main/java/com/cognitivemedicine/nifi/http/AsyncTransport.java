@@ -0,0 +1,47 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A non-blocking client used by the asynchronous HTTP Engines. Requests
+ * must carry a repeatable entity, as their bodies are produced before they
+ * are submitted.
+ */
+interface AsyncTransport extends Closeable {
+
+    /**
+     * Submits the given request; the callback is invoked from an I/O thread
+     * once it completes, fails or is cancelled.
+     */
+    Future<HttpResponse> execute(HttpUriRequest request, HttpContext context, FutureCallback<HttpResponse> callback);
+
+    /**
+     * Creates the transport of a {@link Config} on first use.
+     */
+    interface Factory {
+
+        AsyncTransport create(TlsSettings tlsSettings) throws IOException;
+    }
+}
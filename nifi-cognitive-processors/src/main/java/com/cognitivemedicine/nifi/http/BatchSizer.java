@@ -0,0 +1,96 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+/**
+ * Adaptive limit on the size of the batches sent to a single destination,
+ * tuned towards a target request latency.
+ * <p>
+ * Every POST the destination takes gives the throughput it achieved, and so
+ * the batch size that would have taken the target latency at that rate. The
+ * limit moves halfway towards that size; it only grows after batches that
+ * actually filled it, as the latency of a batch cut short by an empty queue
+ * says little about a bigger one, and then at most doubles at a time. It
+ * starts at {@link #MIN_LIMIT}, like TCP slow start, and never leaves the
+ * range from there to the configured Max Batch Size.
+ */
+class BatchSizer {
+
+    static final long MIN_LIMIT = 64 * 1024;
+    private static final double SMOOTHING = 0.5;
+    private static final double MAX_GROWTH = 2.0;
+    private static final double FILLED = 0.9;
+
+    private final long maxLimit;
+    private final long targetMillis;
+    private double limit;
+    private long reportedLimitKilobytes;
+
+    public BatchSizer(final long maxLimit, final long targetMillis) {
+        this.maxLimit = maxLimit;
+        this.targetMillis = targetMillis;
+        this.limit = Math.min(MIN_LIMIT, maxLimit);
+    }
+
+    /**
+     * @return the most bytes of content to put in the next batch
+     */
+    public synchronized long getLimit() {
+        return (long) limit;
+    }
+
+    /**
+     * Records that the destination took a batch of the given size in the given
+     * time.
+     */
+    public synchronized void record(final long bytes, final long millis) {
+        if (bytes <= 0) {
+            return;
+        }
+
+        final double desired = (double) bytes * targetMillis / Math.max(millis, 1L);
+        if (desired < limit) {
+            limit += SMOOTHING * (desired - limit);
+        } else if (bytes >= FILLED * limit) {
+            limit = Math.min(limit + SMOOTHING * (desired - limit), limit * MAX_GROWTH);
+        }
+        limit = Math.max(Math.min(limit, maxLimit), Math.min(MIN_LIMIT, maxLimit));
+    }
+
+    /**
+     * @return the change in the limit, in kilobytes, since the last call, so
+     * that a counter can follow it
+     */
+    public synchronized long getLimitKilobytesChange() {
+        final long change = (long) limit / 1024 - reportedLimitKilobytes;
+        reportedLimitKilobytes += change;
+        return change;
+    }
+
+    /**
+     * @return the bucket of the batch size histogram the given size falls in,
+     * such as "up to 64 KB"; the buckets grow fourfold from 1 KB to 64 MB
+     */
+    public static String getHistogramBucket(final long bytes) {
+        long bound = 1024L;
+        for (int i = 0; i < 9; i++, bound *= 4) {
+            if (bytes <= bound) {
+                return "up to " + ((bound < 1024L * 1024L) ? (bound / 1024L) + " KB" : (bound / 1024L / 1024L) + " MB");
+            }
+        }
+        return "over 64 MB";
+    }
+}
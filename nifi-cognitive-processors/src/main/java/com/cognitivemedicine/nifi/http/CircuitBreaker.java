@@ -0,0 +1,127 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+/**
+ * Circuit breaker of a single destination. Once the given number of requests
+ * in a row have failed, the circuit opens and no request is let through for
+ * the open duration; after that a few probe requests are let through, and the
+ * circuit closes again once they all succeed, or opens again as soon as one
+ * of them fails.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final int probeRequests;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long stateChanged = System.currentTimeMillis();
+    private int probesGranted;
+    private int probesSucceeded;
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens
+     * the circuit
+     * @param openMillis how long the circuit stays open before probing the
+     * destination again
+     * @param probeRequests the number of probe requests that must succeed for
+     * the circuit to close
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis, final int probeRequests) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.probeRequests = probeRequests;
+    }
+
+    /**
+     * @return true if a request may be sent to the destination now; in the
+     * half-open state, this hands out one of the probe requests
+     */
+    public synchronized boolean allowRequest() {
+        final long now = System.currentTimeMillis();
+        if (state == State.OPEN) {
+            if (now - stateChanged < openMillis) {
+                return false;
+            }
+            changeState(State.HALF_OPEN, now);
+        } else if (state == State.HALF_OPEN && now - stateChanged >= openMillis) {
+            // the probes never reported back, e.g. because their FlowFiles were
+            // not sent after all; hand out new ones
+            changeState(State.HALF_OPEN, now);
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (probesGranted >= probeRequests) {
+                return false;
+            }
+            probesGranted++;
+        }
+        return true;
+    }
+
+    /**
+     * Records a request that the destination handled.
+     *
+     * @return true if this closed the circuit
+     */
+    public synchronized boolean onSuccess() {
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN && ++probesSucceeded >= probeRequests) {
+            changeState(State.CLOSED, System.currentTimeMillis());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a request that failed because of the destination.
+     *
+     * @return true if this opened the circuit
+     */
+    public synchronized boolean onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            changeState(State.OPEN, System.currentTimeMillis());
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void changeState(final State newState, final long now) {
+        state = newState;
+        stateChanged = now;
+        probesGranted = 0;
+        probesSucceeded = 0;
+        if (newState == State.CLOSED) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker[state=" + state + ", consecutiveFailures=" + consecutiveFailures + "]";
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.nifi.stream.io.GZIPOutputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * The codecs the body of a POST can be compressed with. A codec is only used
+ * if the destination lists its name in the Accept-Encoding header of its
+ * answer to the HEAD request; all of them produce their standard framed
+ * format, so that the destination can decode a stream of any length.
+ */
+enum CompressionCodec {
+
+    GZIP("gzip") {
+        @Override
+        public OutputStream compress(final OutputStream out, final int level) throws IOException {
+            return new GZIPOutputStream(out, level);
+        }
+
+        @Override
+        public byte[] compressBlock(final byte[] block, final int length, final int level) throws IOException {
+            // a gzip stream may hold any number of members, one after the other
+            final ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+            try (final OutputStream out = new GZIPOutputStream(member, level)) {
+                out.write(block, 0, length);
+            }
+            return member.toByteArray();
+        }
+    },
+    ZSTD("zstd") {
+        @Override
+        public OutputStream compress(final OutputStream out, final int level) throws IOException {
+            // pooled buffers spare the allocation of two 128 KB buffers for every small POST
+            return new ZstdOutputStream(out, RecyclingBufferPool.INSTANCE).setLevel(level);
+        }
+
+        @Override
+        public byte[] compressBlock(final byte[] block, final int length, final int level) throws IOException {
+            // likewise a zstd stream may hold any number of frames
+            return Zstd.compress((length == block.length) ? block : Arrays.copyOf(block, length), level);
+        }
+    },
+    /**
+     * LZ4 has a single speed; the Compression Level only switches it on.
+     */
+    LZ4("lz4") {
+        @Override
+        public OutputStream compress(final OutputStream out, final int level) throws IOException {
+            return new LZ4FrameOutputStream(out);
+        }
+    },
+    /**
+     * Snappy has a single speed; the Compression Level only switches it on.
+     */
+    SNAPPY("snappy") {
+        @Override
+        public OutputStream compress(final OutputStream out, final int level) throws IOException {
+            return new SnappyFramedOutputStream(out);
+        }
+    };
+
+    private final String encoding;
+
+    private CompressionCodec(final String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the name of this codec, both in the Accept-Encoding header of a
+     * destination and in the value of the Compression Codec property
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Wraps the given stream so that whatever is written to it is compressed;
+     * closing the returned stream finishes the compressed stream and closes
+     * the given one.
+     *
+     * @param level the Compression Level, from 1 to 9
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Compresses the given block on its own, into a unit of the format that
+     * can be concatenated with others into a valid stream: a gzip member or a
+     * zstd frame. Only supported if {@link #isBlockCompressionSupported()}.
+     *
+     * @param length how many bytes of the block to compress
+     * @param level the Compression Level, from 1 to 9
+     */
+    public byte[] compressBlock(final byte[] block, final int length, final int level) throws IOException {
+        throw new UnsupportedOperationException(encoding + " does not compress blocks on their own");
+    }
+
+    /**
+     * @return true if this codec can compress independent blocks through
+     * {@link #compressBlock(byte[], int, int)}, and so in parallel
+     */
+    public boolean isBlockCompressionSupported() {
+        return this == GZIP || this == ZSTD;
+    }
+
+    /**
+     * @return the codec with the given name, or null if there is none
+     */
+    public static CompressionCodec forEncoding(final String encoding) {
+        for (final CompressionCodec codec : values()) {
+            if (codec.encoding.equalsIgnoreCase(encoding)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the configured codec if the destination accepts it, otherwise
+     * GZIP if it accepts that, otherwise null
+     */
+    public static CompressionCodec negotiate(final CompressionCodec preferred, final DestinationAccepts accepts) {
+        if (accepts.isEncodingAccepted(preferred.encoding)) {
+            return preferred;
+        }
+        return accepts.isGzipAccepted() ? GZIP : null;
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides, batch by batch, whether the content sent to a single destination
+ * is worth compressing and how hard, from the ratio achieved so far.
+ * <p>
+ * Batches that are tiny or made of content that is compressed already, as
+ * told by its MIME type, are sent as they are. Otherwise, until the
+ * destination has a history, a prefix of the batch is trial-compressed
+ * first. Content that compresses by less than {@link #MIN_RATIO} is sent
+ * uncompressed, with a new trial every {@link #RETRIAL_INTERVAL} batches in
+ * case it changes; content that compresses by less than
+ * {@link #LOW_RATIO} is compressed at the fastest level only, since higher
+ * levels gain little on it.
+ */
+class CompressionPolicy {
+
+    /**
+     * Below this size the framing of the codecs costs about as much as they
+     * save, unless a dictionary does the work.
+     */
+    static final int MIN_SIZE = 512;
+    private static final double MIN_RATIO = 1.1;
+    private static final double LOW_RATIO = 2.0;
+    private static final int RETRIAL_INTERVAL = 20;
+    private static final double SMOOTHING = 0.2;
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/zstd", "application/x-bzip2",
+            "application/x-xz", "application/x-lz4", "application/x-snappy-framed", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/java-archive", "image/jpeg", "image/png", "image/gif", "image/webp",
+            "audio/mpeg", "audio/ogg", "video/mp4", "video/mpeg", "video/webm"));
+
+    /**
+     * What to do with a batch.
+     */
+    enum Decision {
+        COMPRESS, SKIP, TRIAL
+    }
+
+    private double ratio;
+    private int batchesSinceTrial;
+    private long cpuNanos;
+    private long reportedRatioPercent;
+    private long reportedCpuMillis;
+
+    /**
+     * @return true if the given MIME type denotes content that is compressed
+     * already
+     */
+    public static boolean isCompressedType(final String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        final int paramIndex = mimeType.indexOf(';');
+        final String type = ((paramIndex < 0) ? mimeType : mimeType.substring(0, paramIndex)).trim().toLowerCase();
+        return COMPRESSED_TYPES.contains(type);
+    }
+
+    /**
+     * @param batchBytes the size of the content of the batch
+     * @param compressedContent true if all of the content of the batch is
+     * compressed already
+     * @param dictionary true if the batch would be compressed with a
+     * dictionary
+     */
+    public synchronized Decision decide(final long batchBytes, final boolean compressedContent, final boolean dictionary) {
+        if (compressedContent || (batchBytes < MIN_SIZE && !dictionary)) {
+            return Decision.SKIP;
+        }
+        if (ratio == 0) {
+            return Decision.TRIAL;
+        }
+        if (ratio < MIN_RATIO) {
+            if (++batchesSinceTrial >= RETRIAL_INTERVAL) {
+                batchesSinceTrial = 0;
+                return Decision.TRIAL;
+            }
+            return Decision.SKIP;
+        }
+        return Decision.COMPRESS;
+    }
+
+    /**
+     * Records the ratio a trial achieved.
+     *
+     * @return true if the batch is to be compressed
+     */
+    public synchronized boolean onTrial(final double trialRatio) {
+        if (ratio == 0 || trialRatio < MIN_RATIO) {
+            // a trial that says the content changed overrides the history
+            ratio = trialRatio;
+        }
+        return trialRatio >= MIN_RATIO;
+    }
+
+    /**
+     * @return the level to compress a batch at
+     */
+    public synchronized int getLevel(final int configuredLevel) {
+        return (ratio < LOW_RATIO) ? Math.min(configuredLevel, 1) : configuredLevel;
+    }
+
+    /**
+     * Records what compressing a batch achieved.
+     */
+    public synchronized void record(final long uncompressedBytes, final long compressedBytes, final long cpuNanos) {
+        if (uncompressedBytes > 0 && compressedBytes > 0) {
+            final double achieved = (double) uncompressedBytes / compressedBytes;
+            ratio = (ratio == 0) ? achieved : ratio + SMOOTHING * (achieved - ratio);
+        }
+        this.cpuNanos += cpuNanos;
+    }
+
+    /**
+     * @return the smoothed ratio achieved, or 0 if nothing has been
+     * compressed yet
+     */
+    public synchronized double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @return the change in the ratio achieved, in percent, since the last
+     * call, so that a counter can follow it
+     */
+    public synchronized long getRatioPercentChange() {
+        final long change = Math.round(ratio * 100) - reportedRatioPercent;
+        reportedRatioPercent += change;
+        return change;
+    }
+
+    /**
+     * @return the CPU time spent compressing since the last call
+     */
+    public synchronized long getCpuMillisChange() {
+        final long change = cpuNanos / 1000000L - reportedCpuMillis;
+        reportedCpuMillis += change;
+        return change;
+    }
+}
@@ -0,0 +1,193 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Adaptive limit on the number of requests outstanding against a single
+ * destination, using additive increase / multiplicative decrease (AIMD).
+ * <p>
+ * The limit backs off by {@link #BACKOFF_RATIO} whenever a request is dropped:
+ * it fails, is answered with 503 or 429, or takes more than
+ * {@link #LATENCY_TOLERANCE} times the baseline latency of the destination.
+ * It grows back by one for every other response, as long as the destination
+ * is actually kept busy, up to the given max. The baseline is the lowest
+ * latency seen, drifting slowly towards the latest samples so it follows a
+ * destination that became permanently slower.
+ */
+class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int BASELINE_DRIFT = 100;
+    private static final double SMOOTHING = 0.1;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private double baselineNanos = -1;
+    private double smoothedNanos = -1;
+    private int reportedLimit;
+    private long reportedLatencyMillis;
+
+    public ConcurrencyLimiter(final int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * @return a permit for one more request, or null if the limit has been
+     * reached
+     */
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= getLimit()) {
+            return null;
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    /**
+     * Waits for a permit for one more request.
+     *
+     * @return the permit, or null if none became available in time
+     */
+    public synchronized Permit acquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight >= getLimit()) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            wait(remainingMillis);
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    /**
+     * @return the number of requests currently allowed to be outstanding
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the smoothed latency of the recent responses, in milliseconds
+     */
+    public synchronized long getLatencyMillis() {
+        return smoothedNanos < 0 ? 0L : TimeUnit.NANOSECONDS.toMillis((long) smoothedNanos);
+    }
+
+    /**
+     * @return how much the limit changed since the last call; adding it to a
+     * counter keeps that counter equal to the current limit
+     */
+    public synchronized int getLimitChange() {
+        final int change = getLimit() - reportedLimit;
+        reportedLimit += change;
+        return change;
+    }
+
+    /**
+     * @return how much the latency changed since the last call; adding it to
+     * a counter keeps that counter equal to the current latency
+     */
+    public synchronized long getLatencyMillisChange() {
+        final long change = getLatencyMillis() - reportedLatencyMillis;
+        reportedLatencyMillis += change;
+        return change;
+    }
+
+    private synchronized void release(final long latencyNanos, final boolean dropped) {
+        final boolean busy = inFlight * 2 >= limit;
+        inFlight--;
+
+        boolean congested = dropped;
+        if (!dropped && latencyNanos >= 0) {
+            if (baselineNanos < 0 || latencyNanos < baselineNanos) {
+                baselineNanos = latencyNanos;
+            } else {
+                baselineNanos += (latencyNanos - baselineNanos) / BASELINE_DRIFT;
+            }
+            smoothedNanos = (smoothedNanos < 0) ? latencyNanos : smoothedNanos + (latencyNanos - smoothedNanos) * SMOOTHING;
+            congested = latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+        }
+
+        if (congested) {
+            limit = Math.max(1.0, limit * BACKOFF_RATIO);
+        } else if (latencyNanos >= 0 && busy) {
+            limit = Math.min(maxLimit, limit + 1.0);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimiter[limit=" + getLimit() + ", max=" + maxLimit + ", inFlight=" + inFlight + ", latency=" + getLatencyMillis() + " millis]";
+    }
+
+    /**
+     * Permission to send one request; it is given back, along with how the
+     * request went, through exactly one of its methods.
+     */
+    class Permit {
+
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Gives back the permit once the status of the response is known.
+         */
+        public void onResponse(final int statusCode) {
+            if (released.compareAndSet(false, true)) {
+                final boolean dropped = statusCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE || statusCode == TOO_MANY_REQUESTS;
+                ConcurrencyLimiter.this.release(System.nanoTime() - startNanos, dropped);
+            }
+        }
+
+        /**
+         * Gives back the permit of a request that failed; cancellations are
+         * not held against the destination.
+         */
+        public void onFailure(final Exception e) {
+            if (e instanceof CancellationException) {
+                release();
+            } else if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(-1L, true);
+            }
+        }
+
+        /**
+         * Gives back the permit of a request that was not sent.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(-1L, false);
+            }
+        }
+    }
+}
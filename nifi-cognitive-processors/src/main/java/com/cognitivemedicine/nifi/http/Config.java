@@ -0,0 +1,403 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Per base URL state shared by every task of a processor: the blocking
+ * connection pool, the lazily created asynchronous transport, concurrency
+ * limiter, rate limiter, circuit breaker, compression policy and batch sizer,
+ * and the negotiated {@link DestinationAccepts}, along with when it was last
+ * used and, for the endpoints of a load balanced URL, how healthy and fast it
+ * is.
+ * <p>
+ * If the processor uses an {@link HttpConnectionPoolService}, the blocking
+ * pool, the TLS settings and the DestinationAccepts come from the service and
+ * are shared with every other processor using it; they are left alone when
+ * this Config is shut down.
+ */
+class Config {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final AtomicReference<DestinationAccepts> destinationAccepts;
+    private final HttpClientConnectionManager conMan;
+    private final TlsSettings tlsSettings;
+    private final boolean sharedConnectionManager;
+    private AsyncTransport asyncTransport;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private CircuitBreaker circuitBreaker;
+    private CompressionPolicy compressionPolicy;
+    private BatchSizer batchSizer;
+    private volatile RateLimiter rateLimiter;
+    private final AtomicInteger outstandingRequests = new AtomicInteger();
+    private final AtomicBoolean negotiating = new AtomicBoolean();
+    private volatile long nextNegotiation;
+    private final Set<Long> sharedDictionaries = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile long lastUsed;
+    private double latencyEwma = -1.0;
+    private int consecutiveFailures;
+    private volatile long ejectedUntil;
+
+    public Config(final HttpClientConnectionManager conMan, final TlsSettings tlsSettings) {
+        this.conMan = conMan;
+        this.tlsSettings = tlsSettings;
+        this.sharedConnectionManager = false;
+        this.destinationAccepts = new AtomicReference<>();
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public Config(final HttpConnectionPoolService poolService, final String baseUrl) {
+        this.conMan = poolService.getConnectionManager();
+        this.tlsSettings = poolService.getSSLContext() == null ? null
+                : new TlsSettings(poolService.getSSLContext(), poolService.getTlsProtocols(), poolService.getTlsCipherSuites());
+        this.sharedConnectionManager = true;
+        this.destinationAccepts = poolService.getDestinationAccepts(baseUrl);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that this base URL is being used right now.
+     */
+    public void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return true if a connection of the blocking pool is leased, or a
+     * request sent over the asynchronous transport has not completed yet
+     */
+    public boolean isInUse() {
+        if (outstandingRequests.get() > 0) {
+            return true;
+        }
+        return !sharedConnectionManager && (conMan instanceof ConnPoolControl) && ((ConnPoolControl<?>) conMan).getTotalStats().getLeased() > 0;
+    }
+
+    /**
+     * Closes the pooled connections that have expired or have not been used
+     * for the given time.
+     */
+    public void closeIdleConnections(final long idleMillis) {
+        if (sharedConnectionManager) {
+            // the pool service takes care of its own connections
+            return;
+        }
+        conMan.closeExpiredConnections();
+        conMan.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a request to this base URL is being sent over the
+     * blocking pool; it is outstanding until {@link #requestCompleted()}.
+     */
+    public void requestStarted() {
+        outstandingRequests.incrementAndGet();
+    }
+
+    public void requestCompleted() {
+        outstandingRequests.decrementAndGet();
+    }
+
+    /**
+     * @return the number of requests sent to this base URL that have not
+     * completed yet, by every task and engine
+     */
+    public int getOutstandingRequests() {
+        return outstandingRequests.get();
+    }
+
+    /**
+     * Folds the latency of a request this base URL handled into its
+     * exponentially weighted moving average.
+     */
+    public synchronized void recordLatency(final long millis) {
+        latencyEwma = (latencyEwma < 0) ? millis : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * latencyEwma;
+    }
+
+    /**
+     * @return the moving average of the latency of this base URL in
+     * milliseconds, or -1 if it has not handled a request yet
+     */
+    public synchronized double getLatencyEwma() {
+        return latencyEwma;
+    }
+
+    /**
+     * Records whether a request to this base URL failed, ejecting it from its
+     * load balanced URL for the given time once the given number of requests
+     * in a row have failed. After that time it is tried again, and ejected
+     * again on its first failure unless a request succeeds in between.
+     *
+     * @return true if this ejected it
+     */
+    public synchronized boolean recordHealth(final boolean failed, final int ejectionThreshold, final long ejectionMillis) {
+        if (!failed) {
+            consecutiveFailures = 0;
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        if (++consecutiveFailures >= ejectionThreshold && now >= ejectedUntil) {
+            ejectedUntil = now + ejectionMillis;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this base URL has been ejected from its load balanced
+     * URL for the time being
+     */
+    public boolean isEjected() {
+        return System.currentTimeMillis() < ejectedUntil;
+    }
+
+    public DestinationAccepts getDestinationAccepts() {
+        return this.destinationAccepts.get();
+    }
+
+    public void setDestinationAccepts(final DestinationAccepts destinationAccepts) {
+        this.destinationAccepts.set(destinationAccepts);
+    }
+
+    /**
+     * Claims the negotiation of the capabilities of this base URL, if they
+     * have not been negotiated yet or are older than the given TTL, and no
+     * other negotiation is under way or has failed recently.
+     *
+     * @return true if the caller is to negotiate them and hand the result to
+     * {@link #negotiated(DestinationAccepts, long)}
+     */
+    public boolean claimNegotiation(final long ttlMillis) {
+        final long now = System.currentTimeMillis();
+        final DestinationAccepts accepts = getDestinationAccepts();
+        if ((accepts != null && now < accepts.getNegotiatedAt() + ttlMillis) || now < nextNegotiation) {
+            return false;
+        }
+        return negotiating.compareAndSet(false, true);
+    }
+
+    /**
+     * Completes a negotiation claimed through {@link #claimNegotiation(long)}.
+     * Capabilities that were negotiated before are only replaced by ones the
+     * destination could actually tell.
+     *
+     * @param accepts the negotiated capabilities, or null if the negotiation
+     * failed
+     * @param retryMillis how long to wait before negotiating again if it
+     * failed
+     */
+    public void negotiated(final DestinationAccepts accepts, final long retryMillis) {
+        if (accepts == null || (accepts.isUnavailable() && getDestinationAccepts() != null)) {
+            nextNegotiation = System.currentTimeMillis() + retryMillis;
+        } else {
+            setDestinationAccepts(accepts);
+        }
+        negotiating.set(false);
+    }
+
+    /**
+     * @return true if the destination holds the compression dictionary with
+     * the given ID, because it said so or because it was sent to it
+     */
+    public boolean isDictionaryShared(final long dictionaryId) {
+        if (sharedDictionaries.contains(dictionaryId)) {
+            return true;
+        }
+        final DestinationAccepts accepts = getDestinationAccepts();
+        return accepts != null && accepts.isDictionaryHeld(dictionaryId);
+    }
+
+    /**
+     * Records that the compression dictionary with the given ID was sent to
+     * the destination.
+     */
+    public void dictionaryShared(final long dictionaryId) {
+        sharedDictionaries.add(dictionaryId);
+    }
+
+    public HttpClientConnectionManager getConnectionManager() {
+        return conMan;
+    }
+
+    /**
+     * @return true if the connection manager belongs to an
+     * HttpConnectionPoolService rather than to this Config
+     */
+    public boolean isConnectionManagerShared() {
+        return sharedConnectionManager;
+    }
+
+    /**
+     * @return the TLS settings used to reach this base URL, or null if it is
+     * reached over plain HTTP
+     */
+    public TlsSettings getTlsSettings() {
+        return tlsSettings;
+    }
+
+    /**
+     * Returns the asynchronous transport used to reach this base URL, creating
+     * it through the given factory on first use.
+     */
+    public synchronized AsyncTransport getAsyncTransport(final AsyncTransport.Factory factory) throws IOException {
+        if (asyncTransport == null) {
+            asyncTransport = new CountingTransport(factory.create(tlsSettings));
+        }
+        return asyncTransport;
+    }
+
+    /**
+     * Returns the adaptive limit on the requests outstanding against this base
+     * URL, creating it on first use.
+     *
+     * @param maxLimit the most requests the limiter ever lets through at once
+     */
+    public synchronized ConcurrencyLimiter getConcurrencyLimiter(final int maxLimit) {
+        if (concurrencyLimiter == null) {
+            concurrencyLimiter = new ConcurrencyLimiter(maxLimit);
+        }
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Returns the circuit breaker of this base URL, creating it with the given
+     * settings on first use.
+     */
+    public synchronized CircuitBreaker getCircuitBreaker(final int failureThreshold, final long openMillis, final int probeRequests) {
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(failureThreshold, openMillis, probeRequests);
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the adaptive compression policy of this base URL, creating it on
+     * first use.
+     */
+    public synchronized CompressionPolicy getCompressionPolicy() {
+        if (compressionPolicy == null) {
+            compressionPolicy = new CompressionPolicy();
+        }
+        return compressionPolicy;
+    }
+
+    /**
+     * Returns the adaptive batch size limit of this base URL, creating it with
+     * the given settings on first use.
+     */
+    public synchronized BatchSizer getBatchSizer(final long maxBatchBytes, final long targetMillis) {
+        if (batchSizer == null) {
+            batchSizer = new BatchSizer(maxBatchBytes, targetMillis);
+        }
+        return batchSizer;
+    }
+
+    /**
+     * Returns the request and data rate limiter of this base URL, creating it
+     * with the given limits on first use. Only its creation is synchronized,
+     * so that every request can go through it without contention.
+     */
+    public RateLimiter getRateLimiter(final Integer requestsPerSecond, final Double bytesPerSecond) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            synchronized (this) {
+                limiter = rateLimiter;
+                if (limiter == null) {
+                    limiter = new RateLimiter(requestsPerSecond, bytesPerSecond);
+                    rateLimiter = limiter;
+                }
+            }
+        }
+        return limiter;
+    }
+
+    public synchronized void shutdown() {
+        if (!sharedConnectionManager) {
+            conMan.shutdown();
+        }
+        if (asyncTransport != null) {
+            try {
+                asyncTransport.close();
+            } catch (final IOException e) {
+                // nothing else we can do; the I/O reactor is going away anyway
+            }
+            asyncTransport = null;
+        }
+    }
+
+    /**
+     * Keeps track of the requests outstanding over a transport, so that
+     * {@link #isInUse()} knows about them.
+     */
+    private class CountingTransport implements AsyncTransport {
+
+        private final AsyncTransport transport;
+
+        public CountingTransport(final AsyncTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context, final FutureCallback<HttpResponse> callback) {
+            requestStarted();
+            return transport.execute(request, context, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse response) {
+                    requestCompleted();
+                    callback.completed(response);
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    requestCompleted();
+                    callback.failed(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    requestCompleted();
+                    callback.cancelled();
+                }
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of the {@link Config} of every base URL a processor posts to.
+ * It holds at most a given number of destinations, dropping the least
+ * recently used one to make room for a new one, and {@link #reap()} drops the
+ * destinations that have not been used for a given time, along with the
+ * {@link DestinationAccepts} negotiated with them.
+ * <p>
+ * A dropped destination may still be in use by a task that looked it up just
+ * before; its connections are only shut down once it has been out of the
+ * cache for a little while and none of them is in use any longer.
+ */
+class ConfigCache {
+
+    /**
+     * How long a dropped destination is kept alive for the tasks that looked
+     * it up right before it was dropped.
+     */
+    static final long RETIRE_GRACE_MILLIS = 10000L;
+
+    private final int maxSize;
+    private final long maxIdleMillis;
+    private final LinkedHashMap<String, Config> configs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Config, Long> retired = new LinkedHashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize the max number of destinations to hold
+     * @param maxIdleMillis how long a destination may go unused before it is
+     * dropped
+     */
+    public ConfigCache(final int maxSize, final long maxIdleMillis) {
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * @return the Config of the given base URL, or null if it is not cached
+     */
+    public synchronized Config get(final String baseUrl) {
+        final Config config = configs.get(baseUrl);
+        if (config == null) {
+            misses++;
+        } else {
+            hits++;
+            config.touch();
+        }
+        return config;
+    }
+
+    /**
+     * Caches the given Config unless another one is cached for the same base
+     * URL already, dropping the least recently used destination if the cache
+     * is full.
+     *
+     * @return the Config now cached for the base URL
+     */
+    public Config putIfAbsent(final String baseUrl, final Config config) {
+        final List<Config> evicted = new ArrayList<>();
+        synchronized (this) {
+            final Config existing = configs.get(baseUrl);
+            if (existing != null) {
+                existing.touch();
+                return existing;
+            }
+
+            config.touch();
+            configs.put(baseUrl, config);
+            final Iterator<Config> itr = configs.values().iterator();
+            while (configs.size() > maxSize && itr.hasNext()) {
+                evicted.add(itr.next());
+                itr.remove();
+                evictions++;
+            }
+        }
+
+        retire(evicted);
+        return config;
+    }
+
+    /**
+     * Drops the destinations that have not been used for too long, closes the
+     * idle connections of the others, and shuts down the dropped destinations
+     * that are no longer in use. Meant to be called periodically.
+     */
+    public void reap() {
+        final long now = System.currentTimeMillis();
+        final List<Config> evicted = new ArrayList<>();
+        final List<Config> live;
+        synchronized (this) {
+            final Iterator<Config> itr = configs.values().iterator();
+            while (itr.hasNext()) {
+                final Config config = itr.next();
+                if (now - config.getLastUsed() > maxIdleMillis) {
+                    evicted.add(config);
+                    itr.remove();
+                    evictions++;
+                }
+            }
+            live = new ArrayList<>(configs.values());
+        }
+
+        for (final Config config : live) {
+            config.closeIdleConnections(maxIdleMillis);
+        }
+        retire(evicted);
+    }
+
+    /**
+     * Shuts down every destination, cached or dropped. The statistics are
+     * kept.
+     */
+    public void clear() {
+        final List<Config> all;
+        synchronized (this) {
+            all = new ArrayList<>(configs.values());
+            all.addAll(retired.keySet());
+            configs.clear();
+            retired.clear();
+        }
+
+        for (final Config config : all) {
+            config.shutdown();
+        }
+    }
+
+    private void retire(final List<Config> evicted) {
+        final long now = System.currentTimeMillis();
+        for (final Config config : evicted) {
+            // nobody will lease these connections again
+            config.closeIdleConnections(0L);
+        }
+
+        final List<Config> toShutdown = new ArrayList<>();
+        synchronized (this) {
+            for (final Config config : evicted) {
+                retired.put(config, now);
+            }
+
+            final Iterator<Map.Entry<Config, Long>> itr = retired.entrySet().iterator();
+            while (itr.hasNext()) {
+                final Map.Entry<Config, Long> entry = itr.next();
+                if (now - entry.getValue() >= RETIRE_GRACE_MILLIS && !entry.getKey().isInUse()) {
+                    toShutdown.add(entry.getKey());
+                    itr.remove();
+                }
+            }
+        }
+
+        for (final Config config : toShutdown) {
+            config.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of destinations currently cached
+     */
+    public synchronized int size() {
+        return configs.size();
+    }
+
+    /**
+     * @return the number of lookups that found their destination cached
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not find their destination
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of destinations dropped for lack of room or use
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConfigCache[size=" + configs.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
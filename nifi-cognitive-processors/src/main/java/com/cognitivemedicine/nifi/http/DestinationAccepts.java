@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Capabilities of a destination, as negotiated through an HTTP HEAD request
+ * before the first POST is sent to it, along with when they were negotiated
+ * so that they can be negotiated again once they have expired.
+ */
+public class DestinationAccepts {
+
+    private final boolean flowFileV1;
+    private final boolean flowFileV2;
+    private final boolean flowFileV3;
+    private final boolean gzip;
+    private final Set<String> encodings;
+    private final Set<Long> dictionaries;
+    private final Integer protocolVersion;
+    private final boolean unavailable;
+    private final long negotiatedAt = System.currentTimeMillis();
+
+    public DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
+            final boolean gzip, final Integer protocolVersion) {
+        this(flowFileV3, flowFileV2, flowFileV1, gzip ? Collections.singleton("gzip") : Collections.<String>emptySet(), null, protocolVersion, false);
+    }
+
+    /**
+     * @param encodings the content encodings the destination accepts, in
+     * lower case
+     */
+    public DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
+            final Set<String> encodings, final Integer protocolVersion) {
+        this(flowFileV3, flowFileV2, flowFileV1, encodings, null, protocolVersion, false);
+    }
+
+    /**
+     * @param encodings the content encodings the destination accepts, in
+     * lower case
+     * @param dictionaries the IDs of the compression dictionaries the
+     * destination holds, or null if it cannot be sent any
+     */
+    public DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
+            final Set<String> encodings, final Set<Long> dictionaries, final Integer protocolVersion) {
+        this(flowFileV3, flowFileV2, flowFileV1, encodings, dictionaries, protocolVersion, false);
+    }
+
+    private DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
+            final Set<String> encodings, final Set<Long> dictionaries, final Integer protocolVersion, final boolean unavailable) {
+        this.flowFileV3 = flowFileV3;
+        this.flowFileV2 = flowFileV2;
+        this.flowFileV1 = flowFileV1;
+        this.gzip = encodings.contains("gzip");
+        this.encodings = Collections.unmodifiableSet(encodings);
+        this.dictionaries = (dictionaries == null) ? null : Collections.unmodifiableSet(dictionaries);
+        this.protocolVersion = protocolVersion;
+        this.unavailable = unavailable;
+    }
+
+    /**
+     * @return the capabilities assumed for a destination that answered the
+     * HEAD request with an unexpected status code: none at all
+     */
+    public static DestinationAccepts unavailable() {
+        return new DestinationAccepts(false, false, false, Collections.<String>emptySet(), null, null, true);
+    }
+
+    public boolean isFlowFileV3Accepted() {
+        return flowFileV3;
+    }
+
+    public boolean isFlowFileV2Accepted() {
+        return flowFileV2;
+    }
+
+    public boolean isFlowFileV1Accepted() {
+        return flowFileV1;
+    }
+
+    public boolean isGzipAccepted() {
+        return gzip;
+    }
+
+    /**
+     * @return true if the destination listed the given content encoding in
+     * its Accept-Encoding header
+     */
+    public boolean isEncodingAccepted(final String encoding) {
+        return encodings.contains(encoding.toLowerCase());
+    }
+
+    /**
+     * @return true if the destination takes compression dictionaries, so
+     * that content compressed with one can be sent to it
+     */
+    public boolean isDictionaryExchangeSupported() {
+        return dictionaries != null;
+    }
+
+    /**
+     * @return true if the destination said it already holds the compression
+     * dictionary with the given ID
+     */
+    public boolean isDictionaryHeld(final long dictionaryId) {
+        return dictionaries != null && dictionaries.contains(dictionaryId);
+    }
+
+    public Integer getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return true if these capabilities were not negotiated, because the
+     * destination could not tell them
+     */
+    public boolean isUnavailable() {
+        return unavailable;
+    }
+
+    /**
+     * @return when these capabilities were negotiated, in milliseconds since
+     * the epoch
+     */
+    public long getNegotiatedAt() {
+        return negotiatedAt;
+    }
+}
@@ -0,0 +1,185 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Learns a zstd dictionary from samples of the content a processor sends, so
+ * that small documents, which share most of their structure but are too
+ * short to compress well on their own, compress well one by one. Every
+ * dictionary is versioned by the ID zstd stores in it, which is also written
+ * into every frame compressed with it.
+ * <p>
+ * Samples are only taken while no dictionary exists or the current one is
+ * older than the retrain interval; the training itself runs wherever
+ * {@link #train()} is called, after {@link #claimTraining()} returned true.
+ */
+class DictionaryTrainer {
+
+    /**
+     * zstd recommends about a hundred times as many sample bytes as the size
+     * of the dictionary to be trained.
+     */
+    private static final int SAMPLES_PER_DICTIONARY_BYTE = 100;
+
+    private final int dictionarySize;
+    private final long retrainMillis;
+    private final AtomicBoolean training = new AtomicBoolean();
+    private ZstdDictTrainer trainer;
+    private long sampledBytes;
+    private volatile Dictionary dictionary;
+
+    public DictionaryTrainer(final int dictionarySize, final long retrainMillis) {
+        this.dictionarySize = dictionarySize;
+        this.retrainMillis = retrainMillis;
+    }
+
+    /**
+     * @return the largest content worth sampling; larger content compresses
+     * well enough without a dictionary
+     */
+    public int getMaxSampleSize() {
+        return dictionarySize * 8;
+    }
+
+    /**
+     * @return true if content should be offered through
+     * {@link #addSample(byte[])}
+     */
+    public boolean wantsSamples() {
+        final Dictionary current = dictionary;
+        return !training.get() && (current == null || System.currentTimeMillis() >= current.getTrainedAt() + retrainMillis);
+    }
+
+    public synchronized void addSample(final byte[] sample) {
+        if (sample.length == 0 || sample.length > getMaxSampleSize()) {
+            return;
+        }
+        if (trainer == null) {
+            trainer = new ZstdDictTrainer(dictionarySize * SAMPLES_PER_DICTIONARY_BYTE, dictionarySize);
+        }
+        if (trainer.addSample(sample)) {
+            sampledBytes += sample.length;
+        }
+    }
+
+    /**
+     * Claims the training of the next dictionary, once enough content has
+     * been sampled.
+     *
+     * @return true if the caller is to call {@link #train()}
+     */
+    public synchronized boolean claimTraining() {
+        if (sampledBytes < (long) dictionarySize * SAMPLES_PER_DICTIONARY_BYTE / 2) {
+            return false;
+        }
+        return training.compareAndSet(false, true);
+    }
+
+    /**
+     * Trains a dictionary from the samples taken so far and makes it the
+     * current one.
+     *
+     * @throws ZstdException if the samples do not make a dictionary, in which
+     * case the current one is kept, and sampling starts over
+     */
+    public Dictionary train() {
+        final ZstdDictTrainer samples;
+        synchronized (this) {
+            samples = trainer;
+            trainer = null;
+            sampledBytes = 0L;
+        }
+
+        try {
+            final byte[] trained = samples.trainSamples();
+            final Dictionary trainedDictionary = new Dictionary(trained);
+            dictionary = trainedDictionary;
+            return trainedDictionary;
+        } finally {
+            training.set(false);
+        }
+    }
+
+    /**
+     * @return the dictionary to compress with, or null if none has been
+     * trained yet
+     */
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * A trained dictionary, identified by the ID zstd stored in it.
+     */
+    public static class Dictionary {
+
+        private final byte[] content;
+        private final long id;
+        private final long trainedAt = System.currentTimeMillis();
+        private final ConcurrentMap<Integer, ZstdDictCompress> digested = new ConcurrentHashMap<>();
+
+        public Dictionary(final byte[] content) {
+            this.content = content;
+            this.id = Zstd.getDictIdFromDict(content);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public long getTrainedAt() {
+            return trainedAt;
+        }
+
+        /**
+         * Wraps the given stream so that whatever is written to it is
+         * compressed with zstd and this dictionary.
+         */
+        public OutputStream compress(final OutputStream out, final int level) throws IOException {
+            // digesting the dictionary costs more than compressing a small document with it, so it is done once per level
+            ZstdDictCompress dictCompress = digested.get(level);
+            if (dictCompress == null) {
+                dictCompress = new ZstdDictCompress(content, level);
+                final ZstdDictCompress existing = digested.putIfAbsent(level, dictCompress);
+                if (existing != null) {
+                    dictCompress.close();
+                    dictCompress = existing;
+                }
+            }
+
+            final ZstdOutputStream zstdOut = new ZstdOutputStream(out, RecyclingBufferPool.INSTANCE).setLevel(level);
+            zstdOut.setDict(dictCompress);
+            return zstdOut;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the batches for a URL over several endpoints, each of which is a
+ * base URL with a {@link Config} of its own. Endpoints that have been
+ * ejected because they kept failing are passed over until their ejection
+ * ends; if every endpoint has been ejected, they are all considered again
+ * rather than holding the batches back.
+ */
+final class EndpointSelector {
+
+    /**
+     * How an endpoint is picked among the healthy ones.
+     */
+    enum Policy {
+
+        /**
+         * Each endpoint in turn.
+         */
+        ROUND_ROBIN("round-robin"),
+        /**
+         * The endpoint with the fewest requests outstanding, in turn among
+         * equals.
+         */
+        LEAST_OUTSTANDING_REQUESTS("least-outstanding-requests"),
+        /**
+         * An endpoint at random, with odds inversely proportional to the
+         * moving average of its latency; endpoints that have not handled a
+         * request yet get the odds of the fastest one.
+         */
+        LATENCY_WEIGHTED("latency-weighted");
+
+        private final String value;
+
+        private Policy(final String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static Policy forValue(final String value) {
+            for (final Policy policy : values()) {
+                if (policy.value.equals(value)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown endpoint selection policy: " + value);
+        }
+    }
+
+    private final Policy policy;
+    private final AtomicInteger next = new AtomicInteger();
+
+    EndpointSelector(final Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return the base URLs in the given comma-separated list, without
+     * trailing slashes
+     */
+    static List<String> parseEndpoints(final String value) {
+        final List<String> endpoints = new ArrayList<>();
+        for (final String endpoint : value.split(",")) {
+            String trimmed = endpoint.trim();
+            while (trimmed.endsWith("/")) {
+                trimmed = trimmed.substring(0, trimmed.length() - 1);
+            }
+            if (!trimmed.isEmpty()) {
+                endpoints.add(trimmed);
+            }
+        }
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * @return the given URL with its base URL replaced by the given endpoint
+     */
+    static String rewrite(final String url, final String endpoint) {
+        final int index = url.indexOf("/", 9);
+        return (index < 0) ? endpoint : endpoint + url.substring(index);
+    }
+
+    /**
+     * Picks one of the given endpoints.
+     *
+     * @param configs the Config of each endpoint
+     * @return the index of the picked endpoint
+     */
+    int select(final List<Config> configs) {
+        final List<Integer> candidates = new ArrayList<>(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            if (!configs.get(i).isEjected()) {
+                candidates.add(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (int i = 0; i < configs.size(); i++) {
+                candidates.add(i);
+            }
+        }
+
+        // start each scan somewhere else, so that equals take turns
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        switch (policy) {
+            case LEAST_OUTSTANDING_REQUESTS: {
+                int best = candidates.get(start);
+                for (int i = 1; i < candidates.size(); i++) {
+                    final int candidate = candidates.get((start + i) % candidates.size());
+                    if (configs.get(candidate).getOutstandingRequests() < configs.get(best).getOutstandingRequests()) {
+                        best = candidate;
+                    }
+                }
+                return best;
+            }
+            case LATENCY_WEIGHTED: {
+                double fastest = -1.0;
+                for (final int candidate : candidates) {
+                    final double latency = configs.get(candidate).getLatencyEwma();
+                    if (latency >= 0 && (fastest < 0 || latency < fastest)) {
+                        fastest = latency;
+                    }
+                }
+                final double[] weights = new double[candidates.size()];
+                double total = 0.0;
+                for (int i = 0; i < candidates.size(); i++) {
+                    final double latency = configs.get(candidates.get(i)).getLatencyEwma();
+                    // a millisecond is added so that instant responses do not get all the weight
+                    weights[i] = 1.0 / (1.0 + ((latency < 0) ? Math.max(fastest, 0.0) : latency));
+                    total += weights[i];
+                }
+                double pick = ThreadLocalRandom.current().nextDouble() * total;
+                for (int i = 0; i < candidates.size(); i++) {
+                    pick -= weights[i];
+                    if (pick < 0) {
+                        return candidates.get(i);
+                    }
+                }
+                return candidates.get(candidates.size() - 1);
+            }
+            default:
+                return candidates.get(start);
+        }
+    }
+
+    /**
+     * Picks the endpoint a hedge is sent to: the healthy one, other than the
+     * endpoint of the request, with the fewest requests outstanding, whatever
+     * the policy.
+     *
+     * @param configs the Config of each endpoint
+     * @param excluded the index of the endpoint of the request
+     * @return the index of the picked endpoint, or -1 if there is no other
+     * healthy one
+     */
+    int selectHedge(final List<Config> configs, final int excluded) {
+        int best = -1;
+        final int start = ThreadLocalRandom.current().nextInt(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            final int candidate = (start + i) % configs.size();
+            if (candidate == excluded || configs.get(candidate).isEjected()) {
+                continue;
+            }
+            if (best < 0 || configs.get(candidate).getOutstandingRequests() < configs.get(best).getOutstandingRequests()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+}
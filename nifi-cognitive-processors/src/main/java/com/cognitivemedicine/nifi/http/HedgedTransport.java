@@ -0,0 +1,273 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends a POST to its endpoint and, if it has not completed after the hedge
+ * delay, a duplicate of it to another endpoint: whichever is answered first
+ * completes the request and the other one is cancelled. A request that fails
+ * before the delay is not hedged, as retries take care of failures; once the
+ * hedge has been sent, the request only fails if both do.
+ * <p>
+ * A hedged transport is made for a single request; the transports of both
+ * endpoints belong to their Config and are left open.
+ */
+final class HedgedTransport implements AsyncTransport {
+
+    /**
+     * Set in the context of the request to the URL of the hedge, once it has
+     * been sent.
+     */
+    static final String HEDGE_URL_ATTRIBUTE = "com.cognitivemedicine.nifi.http.hedge-url";
+
+    /**
+     * Set in the context of the request once the hedge has been answered
+     * first.
+     */
+    static final String HEDGE_WON_ATTRIBUTE = "com.cognitivemedicine.nifi.http.hedge-won";
+
+    /**
+     * Set in the context of the request, once the hedge has been answered
+     * first, to the milliseconds the hedge took.
+     */
+    static final String HEDGE_MILLIS_ATTRIBUTE = "com.cognitivemedicine.nifi.http.hedge-millis";
+
+    private final AsyncTransport primary;
+    private final AsyncTransport hedge;
+    private final String hedgeUrl;
+    private final long delayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final HedgingPolicy policy;
+
+    private BasicFuture<HttpResponse> result;
+    private Future<HttpResponse> primaryFuture;
+    private Future<HttpResponse> hedgeFuture;
+    private Future<?> timer;
+    private long hedgeSentNanos;
+    private int outstanding;
+    private boolean decided;
+
+    /**
+     * @param primary the transport of the endpoint the request is sent to
+     * @param hedge the transport of the endpoint the hedge is sent to
+     * @param hedgeUrl the URL of the request, rewritten for the endpoint of
+     * the hedge
+     * @param delayMillis how long the request is given before it is hedged
+     * @param scheduler runs the timer of the hedge
+     * @param policy the budget the hedge is taken out of
+     */
+    HedgedTransport(final AsyncTransport primary, final AsyncTransport hedge, final String hedgeUrl, final long delayMillis,
+            final ScheduledExecutorService scheduler, final HedgingPolicy policy) {
+        this.primary = primary;
+        this.hedge = hedge;
+        this.hedgeUrl = hedgeUrl;
+        this.delayMillis = delayMillis;
+        this.scheduler = scheduler;
+        this.policy = policy;
+    }
+
+    @Override
+    public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context, final FutureCallback<HttpResponse> callback) {
+        synchronized (this) {
+            result = new BasicFuture<HttpResponse>(callback) {
+                @Override
+                public boolean cancel(final boolean mayInterruptIfRunning) {
+                    final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    cancelAll(mayInterruptIfRunning);
+                    return cancelled;
+                }
+            };
+            outstanding = 1;
+        }
+
+        final Future<HttpResponse> sent = primary.execute(request, context, new Leg(context, context));
+        synchronized (this) {
+            primaryFuture = sent;
+            if (decided || result.isDone()) {
+                // answered or cancelled already
+                sent.cancel(true);
+                return result;
+            }
+            try {
+                timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHedge(request, context);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // the processor is stopping; the request goes on unhedged
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends the hedge, unless the request has completed meanwhile or the
+     * budget is used up.
+     */
+    private void sendHedge(final HttpUriRequest request, final HttpContext context) {
+        final HttpUriRequest duplicate = copy(request);
+        if (duplicate == null) {
+            return;
+        }
+        synchronized (this) {
+            if (decided || result.isDone() || !policy.tryHedge()) {
+                return;
+            }
+            outstanding++;
+            hedgeSentNanos = System.nanoTime();
+            context.setAttribute(HEDGE_URL_ATTRIBUTE, hedgeUrl);
+        }
+
+        final HttpContext hedgeContext = HttpClientContext.create();
+        final Future<HttpResponse> sent = hedge.execute(duplicate, hedgeContext, new Leg(context, hedgeContext));
+        synchronized (this) {
+            hedgeFuture = sent;
+            if (!decided && !result.isDone()) {
+                return;
+            }
+        }
+        sent.cancel(true);
+    }
+
+    /**
+     * @return the given POST addressed to the endpoint of the hedge, with an
+     * entity of its own over the same bytes, as an entity keeps track of how
+     * much of it has been sent; or null if its body cannot be sent twice
+     */
+    private HttpUriRequest copy(final HttpUriRequest request) {
+        final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity != null && !(entity instanceof RequestBody.Entity)) {
+            return null;
+        }
+
+        final HttpPost duplicate = new HttpPost(hedgeUrl);
+        duplicate.setHeaders(request.getAllHeaders());
+        if (request instanceof Configurable) {
+            duplicate.setConfig(((Configurable) request).getConfig());
+        }
+        if (entity != null) {
+            duplicate.setEntity(((RequestBody.Entity) entity).duplicate());
+        }
+        return duplicate;
+    }
+
+    /**
+     * Cancels the timer and whatever is still outstanding; the transports are
+     * called outside of the lock, as their callbacks take it.
+     */
+    private void cancelAll(final boolean mayInterruptIfRunning) {
+        final Future<?>[] futures;
+        synchronized (this) {
+            futures = new Future<?>[]{timer, primaryFuture, hedgeFuture};
+        }
+        if (futures[0] != null) {
+            futures[0].cancel(false);
+        }
+        for (int i = 1; i < futures.length; i++) {
+            if (futures[i] != null) {
+                futures[i].cancel(mayInterruptIfRunning);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // both transports belong to their Config
+    }
+
+    /**
+     * Completes the request with whichever of the POST and its hedge is
+     * answered first.
+     */
+    private class Leg implements FutureCallback<HttpResponse> {
+
+        private final HttpContext context;
+        private final HttpContext legContext;
+        private final boolean isHedge;
+
+        /**
+         * @param context the context of the request
+         * @param legContext the context this leg is sent with; that of the
+         * request unless it is the hedge
+         */
+        Leg(final HttpContext context, final HttpContext legContext) {
+            this.context = context;
+            this.legContext = legContext;
+            this.isHedge = legContext != context;
+        }
+
+        @Override
+        public void completed(final HttpResponse response) {
+            final boolean won;
+            synchronized (HedgedTransport.this) {
+                outstanding--;
+                won = !decided && !result.isDone();
+                decided = true;
+                if (won && isHedge) {
+                    context.setAttribute(HEDGE_WON_ATTRIBUTE, Boolean.TRUE);
+                    context.setAttribute(HEDGE_MILLIS_ATTRIBUTE, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - hedgeSentNanos));
+                    context.setAttribute(AsyncHttpClients.REMOTE_DN_ATTRIBUTE, legContext.getAttribute(AsyncHttpClients.REMOTE_DN_ATTRIBUTE));
+                }
+            }
+            if (!won || !result.completed(response)) {
+                // the other one won; nobody is going to read this one
+                EntityUtils.consumeQuietly(response.getEntity());
+                return;
+            }
+            cancelAll(true);
+        }
+
+        @Override
+        public void failed(final Exception e) {
+            synchronized (HedgedTransport.this) {
+                outstanding--;
+                if (outstanding > 0 || decided || result.isDone()) {
+                    // the other one may still be answered
+                    return;
+                }
+                decided = true;
+            }
+            cancelAll(false);
+            result.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            failed(new CancellationException("Request to " + (isHedge ? hedgeUrl : "its endpoint") + " was cancelled"));
+        }
+    }
+}
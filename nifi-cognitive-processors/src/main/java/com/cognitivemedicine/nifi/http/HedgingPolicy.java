@@ -0,0 +1,117 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.Arrays;
+
+/**
+ * Decides whether, and after how long, a duplicate of a request that is
+ * taking too long is sent to another endpoint.
+ * <p>
+ * The delay is the configured percentile of the latencies of the most recent
+ * requests, to any endpoint, so that only the slowest few get a hedge; it is
+ * never shorter than the min delay, which is also used until enough
+ * latencies have been seen.
+ * <p>
+ * Hedges are bounded by a budget shared by every task of the processor, like
+ * retries are: every request sent adds the budget ratio to it, every hedge
+ * takes one off, so that a destination that slows down as a whole is not
+ * sent twice the requests.
+ */
+class HedgingPolicy {
+
+    /**
+     * Number of recent latencies the delay is derived from.
+     */
+    private static final int SAMPLES = 200;
+
+    /**
+     * Number of latencies needed before the percentile is used.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of hedges the budget holds when the processor starts, and at
+     * most.
+     */
+    private static final double MAX_BUDGET = 5.0;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final double budgetRatio;
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private double budget = MAX_BUDGET;
+
+    /**
+     * @param percentile the percentile of the latencies after which a request
+     * is hedged, from 1 to 99
+     * @param minDelayMillis the shortest delay before a hedge
+     * @param budgetRatio the share of requests that may be hedged
+     */
+    public HedgingPolicy(final int percentile, final long minDelayMillis, final double budgetRatio) {
+        this.percentile = percentile / 100.0;
+        this.minDelayMillis = minDelayMillis;
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * Records that a request was sent, which adds to the hedge budget.
+     */
+    public synchronized void onRequest() {
+        budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+    }
+
+    /**
+     * Takes a hedge out of the budget, if there is one left.
+     *
+     * @return true if the request may be hedged
+     */
+    public synchronized boolean tryHedge() {
+        if (budget < 1.0) {
+            return false;
+        }
+        budget -= 1.0;
+        return true;
+    }
+
+    /**
+     * Records how long a request took to be answered.
+     */
+    public synchronized void recordLatency(final long millis) {
+        latencies[nextSample] = millis;
+        nextSample = (nextSample + 1) % SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+    }
+
+    /**
+     * @return how long a request is given before it is hedged, in
+     * milliseconds
+     */
+    public long getDelayMillis() {
+        final long[] sorted;
+        synchronized (this) {
+            if (sampleCount < MIN_SAMPLES) {
+                return minDelayMillis;
+            }
+            sorted = Arrays.copyOf(latencies, sampleCount);
+        }
+        Arrays.sort(sorted);
+        final int index = Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1);
+        return Math.max(minDelayMillis, sorted[Math.max(index, 0)]);
+    }
+}
@@ -0,0 +1,402 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import org.apache.hc.client5.http.async.methods.AbstractBinResponseConsumer;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.auth.AuthScope;
+import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.ssl.H2ClientTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.ssl.SSLSessionInitializer;
+import org.apache.hc.core5.reactor.ssl.SSLSessionVerifier;
+import org.apache.hc.core5.reactor.ssl.TlsDetails;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * The transport of the "http2" HTTP Engine. Every request to a destination is
+ * multiplexed as a stream over a single HTTP/2 connection: h2 (negotiated
+ * through ALPN) for https URLs and h2c with prior knowledge for http URLs.
+ * <p>
+ * Requests and responses are translated from/to their HttpClient 4 form so
+ * that the processors handle them exactly like the ones of the "async"
+ * engine.
+ */
+final class Http2Transport implements AsyncTransport {
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private final CloseableHttpAsyncClient client;
+    private final Semaphore streams;
+    private final long maxResponseSize;
+    private final ResponseBuffer.Factory responseBuffers;
+
+    private Http2Transport(final CloseableHttpAsyncClient client, final int maxConcurrentStreams, final long maxResponseSize,
+            final ResponseBuffer.Factory responseBuffers) {
+        this.client = client;
+        this.streams = new Semaphore(maxConcurrentStreams);
+        this.maxResponseSize = maxResponseSize;
+        this.responseBuffers = responseBuffers;
+    }
+
+    /**
+     * Creates and starts a new HTTP/2 transport.
+     *
+     * @param tlsSettings the TLS settings to use for https URLs; may be null
+     * @param maxConcurrentStreams the max number of requests outstanding
+     * against the destination at any time
+     * @param userAgent the User-Agent to report; may be null
+     * @param username the user to authenticate as; may be null
+     * @param password the password of the user; may be null
+     * @param maxResponseSize the max number of bytes of a response body; a
+     * larger response fails the request as soon as its size is known
+     * @param responseBuffers creates the buffers that hold response bodies
+     * @return a started transport
+     */
+    static Http2Transport create(final TlsSettings tlsSettings, final int maxConcurrentStreams, final String userAgent,
+            final String username, final String password, final long maxResponseSize, final ResponseBuffer.Factory responseBuffers) {
+        final H2AsyncClientBuilder clientBuilder = H2AsyncClientBuilder.create();
+        clientBuilder.setH2Config(H2Config.custom()
+                .setPushEnabled(false)
+                .setMaxConcurrentStreams(maxConcurrentStreams)
+                .build());
+        clientBuilder.setUserAgent(userAgent);
+        clientBuilder.disableAutomaticRetries();
+        clientBuilder.disableRedirectHandling();
+        clientBuilder.disableCookieManagement();
+        if (tlsSettings != null) {
+            clientBuilder.setTlsStrategy(new H2ClientTlsStrategy(tlsSettings.getSSLContext(), new SSLSessionInitializer() {
+                @Override
+                public void initialize(final NamedEndpoint endpoint, final SSLEngine sslEngine) {
+                    sslEngine.setEnabledProtocols(tlsSettings.getProtocols());
+                    if (tlsSettings.getCipherSuites() != null) {
+                        sslEngine.setEnabledCipherSuites(tlsSettings.getCipherSuites());
+                    }
+                }
+            }, new SSLSessionVerifier() {
+                @Override
+                public TlsDetails verify(final NamedEndpoint endpoint, final SSLEngine sslEngine) throws SSLException {
+                    if (!SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(endpoint.getHostName(), sslEngine.getSession())) {
+                        throw new SSLPeerUnverifiedException("Certificate of " + endpoint.getHostName() + " does not match its host name");
+                    }
+                    return null;
+                }
+            }));
+        }
+        if (username != null) {
+            final BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(new AuthScope(null, -1),
+                    new UsernamePasswordCredentials(username, password == null ? new char[0] : password.toCharArray()));
+            clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+        }
+
+        final CloseableHttpAsyncClient client = clientBuilder.build();
+        client.start();
+        return new Http2Transport(client, maxConcurrentStreams, maxResponseSize, responseBuffers);
+    }
+
+    @Override
+    public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context, final FutureCallback<HttpResponse> callback) {
+        final StreamFuture result = new StreamFuture(callback);
+
+        final SimpleHttpRequest h2Request;
+        try {
+            h2Request = toH2Request(request);
+            if (!streams.tryAcquire(getStreamTimeoutMillis(request), TimeUnit.MILLISECONDS)) {
+                throw new NoStreamAvailableException("No stream to " + request.getURI() + " became free in time");
+            }
+        } catch (final IOException e) {
+            result.failed(e);
+            return result;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.failed(new InterruptedIOException("Interrupted while waiting for a stream to " + request.getURI()));
+            return result;
+        }
+
+        final org.apache.hc.client5.http.protocol.HttpClientContext h2Context = org.apache.hc.client5.http.protocol.HttpClientContext.create();
+        try {
+            result.setDelegate(execute(h2Request, h2Context, context, result));
+        } catch (final RuntimeException e) {
+            // such as the client being closed during shutdown; the stream was never used
+            streams.release();
+            result.failed(e);
+        }
+        return result;
+    }
+
+    private Future<HttpResponse> execute(final SimpleHttpRequest h2Request, final org.apache.hc.client5.http.protocol.HttpClientContext h2Context,
+            final HttpContext context, final StreamFuture result) {
+        return client.execute(SimpleRequestProducer.create(h2Request), new ResponseConsumer(maxResponseSize, responseBuffers), h2Context,
+                new org.apache.hc.core5.concurrent.FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                streams.release();
+                try {
+                    recordRemoteDn(h2Context.getSSLSession(), context);
+                } catch (final SSLPeerUnverifiedException e) {
+                    result.failed(e);
+                    return;
+                }
+                result.completed(response);
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                streams.release();
+                result.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                streams.release();
+                result.cancel();
+            }
+        });
+    }
+
+    /**
+     * @return how long the given request may wait for one of the streams to
+     * free up: its connection request timeout, if it has one
+     */
+    private static long getStreamTimeoutMillis(final HttpUriRequest request) {
+        if (request instanceof Configurable && ((Configurable) request).getConfig() != null) {
+            return Math.max(((Configurable) request).getConfig().getConnectionRequestTimeout(), 0);
+        }
+        return 0L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close(CloseMode.GRACEFUL);
+    }
+
+    private static SimpleHttpRequest toH2Request(final HttpUriRequest request) throws IOException {
+        final SimpleHttpRequest h2Request = SimpleHttpRequest.create(request.getMethod(), request.getURI());
+        String contentType = null;
+        for (final Header header : request.getAllHeaders()) {
+            // connection specific headers are not allowed in HTTP/2
+            final String name = header.getName();
+            if (name.equalsIgnoreCase(PostAdvancedHTTP.CONTENT_TYPE)) {
+                contentType = header.getValue();
+            } else if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Transfer-Encoding")
+                    && !name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Host")) {
+                h2Request.addHeader(name, header.getValue());
+            }
+        }
+
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                final byte[] body = (entity instanceof RequestBody.Entity) ? ((RequestBody.Entity) entity).getBytes() : EntityUtils.toByteArray(entity);
+                h2Request.setBody(body, toContentType(contentType));
+            }
+        }
+
+        if (request instanceof Configurable && ((Configurable) request).getConfig() != null) {
+            final RequestConfig config = ((Configurable) request).getConfig();
+            final org.apache.hc.client5.http.config.RequestConfig.Builder h2Config = org.apache.hc.client5.http.config.RequestConfig.custom();
+            h2Config.setRedirectsEnabled(false);
+            if (config.getConnectTimeout() >= 0) {
+                h2Config.setConnectTimeout(Timeout.ofMilliseconds(config.getConnectTimeout()));
+            }
+            if (config.getConnectionRequestTimeout() >= 0) {
+                h2Config.setConnectionRequestTimeout(Timeout.ofMilliseconds(config.getConnectionRequestTimeout()));
+            }
+            if (config.getSocketTimeout() >= 0) {
+                h2Config.setResponseTimeout(Timeout.ofMilliseconds(config.getSocketTimeout()));
+            }
+            h2Request.setConfig(h2Config.build());
+        }
+        return h2Request;
+    }
+
+    private static ContentType toContentType(final String contentType) {
+        if (contentType == null) {
+            return ContentType.APPLICATION_OCTET_STREAM;
+        }
+        try {
+            return ContentType.parse(contentType);
+        } catch (final RuntimeException e) {
+            return ContentType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+    private static void recordRemoteDn(final SSLSession sslSession, final HttpContext context) throws SSLPeerUnverifiedException {
+        if (sslSession == null) {
+            return;
+        }
+
+        context.setAttribute(AsyncHttpClients.REMOTE_DN_ATTRIBUTE, TlsSettings.getPeerDn(sslSession));
+    }
+
+    /**
+     * Fails a request for which none of the Max Concurrent Streams became
+     * free in time, because other tasks keep them all in use; the request was
+     * never sent.
+     */
+    static class NoStreamAvailableException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NoStreamAvailableException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The future handed back to the processors; cancelling it resets the
+     * underlying HTTP/2 stream.
+     */
+    private static class StreamFuture extends BasicFuture<HttpResponse> {
+
+        private volatile Future<HttpResponse> delegate;
+
+        public StreamFuture(final FutureCallback<HttpResponse> callback) {
+            super(callback);
+        }
+
+        public void setDelegate(final Future<HttpResponse> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final Future<HttpResponse> f = delegate;
+            if (f != null) {
+                f.cancel(mayInterruptIfRunning);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Reads a response into its HttpClient 4 form, spilling large bodies to
+     * disk and giving up as soon as the body exceeds the max response size.
+     */
+    private static class ResponseConsumer extends AbstractBinResponseConsumer<HttpResponse> {
+
+        private final long maxResponseSize;
+        private final ResponseBuffer.Factory responseBuffers;
+        private BasicHttpResponse response;
+        private ContentType contentType;
+        private ResponseBuffer buffer;
+        private AbstractHttpEntity body;
+
+        public ResponseConsumer(final long maxResponseSize, final ResponseBuffer.Factory responseBuffers) {
+            this.maxResponseSize = maxResponseSize;
+            this.responseBuffers = responseBuffers;
+        }
+
+        @Override
+        protected void start(final org.apache.hc.core5.http.HttpResponse h2Response, final ContentType contentType) throws HttpException, IOException {
+            final int code = h2Response.getCode();
+            response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, code, EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ENGLISH)));
+            for (final org.apache.hc.core5.http.Header header : h2Response.getHeaders()) {
+                response.addHeader(header.getName(), header.getValue());
+            }
+            this.contentType = contentType;
+
+            final org.apache.hc.core5.http.Header contentLength = h2Response.getFirstHeader("Content-Length");
+            if (contentLength != null) {
+                try {
+                    MaxSizeEntity.checkLength(Long.parseLong(contentLength.getValue().trim()), maxResponseSize);
+                } catch (final NumberFormatException e) {
+                    // the length is checked as the body arrives anyway
+                }
+            }
+        }
+
+        @Override
+        protected int capacityIncrement() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        protected void data(final ByteBuffer src, final boolean endOfStream) throws IOException {
+            if (buffer == null) {
+                buffer = responseBuffers.newBuffer();
+            }
+            MaxSizeEntity.checkLength(buffer.length() + src.remaining(), maxResponseSize);
+            buffer.write(src);
+            if (endOfStream) {
+                body = buffer.toEntity();
+                buffer = null;
+            }
+        }
+
+        @Override
+        protected HttpResponse buildResult() {
+            if (body != null || contentType != null) {
+                final AbstractHttpEntity entity = (body == null) ? new ByteArrayEntity(new byte[0]) : body;
+                if (contentType != null) {
+                    entity.setContentType(contentType.toString());
+                }
+                response.setEntity(entity);
+            }
+            body = null;
+            return response;
+        }
+
+        @Override
+        public void releaseResources() {
+            if (buffer != null) {
+                // the stream failed or was cancelled before it ended
+                buffer.discard();
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * Connection pool shared by every PostAdvancedHTTP and PostHTTP2 that refers
+ * to it, along with the TLS context used to open its connections and what
+ * each destination was found to accept.
+ */
+@Tags({"http", "https", "connection", "pool", "cognitive"})
+@CapabilityDescription("Provides a connection pool, and what each destination was found to accept, shared by the processors that post over HTTP.")
+public interface HttpConnectionPoolService extends ControllerService {
+
+    /**
+     * @return the connection manager shared by every processor; it must not be
+     * shut down by them
+     */
+    HttpClientConnectionManager getConnectionManager();
+
+    /**
+     * @return the SSLContext used for https URLs, or null if none is configured
+     */
+    SSLContext getSSLContext();
+
+    /**
+     * @return the TLS protocols enabled on https connections
+     */
+    String[] getTlsProtocols();
+
+    /**
+     * @return the cipher suites enabled on https connections, or null to use
+     * the defaults of the JVM
+     */
+    String[] getTlsCipherSuites();
+
+    /**
+     * @return how long a connection may be kept alive between requests
+     */
+    ConnectionKeepAliveStrategy getKeepAliveStrategy();
+
+    /**
+     * @param baseUrl the scheme, host and port of a destination
+     * @return the holder of what the destination was found to accept, shared
+     * by every processor; it holds null until the destination is negotiated
+     * with
+     */
+    AtomicReference<DestinationAccepts> getDestinationAccepts(String baseUrl);
+}
@@ -0,0 +1,154 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.PathNotFoundException;
+import com.jayway.jsonpath.spi.json.JsonProvider;
+
+/**
+ * Evaluates a set of JsonPath expressions, compiled once per run, against a
+ * response as it is parsed off its stream, so that only the values they
+ * select become attributes rather than the whole response.
+ */
+final class JsonPathExtractor {
+
+    /**
+     * Accepts the JsonPath expressions that compile.
+     */
+    static final Validator VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+            String explanation = null;
+            try {
+                JsonPath.compile(input);
+            } catch (final RuntimeException e) {
+                explanation = "not a valid JsonPath expression: " + e.getMessage();
+            }
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(explanation == null)
+                    .explanation(explanation)
+                    .build();
+        }
+    };
+
+    private static final JsonProvider JSON_PROVIDER = Configuration.defaultConfiguration().jsonProvider();
+
+    private final Map<String, JsonPath> paths = new LinkedHashMap<>();
+
+    /**
+     * @param expressions the JsonPath expressions to evaluate, by the name of
+     * the attribute their result goes to
+     */
+    public JsonPathExtractor(final Map<String, String> expressions) {
+        for (final Map.Entry<String, String> entry : expressions.entrySet()) {
+            paths.put(entry.getKey(), JsonPath.compile(entry.getValue()));
+        }
+    }
+
+    /**
+     * Parses the given response and evaluates every expression against it.
+     *
+     * @param in the body of the response; it is read to its end but not
+     * closed
+     * @param charset the name of the charset of the response
+     * @return the result of each expression that matched, by attribute name;
+     * arrays and objects are rendered as JSON
+     * @throws InvalidJsonException if the response is not JSON
+     */
+    public Map<String, String> extract(final InputStream in, final String charset) throws InvalidJsonException {
+        return extract(parse(in, charset));
+    }
+
+    /**
+     * Evaluates every expression against the given parsed document.
+     *
+     * @return the result of each expression that matched, by attribute name;
+     * arrays and objects are rendered as JSON
+     */
+    public Map<String, String> extract(final Object document) {
+        final Map<String, String> results = new HashMap<>();
+        for (final Map.Entry<String, JsonPath> entry : paths.entrySet()) {
+            final String value = read(entry.getValue(), document);
+            if (value != null) {
+                results.put(entry.getKey(), value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the result of the given path against the given parsed document,
+     * rendered like the results of {@link #extract(Object)}, or null if it
+     * does not match
+     */
+    static String read(final JsonPath path, final Object document) {
+        try {
+            return toText(path.read(document));
+        } catch (final PathNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the given parsed JSON value as text: arrays and objects as JSON,
+     * anything else as its string form, and null as null
+     */
+    static String toText(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        final boolean structured = JSON_PROVIDER.isMap(value) || JSON_PROVIDER.isArray(value);
+        return structured ? JSON_PROVIDER.toJson(value) : value.toString();
+    }
+
+    /**
+     * @return the parsed form of the given JSON text
+     * @throws InvalidJsonException if it is not JSON
+     */
+    static Object parse(final String json) throws InvalidJsonException {
+        return JSON_PROVIDER.parse(json);
+    }
+
+    /**
+     * @return the parsed form of the JSON text read from the given stream
+     * @throws InvalidJsonException if it is not JSON
+     */
+    static Object parse(final InputStream in, final String charset) throws InvalidJsonException {
+        return JSON_PROVIDER.parse(in, charset);
+    }
+
+    /**
+     * @return the elements of the given parsed JSON document, or null if it is
+     * not an array
+     */
+    static Iterable<?> getElements(final Object document) {
+        return JSON_PROVIDER.isArray(document) ? JSON_PROVIDER.toIterable(document) : null;
+    }
+}
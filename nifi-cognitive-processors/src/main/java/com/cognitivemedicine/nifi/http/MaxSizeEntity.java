@@ -0,0 +1,98 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.nifi.stream.io.StreamUtils;
+
+/**
+ * Wraps the entity of a response so that reading more than a given number of
+ * bytes out of it fails with a {@link ContentTooLongException} instead of
+ * exhausting the heap. Responses that announce a larger Content-Length fail
+ * before a single byte is read.
+ */
+final class MaxSizeEntity extends HttpEntityWrapper {
+
+    private final long maxSize;
+
+    /**
+     * @param entity the entity to wrap
+     * @param maxSize the max number of bytes that may be read from the entity
+     * @throws ContentTooLongException if the entity announces a larger length
+     */
+    MaxSizeEntity(final HttpEntity entity, final long maxSize) throws ContentTooLongException {
+        super(entity);
+        this.maxSize = maxSize;
+        checkLength(entity.getContentLength(), maxSize);
+    }
+
+    /**
+     * @throws ContentTooLongException if length is greater than maxSize
+     */
+    static void checkLength(final long length, final long maxSize) throws ContentTooLongException {
+        if (length > maxSize) {
+            throw new ContentTooLongException("Response of " + length + " bytes exceeds the Max Response Size of " + maxSize + " bytes");
+        }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(super.getContent()) {
+            private long count = 0L;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    checkLength(++count, maxSize);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    count += n;
+                    checkLength(count, maxSize);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                final long skipped = super.skip(n);
+                count += skipped;
+                checkLength(count, maxSize);
+                return skipped;
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        try (final InputStream in = getContent()) {
+            StreamUtils.copy(in, out);
+        }
+    }
+}
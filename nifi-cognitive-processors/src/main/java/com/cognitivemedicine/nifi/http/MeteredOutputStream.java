@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes written through it and, optionally, the CPU time the
+ * writing thread spends in the underlying stream, such as a compressor.
+ * Callers should buffer what they write, as reading the CPU time of the
+ * thread is not free.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean timed;
+    private long bytesWritten;
+    private long cpuNanos;
+
+    public MeteredOutputStream(final OutputStream out, final boolean timed) {
+        super(out);
+        this.timed = timed && THREADS.isCurrentThreadCpuTimeSupported();
+    }
+
+    /**
+     * @return a stream that counts the bytes written to it and throws them
+     * away
+     */
+    public static MeteredOutputStream discarding() {
+        return new MeteredOutputStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }, false);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        final long start = startTiming();
+        out.write(b);
+        bytesWritten++;
+        stopTiming(start);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        final long start = startTiming();
+        out.write(b, off, len);
+        bytesWritten += len;
+        stopTiming(start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        final long start = startTiming();
+        out.flush();
+        stopTiming(start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        final long start = startTiming();
+        try {
+            out.close();
+        } finally {
+            stopTiming(start);
+        }
+    }
+
+    private long startTiming() {
+        return timed ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    private void stopTiming(final long start) {
+        if (timed) {
+            cpuNanos += THREADS.getCurrentThreadCpuTime() - start;
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the CPU time spent in the underlying stream, or 0 if it is not
+     * timed
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+}
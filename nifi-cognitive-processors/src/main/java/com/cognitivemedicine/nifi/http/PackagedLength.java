@@ -0,0 +1,132 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.nifi.util.FlowFilePackager;
+import org.apache.nifi.util.FlowFilePackagerV1;
+import org.apache.nifi.util.FlowFilePackagerV2;
+import org.apache.nifi.util.FlowFilePackagerV3;
+
+/**
+ * Works out how many bytes a {@link FlowFilePackager} writes for a FlowFile
+ * without reading its content, so that an uncompressed body can be streamed
+ * with an exact Content-Length rather than buffered to find it out.
+ * <p>
+ * Versions 2 and 3 frame the content with the attributes and its size, so
+ * their length is worked out from those. Version 1 is a tar archive, whose
+ * attributes entry and padding are easier to get right by packaging a
+ * stand-in for the content that only counts the bytes asked of it.
+ */
+final class PackagedLength {
+
+    private static final int MAX_VALUE_2_BYTES = 65535;
+
+    private PackagedLength() {
+    }
+
+    /**
+     * @param packager the packager the FlowFile is sent with, or null if its
+     * content is sent as is
+     * @param attributes the attributes handed to the packager
+     * @param size the size of the content of the FlowFile
+     * @return the number of bytes the packager writes
+     */
+    public static long of(final FlowFilePackager packager, final Map<String, String> attributes, final long size) throws IOException {
+        if (packager == null) {
+            return size;
+        } else if (packager instanceof FlowFilePackagerV3) {
+            return FlowFilePackagerV3.MAGIC_HEADER.length + getFramedLength(attributes, size);
+        } else if (packager instanceof FlowFilePackagerV2) {
+            return getFramedLength(attributes, size);
+        } else if (packager instanceof FlowFilePackagerV1) {
+            final MeteredOutputStream out = MeteredOutputStream.discarding();
+            packager.packageFlowFile(new ContentStandIn(size), out, attributes, size);
+            return out.getBytesWritten();
+        }
+        throw new IllegalArgumentException("Unknown FlowFile packager " + packager.getClass().getName());
+    }
+
+    private static long getFramedLength(final Map<String, String> attributes, final long size) {
+        long length = 0L;
+        if (attributes == null) {
+            length += getFieldLengthLength(0);
+        } else {
+            length += getFieldLengthLength(attributes.size());
+            for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+                length += getStringLength(entry.getKey());
+                length += getStringLength(entry.getValue());
+            }
+        }
+        // the content is preceded by its size as a long
+        return length + 8L + size;
+    }
+
+    private static long getStringLength(final String value) {
+        final int bytes = value.getBytes(StandardCharsets.UTF_8).length;
+        return getFieldLengthLength(bytes) + bytes;
+    }
+
+    private static int getFieldLengthLength(final int value) {
+        // lengths that do not fit in 2 bytes are flagged by 0xFFFF and followed by an int
+        return (value < MAX_VALUE_2_BYTES) ? 2 : 6;
+    }
+
+    /**
+     * Stands in for content of the given size, without filling in the bytes.
+     */
+    private static class ContentStandIn extends InputStream {
+
+        private long remaining;
+
+        public ContentStandIn(final long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(len, remaining);
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long count = Math.max(0L, Math.min(n, remaining));
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses what is written to it in blocks of {@link #BLOCK_SIZE} bytes,
+ * each compressed on its own on a pool of threads, the way pigz does, and
+ * writes the compressed blocks to the underlying stream in the order they
+ * were written. Each block becomes a gzip member or zstd frame of its own, so
+ * the output is a valid stream of the codec, which any decoder reads back as
+ * one; the price is a slightly worse ratio, as no block can refer back to the
+ * data of the one before.
+ * <p>
+ * At most the given number of blocks are being compressed or waiting to be
+ * written at any time, which bounds the memory used and makes a writer that
+ * outpaces the pool wait for it.
+ */
+class ParallelCompressionOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final OutputStream out;
+    private final CompressionCodec codec;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final AtomicLong workerCpuNanos = new AtomicLong();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private boolean written;
+    private boolean closed;
+
+    /**
+     * @param codec a codec that supports block compression
+     * @param maxPendingBlocks how many blocks may be compressed or wait to be
+     * written at once
+     */
+    public ParallelCompressionOutputStream(final OutputStream out, final CompressionCodec codec, final int level, final ExecutorService executor,
+            final int maxPendingBlocks) {
+        this.out = out;
+        this.codec = codec;
+        this.level = level;
+        this.executor = executor;
+        this.maxPendingBlocks = maxPendingBlocks;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == block.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == block.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the data written so far, ending the current block early, and
+     * flushes it to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // an empty stream still needs a member or frame to be valid
+            if (blockLength > 0 || !written) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeNextBlock();
+            }
+        } finally {
+            for (final Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    /**
+     * @return the CPU time the pool has spent compressing the blocks of this
+     * stream
+     */
+    public long getWorkerCpuNanos() {
+        return workerCpuNanos.get();
+    }
+
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+
+        final byte[] toCompress = block;
+        final int length = blockLength;
+        final Callable<byte[]> compression = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                final boolean timed = THREADS.isCurrentThreadCpuTimeSupported();
+                final long start = timed ? THREADS.getCurrentThreadCpuTime() : 0L;
+                try {
+                    return codec.compressBlock(toCompress, length, level);
+                } finally {
+                    if (timed) {
+                        workerCpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime() - start);
+                    }
+                }
+            }
+        };
+
+        try {
+            pending.add(executor.submit(compression));
+        } catch (final RejectedExecutionException e) {
+            throw new IOException("Compression pool is no longer running", e);
+        }
+        written = true;
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    private void writeNextBlock() throws IOException {
+        final Future<byte[]> future = pending.poll();
+        try {
+            out.write(future.get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block to be compressed");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException("Failed to compress a block", cause);
+        }
+    }
+}
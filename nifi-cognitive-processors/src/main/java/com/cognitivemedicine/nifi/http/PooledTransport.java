@@ -0,0 +1,151 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Fans the requests of the "fan-out" HTTP Engine out over the blocking client
+ * of a {@link Config}, so that they go over its pooled connections: each
+ * request is sent and its response read by a worker thread of its own, and
+ * the task that submitted it routes its FlowFiles once it completes, like
+ * with the asynchronous engines.
+ */
+final class PooledTransport implements AsyncTransport {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final CloseableHttpClient client;
+    private final ExecutorService workers;
+    private final long maxResponseSize;
+    private final ResponseBuffer.Factory responseBuffers;
+
+    /**
+     * @param client the client to send requests with; it is left open when
+     * this transport is closed, as its connections belong to the Config
+     * @param workers the threads that send the requests, one request at a
+     * time each; they are shut down when this transport is closed
+     * @param maxResponseSize the max number of bytes of a response body; a
+     * larger response fails the request as soon as its size is known
+     * @param responseBuffers creates the buffers that hold response bodies
+     */
+    PooledTransport(final CloseableHttpClient client, final ExecutorService workers, final long maxResponseSize,
+            final ResponseBuffer.Factory responseBuffers) {
+        this.client = client;
+        this.workers = workers;
+        this.maxResponseSize = maxResponseSize;
+        this.responseBuffers = responseBuffers;
+    }
+
+    @Override
+    public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context, final FutureCallback<HttpResponse> callback) {
+        final BasicFuture<HttpResponse> result = new BasicFuture<HttpResponse>(callback) {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                // a request under way fails on its worker as soon as its connection is shut
+                request.abort();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    final HttpResponse response;
+                    try {
+                        response = send(request, context);
+                    } catch (final IOException | RuntimeException e) {
+                        result.failed(e);
+                        return;
+                    }
+                    if (!result.completed(response)) {
+                        // cancelled meanwhile; nobody is going to read it
+                        EntityUtils.consumeQuietly(response.getEntity());
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.failed(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the given request and reads its response into a buffer, handing
+     * the connection back to the pool.
+     */
+    private HttpResponse send(final HttpUriRequest request, final HttpContext context) throws IOException {
+        try (final CloseableHttpResponse response = client.execute(request, context)) {
+            final BasicHttpResponse buffered = new BasicHttpResponse(response.getStatusLine());
+            buffered.setHeaders(response.getAllHeaders());
+
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                MaxSizeEntity.checkLength(entity.getContentLength(), maxResponseSize);
+                final ResponseBuffer buffer = responseBuffers.newBuffer();
+                final AbstractHttpEntity body;
+                try (final InputStream in = entity.getContent()) {
+                    final byte[] chunk = new byte[CHUNK_SIZE];
+                    int count;
+                    while ((count = in.read(chunk)) >= 0) {
+                        buffer.write(ByteBuffer.wrap(chunk, 0, count));
+                        MaxSizeEntity.checkLength(buffer.length(), maxResponseSize);
+                    }
+                    body = buffer.toEntity();
+                } catch (final IOException | RuntimeException e) {
+                    buffer.discard();
+                    throw e;
+                }
+                body.setContentType(entity.getContentType());
+                body.setContentEncoding(entity.getContentEncoding());
+                buffered.setEntity(body);
+            }
+            return buffered;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
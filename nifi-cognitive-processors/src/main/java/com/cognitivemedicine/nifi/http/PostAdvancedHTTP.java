@@ -15,40 +15,51 @@
  */
 package com.cognitivemedicine.nifi.http;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
-import javax.security.cert.X509Certificate;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.Header;
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
@@ -61,20 +72,21 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpCoreContext;
 import org.apache.http.util.EntityUtils;
@@ -86,6 +98,7 @@ import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ProcessorLog;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -101,7 +114,6 @@ import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.ssl.SSLContextService;
 import org.apache.nifi.stream.io.BufferedInputStream;
 import org.apache.nifi.stream.io.BufferedOutputStream;
-import org.apache.nifi.stream.io.GZIPOutputStream;
 import org.apache.nifi.stream.io.LeakyBucketStreamThrottler;
 import org.apache.nifi.stream.io.StreamThrottler;
 import org.apache.nifi.stream.io.StreamUtils;
@@ -113,6 +125,8 @@ import org.apache.nifi.util.FormatUtils;
 import org.apache.nifi.util.ObjectHolder;
 import org.apache.nifi.util.StopWatch;
 
+import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.JsonPath;
 import com.sun.jersey.api.client.ClientResponse.Status;
 import org.apache.nifi.components.PropertyValue;
 import org.apache.nifi.components.Validator;
@@ -143,13 +157,36 @@ public class PostAdvancedHTTP extends AbstractProcessor {
     public static final String LOCATION_URI_INTENT_NAME = "x-location-uri-intent";
     public static final String LOCATION_URI_INTENT_VALUE = "flowfile-hold";
     public static final String GZIPPED_HEADER = "flowfile-gzipped";
+    public static final String CODEC_HEADER = "flowfile-codec";
+    public static final String DICTIONARY_HEADER = "flowfile-dictionary";
+    public static final String DICTIONARIES_HEADER = "flowfile-dictionaries";
+    public static final String APPLICATION_ZSTD_DICTIONARY = "application/x-zstd-dictionary";
     public static final String DESTINATION_IGNORE = "ignore";
     public static final String DESTINATION_ATTRIBUTE = "flowfile-attribute";
     public static final String DESTINATION_CONTENT = "flowfile-content";
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_ASYNC = "async";
+    public static final String ENGINE_HTTP2 = "http2";
+    public static final String ENGINE_FAN_OUT = "fan-out";
+    public static final String AGGREGATION_NONE = "none";
 
     public static final String PROTOCOL_VERSION_HEADER = "x-nifi-transfer-protocol-version";
     public static final String TRANSACTION_ID_HEADER = "x-nifi-transaction-id";
     public static final String PROTOCOL_VERSION = "3";
+    public static final String RESPONSE_TRUNCATED_ATTRIBUTE = "response.truncated";
+    public static final String JSONPATH_SKIPPED_ATTRIBUTE = "jsonpath.skipped";
+
+    private static final int METERED_BUFFER_SIZE = 65536;
+    private static final int TRIAL_SIZE = 16384;
+    private static final long MIN_LINGER_POLL_MILLIS = 10L;
+    private static final long MAX_LINGER_POLL_MILLIS = 100L;
+
+    /**
+     * Number of FlowFiles a poll of the incoming queue passes over before it
+     * gives up, so that a long queue of FlowFiles waiting for a retry is not
+     * scanned in full on every poll.
+     */
+    static final int MAX_POLL_REJECTS = 1000;
 
     public static final PropertyDescriptor URL = new PropertyDescriptor.Builder()
             .name("URL")
@@ -158,6 +195,66 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("https?\\://.*")))
             .expressionLanguageSupported(true)
             .build();
+    public static final PropertyDescriptor ENDPOINTS = new PropertyDescriptor.Builder()
+            .name("Endpoints")
+            .description("A comma-separated list of base URLs (scheme, host and port) to spread the POSTs over, such as the nodes of a receiving "
+                    + "cluster. If set, the base of the URL is replaced by the endpoint picked for each batch, while its path is kept. Each endpoint "
+                    + "has a connection pool, negotiated capabilities, limits and health of its own. If not specified, the URL is posted to as is")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor ENDPOINT_SELECTION = new PropertyDescriptor.Builder()
+            .name("Endpoint Selection")
+            .description("If Endpoints is set, how the endpoint of each batch is picked among the ones that have not been ejected: each in turn "
+                    + "(round-robin), the one with the fewest requests outstanding from this processor (least-outstanding-requests), or at random "
+                    + "with odds inversely proportional to the moving average of its latency (latency-weighted)")
+            .required(true)
+            .allowableValues(EndpointSelector.Policy.ROUND_ROBIN.getValue(), EndpointSelector.Policy.LEAST_OUTSTANDING_REQUESTS.getValue(),
+                    EndpointSelector.Policy.LATENCY_WEIGHTED.getValue())
+            .defaultValue(EndpointSelector.Policy.ROUND_ROBIN.getValue())
+            .build();
+    public static final PropertyDescriptor ENDPOINT_EJECTION_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Endpoint Ejection Threshold")
+            .description("If Endpoints is set, the number of requests in a row that must fail, by error or 5xx response, for an endpoint to be "
+                    + "ejected: no batch is sent to it for the Endpoint Ejection Duration. Once that has elapsed it is tried again, and ejected again "
+                    + "as soon as a request to it fails unless one succeeds first. If every endpoint is ejected, they are all used anyway")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("3")
+            .build();
+    public static final PropertyDescriptor ENDPOINT_EJECTION_DURATION = new PropertyDescriptor.Builder()
+            .name("Endpoint Ejection Duration")
+            .description("If Endpoints is set, how long an endpoint that keeps failing is left out before it is tried again")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 secs")
+            .build();
+    public static final PropertyDescriptor HEDGE_DELAY_PERCENTILE = new PropertyDescriptor.Builder()
+            .name("Hedge Delay Percentile")
+            .description("If set, a POST that has not been answered once this percentile of the latencies of recent requests has elapsed is also "
+                    + "sent to another endpoint; whichever is answered first is used and the other one is cancelled. Only enable this for "
+                    + "destinations where posting the same data twice is harmless. Hedging only takes effect with two or more Endpoints and an "
+                    + "HTTP Engine other than blocking. If not specified, requests are never hedged")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(1, 99, true))
+            .build();
+    public static final PropertyDescriptor MIN_HEDGE_DELAY = new PropertyDescriptor.Builder()
+            .name("Min Hedge Delay")
+            .description("If Hedge Delay Percentile is set, the shortest time a POST is given before it is hedged. It is also the delay used until "
+                    + "enough requests have been answered for the percentile to be known")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("50 millis")
+            .build();
+    public static final PropertyDescriptor HEDGE_BUDGET = new PropertyDescriptor.Builder()
+            .name("Hedge Budget")
+            .description("If Hedge Delay Percentile is set, the percentage of the requests sent by all tasks that may be hedged. Every request sent "
+                    + "earns that share of a hedge and every hedge spends one, from a budget that starts at, and never holds more than, 5 hedges; once "
+                    + "it is used up, slow requests are left to complete on their own")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .defaultValue("5")
+            .build();
     public static final PropertyDescriptor SEND_AS_FLOWFILE = new PropertyDescriptor.Builder()
             .name("Send as FlowFile")
             .description("If true, will package the FlowFile's contents and attributes together and send the FlowFile Package; otherwise, will send only the FlowFile's content")
@@ -165,6 +262,45 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .allowableValues("true", "false")
             .defaultValue("false")
             .build();
+    public static final PropertyDescriptor AGGREGATION = new PropertyDescriptor.Builder()
+            .name("Aggregation")
+            .description("If Send as FlowFile is false, how the content of several FlowFiles is packed into the body of a single POST: as the elements "
+                    + "of a JSON array, as the lines of newline-delimited JSON (each FlowFile must then hold a single JSON value on one line), or as the "
+                    + "parts of a multipart/mixed body. The response is expected in the same format and is split back into a result per FlowFile, "
+                    + "which is handled according to the Destination. If none, each FlowFile is sent on its own")
+            .required(true)
+            .allowableValues(AGGREGATION_NONE, Aggregation.JSON_ARRAY.getValue(), Aggregation.NDJSON.getValue(), Aggregation.MULTIPART_MIXED.getValue())
+            .defaultValue(AGGREGATION_NONE)
+            .build();
+    public static final PropertyDescriptor CORRELATION_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Correlation Attribute")
+            .description("If Aggregation is used, the FlowFile attribute that identifies the result of each FlowFile in the response. Multipart parts "
+                    + "are sent with it as their Content-ID. If not specified, the results are matched to the FlowFiles by their position")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor CORRELATION_JSON_PATH = new PropertyDescriptor.Builder()
+            .name("Correlation JsonPath")
+            .description("If a Correlation Attribute is specified, a JsonPath expression that selects the value of that attribute from each result of the "
+                    + "response. Required unless Aggregation is multipart-mixed, whose results are otherwise matched by their Content-ID")
+            .required(false)
+            .addValidator(JsonPathExtractor.VALIDATOR)
+            .build();
+    public static final PropertyDescriptor CAPABILITIES_TTL = new PropertyDescriptor.Builder()
+            .name("Destination Capabilities TTL")
+            .description("If Send as FlowFile is true, how long the FlowFile formats and compression that a destination accepts are trusted "
+                    + "before they are negotiated again. The negotiation happens in the background; batches keep going out as before meanwhile")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 min")
+            .build();
+    public static final PropertyDescriptor FAILED_NEGOTIATION_TTL = new PropertyDescriptor.Builder()
+            .name("Failed Negotiation TTL")
+            .description("How long to go by a negotiation that the destination did not answer properly before trying it again")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
     public static final PropertyDescriptor CONNECTION_TIMEOUT = new PropertyDescriptor.Builder()
             .name("Connection Timeout")
             .description("How long to wait when attempting to connect to the remote server before giving up")
@@ -200,11 +336,61 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .build();
     public static final PropertyDescriptor COMPRESSION_LEVEL = new PropertyDescriptor.Builder()
             .name("Compression Level")
-            .description("Determines the GZIP Compression Level to use when sending the file; the value must be in the range of 0-9. A value of 0 indicates that the file will not be GZIP'ed")
+            .description("Determines the Compression Level to use when sending the file; the value must be in the range of 0-9. A value of 0 indicates that the file will not be compressed")
             .required(true)
             .addValidator(StandardValidators.createLongValidator(0, 9, true))
             .defaultValue("0")
             .build();
+    public static final PropertyDescriptor COMPRESSION_CODEC = new PropertyDescriptor.Builder()
+            .name("Compression Codec")
+            .description("The codec to compress the file with if Compression Level is above 0. It is only used if the destination lists it in its "
+                    + "Accept-Encoding header; otherwise gzip is used if the destination accepts that, and nothing if not. gzip is signalled "
+                    + "with the " + GZIPPED_HEADER + " header, the other codecs with the " + CODEC_HEADER + " header. lz4 and snappy trade "
+                    + "ratio for far less CPU than gzip and have a single speed; zstd compresses about as well as gzip at a fraction of its cost")
+            .required(true)
+            .allowableValues(CompressionCodec.GZIP.getEncoding(), CompressionCodec.ZSTD.getEncoding(),
+                    CompressionCodec.LZ4.getEncoding(), CompressionCodec.SNAPPY.getEncoding())
+            .defaultValue(CompressionCodec.GZIP.getEncoding())
+            .build();
+    public static final PropertyDescriptor COMPRESSION_DICTIONARY_SIZE = new PropertyDescriptor.Builder()
+            .name("Compression Dictionary Size")
+            .description("If set while Compression Codec is zstd, a dictionary of this size is learned from the content being sent, so that small "
+                    + "documents compress well one by one. A destination that lists dictionary IDs in the " + DICTIONARIES_HEADER + " header of its "
+                    + "answer to the HEAD request, even none at all, is sent the current dictionary with a PUT to the URL, unless it listed it; "
+                    + "content compressed with it carries its ID in the " + DICTIONARY_HEADER + " header. Other destinations get plain zstd")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor COMPRESSION_DICTIONARY_RETRAIN_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Compression Dictionary Retrain Interval")
+            .description("How long a compression dictionary is used before a new version is learned from fresh content; ignored if Compression "
+                    + "Dictionary Size is not set")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .build();
+    public static final PropertyDescriptor ADAPTIVE_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("Adaptive Compression")
+            .description("If true, each batch is only compressed if it is likely to pay off: batches of less than " + CompressionPolicy.MIN_SIZE
+                    + " bytes (unless compressed with a dictionary) and batches whose mime.type denotes compressed content, such as images or "
+                    + "archives, are sent as they are. The first batches to each destination are trial-compressed on a prefix; content that barely "
+                    + "compresses is then sent uncompressed, with a new trial now and then, and content that compresses poorly is compressed at "
+                    + "level 1 only. The ratio achieved and the CPU time spent compressing are reported as the counters "
+                    + "'Compression Ratio (%) for <base URL>' and 'Compression CPU Millis for <base URL>'. Ignored if Compression Level is 0")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor COMPRESSION_THREADS = new PropertyDescriptor.Builder()
+            .name("Compression Threads")
+            .description("If above 1, batches of more than " + (ParallelCompressionOutputStream.BLOCK_SIZE / 1024 / 1024) + " MB compressed with "
+                    + "gzip or zstd are split into blocks of that size, which are compressed in parallel on a pool of this many threads shared by "
+                    + "all tasks and sent in order as they complete. Each block becomes a gzip member or zstd frame of its own, which decoders read "
+                    + "back as one stream, at the cost of a slightly worse ratio. Not used with a compression dictionary")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
     public static final PropertyDescriptor ATTRIBUTES_AS_HEADERS_REGEX = new PropertyDescriptor.Builder()
             .name("Attributes to Send as HTTP Headers (Regex)")
             .description("Specifies the Regular Expression that determines the names of FlowFile attributes that should be sent as HTTP Headers")
@@ -217,6 +403,22 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .required(false)
             .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
             .build();
+    public static final PropertyDescriptor MAX_DESTINATION_REQUEST_RATE = new PropertyDescriptor.Builder()
+            .name("Max Requests per Second per Destination")
+            .description("The maximum number of POSTs sent to a single destination (scheme, host and port) per second, over all tasks. A batch whose "
+                    + "destination has used up its rate goes back to the queue and is not picked up again until the destination has tokens again, while "
+                    + "the FlowFiles for other destinations go on being sent. If not specified, the request rate is not limited")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_DESTINATION_DATA_RATE = new PropertyDescriptor.Builder()
+            .name("Max Data to Post per Second per Destination")
+            .description("The maximum amount of FlowFile content sent to a single destination per second, over all tasks, enforced like Max Requests "
+                    + "per Second per Destination. A batch larger than this goes out whenever the destination has not been sent anything for a second. "
+                    + "If not specified, the data rate of each destination is only limited by Max Data to Post per Second")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
     public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
             .name("Max Batch Size")
             .description("If the Send as FlowFile property is true, specifies the max data size for a batch of FlowFiles to send in a single HTTP POST. If not specified, each FlowFile will be sent separately. If the Send as FlowFile property is false, this property is ignored")
@@ -224,9 +426,44 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
             .defaultValue("100 MB")
             .build();
+    public static final PropertyDescriptor MAX_BATCH_COUNT = new PropertyDescriptor.Builder()
+            .name("Max Batch Count")
+            .description("If set, the most FlowFiles to send in a single HTTP POST, on top of Max Batch Size. Ignored under the same conditions as Max Batch Size")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_DESTINATION_BUCKETS = new PropertyDescriptor.Builder()
+            .name("Max Destination Buckets")
+            .description("If above 1 and URL depends on FlowFile attributes, a task pulls FlowFiles for up to this many different URLs at once, "
+                    + "grouping them by URL, and sends each group in batches of its own within the same session, concurrently with the async and "
+                    + "http2 engines. Otherwise a batch ends at the first FlowFile for another URL, which makes a queue that interleaves "
+                    + "destinations go out one FlowFile at a time")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor BATCH_LINGER = new PropertyDescriptor.Builder()
+            .name("Batch Linger")
+            .description("How long a task waits for more FlowFiles to arrive when the queue runs dry before a batch is full, counted from the first "
+                    + "FlowFile of the batch, so that at low rates FlowFiles go out in fewer, bigger batches at the cost of this much latency. "
+                    + "The task holds its thread while it waits")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("0 millis")
+            .build();
+    public static final PropertyDescriptor TARGET_BATCH_LATENCY = new PropertyDescriptor.Builder()
+            .name("Target Batch Latency")
+            .description("If set, the size of the batches sent to each destination adapts so that their POSTs take about this long: it starts at "
+                    + (BatchSizer.MIN_LIMIT / 1024) + " KB and follows the throughput the destination achieves, up to Max Batch Size. The current "
+                    + "limit is reported as the counter 'Batch Size Limit (KB) for <base URL>'")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
     public static final PropertyDescriptor CHUNKED_ENCODING = new PropertyDescriptor.Builder()
             .name("Use Chunked Encoding")
-            .description("Specifies whether or not to use Chunked Encoding to send the data. If false, the entire content of the FlowFile will be buffered into memory.")
+            .description("Specifies whether or not to use Chunked Encoding to send the data. If false, an uncompressed body is streamed with a "
+                    + "Content-Length worked out up front from the size of each FlowFile and its packaging, rather than buffered into memory; "
+                    + "a compressed body is still sent chunked, as its length is not known until it has been sent.")
             .required(true)
             .allowableValues("true", "false")
             .defaultValue("true")
@@ -238,6 +475,16 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .required(false)
             .identifiesControllerService(SSLContextService.class)
             .build();
+    public static final PropertyDescriptor TLS_PROTOCOLS = TlsSettings.TLS_PROTOCOLS;
+    public static final PropertyDescriptor TLS_CIPHER_SUITES = TlsSettings.TLS_CIPHER_SUITES;
+    public static final PropertyDescriptor CONNECTION_POOL_SERVICE = new PropertyDescriptor.Builder()
+            .name("Connection Pool Service")
+            .description("The Controller Service providing the connection pool to post through. If set, connections, and what each destination was found "
+                    + "to accept, are shared with every other processor using the same service, and the SSL Context Service of the pool service is used "
+                    + "instead of the one of this processor. The async and http2 HTTP Engines keep connections of their own")
+            .required(false)
+            .identifiesControllerService(HttpConnectionPoolService.class)
+            .build();
     public static final PropertyDescriptor DESTINATION = new PropertyDescriptor.Builder()
             .name("Destination")
             .description("Indicates whether the results of the HTTP Post are written to the FlowFile content, as a FlowFile attribute or ignored; if using attribute, must specify the Destination Name property. If set to flowfile-content the Destination Name property is ignored.")
@@ -251,15 +498,169 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+    public static final PropertyDescriptor MAX_RESPONSE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Response Size")
+            .description("Specifies the max size of a response body that is accepted. A larger response routes the FlowFiles it was sent for to failure, as soon as "
+                    + "its size is known, rather than being read any further. If the HTTP Engine is blocking, responses are only checked if Destination is "
+                    + "flowfile-attribute or flowfile-content. If not specified, there is no limit. The FlowFiles routed to failure because of it get "
+                    + "a 'response.truncated' attribute of 'true'")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_IN_MEMORY_RESPONSE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max In-Memory Response Size")
+            .description("The most bytes of a response body held in memory. With the async and http2 engines, which read a response before it is "
+                    + "handled, a larger body spills to a file in the Response Spill Directory and is streamed from there into the FlowFile content. "
+                    + "If Destination is flowfile-attribute, the attribute holds at most this many bytes of the response, and FlowFiles whose response "
+                    + "was cut short get a 'response.truncated' attribute of 'true'")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 MB")
+            .build();
+    public static final PropertyDescriptor RESPONSE_SPILL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Response Spill Directory")
+            .description("The directory under which responses larger than the Max In-Memory Response Size are spilled. The processor spills to a "
+                    + "subdirectory of its own, named after its identifier, and clears it whenever it is started or stopped. If not specified, "
+                    + "the temporary directory of the JVM is used")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+    public static final PropertyDescriptor HTTP_ENGINE = new PropertyDescriptor.Builder()
+            .name("HTTP Engine")
+            .description("Indicates how requests are sent. If blocking, each task sends one request at a time and waits for its response. If async, each task keeps "
+                    + "up to Max In-Flight Requests requests outstanding over a non-blocking client and routes the FlowFiles of each one as its response arrives; "
+                    + "in that case the body of each request is buffered into memory before it is sent. If http2, requests are sent like with async but are "
+                    + "multiplexed as streams over a single HTTP/2 connection per destination: h2 for https URLs and h2c (prior knowledge) for http URLs. "
+                    + "If fan-out, requests are sent like with async but each one goes over the pooled connections of the blocking client, on a worker "
+                    + "thread of its own; this suits destinations that only take one document per request.")
+            .required(true)
+            .allowableValues(ENGINE_BLOCKING, ENGINE_ASYNC, ENGINE_HTTP2, ENGINE_FAN_OUT)
+            .defaultValue(ENGINE_BLOCKING)
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Requests")
+            .description("If HTTP Engine is async, http2 or fan-out, specifies the maximum number of requests that a single task keeps outstanding at any time. If HTTP Engine is blocking, this property is ignored")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT_DATA = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Data")
+            .description("If HTTP Engine is async, http2 or fan-out, specifies how much request data a single task keeps in memory for its outstanding "
+                    + "requests, as their bodies are buffered before they are submitted; further batches wait for earlier ones to be answered. A batch "
+                    + "is always sent when the task has nothing else outstanding, however large. If HTTP Engine is blocking, this property is ignored")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 MB")
+            .build();
+    public static final PropertyDescriptor HOLD_RELEASE_WINDOW = new PropertyDescriptor.Builder()
+            .name("Hold Release Window")
+            .description("If HTTP Engine is blocking, specifies how many transactions a single task may have waiting for the release of their hold "
+                    + "while it goes on posting further batches; their FlowFiles are only routed once their hold is released. With a window of 1, "
+                    + "each batch waits for its hold to be released before the next one is posted. The other HTTP Engines already keep up to "
+                    + "Max In-Flight Requests transactions outstanding, so they ignore this property")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor MAX_CONCURRENT_STREAMS = new PropertyDescriptor.Builder()
+            .name("Max Concurrent Streams")
+            .description("If HTTP Engine is http2, specifies the maximum number of streams that all tasks together keep open against a single destination; "
+                    + "further requests wait for a stream to complete for up to the Data Timeout, after which their FlowFiles go back to the queue. "
+                    + "Otherwise, this property is ignored")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+    public static final PropertyDescriptor ADAPTIVE_CONCURRENCY = new PropertyDescriptor.Builder()
+            .name("Adaptive Concurrency")
+            .description("If true, the number of requests outstanding against each destination is limited, and the limit adapts to how the destination "
+                    + "copes: it backs off when requests fail, are answered with 503 or 429, or take much longer than usual, and grows back as the "
+                    + "destination recovers, up to the number of concurrent tasks (times Max In-Flight Requests for the async and http2 engines). A 503 "
+                    + "then no longer yields the processor. The current limit and latency of each destination are reported as the counters "
+                    + "'Concurrency Limit for <base URL>' and 'Latency Millis for <base URL>'")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Failure Threshold")
+            .description("The number of requests in a row that must fail, by not getting through or being answered with a 5xx status code, for the "
+                    + "circuit of a destination to open. While it is open, FlowFiles for that destination are routed to circuit-open right away, "
+                    + "without contacting it. If not specified, there is no circuit breaker and the circuit-open relationship does not exist")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Open Duration")
+            .description("How long the circuit of a destination stays open before probe requests are sent to find out whether it has recovered")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+    public static final PropertyDescriptor CIRCUIT_BREAKER_PROBE_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Probe Requests")
+            .description("The number of probe requests let through once the Circuit Breaker Open Duration has elapsed; the circuit closes again "
+                    + "once they all succeed, and opens again as soon as one of them fails")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor MAX_RETRIES = new PropertyDescriptor.Builder()
+            .name("Max Retries")
+            .description("The number of times a POST, or the DELETE that releases its hold, is tried again after it could not get through or was "
+                    + "answered with 429 or a 5xx status code. The FlowFiles are sent back to the incoming queue and are not picked up again until "
+                    + "their backoff has elapsed; the attribute " + RetryPolicy.RETRY_COUNT_ATTRIBUTE + " tells how many times they were tried again. "
+                    + "Note that a POST that is tried again may be delivered twice")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("3")
+            .build();
+    public static final PropertyDescriptor RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Retry Backoff")
+            .description("How long to wait before the first retry; the wait doubles with every further retry, and half of it is random")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 sec")
+            .build();
+    public static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Max Retry Backoff")
+            .description("The longest wait before a retry")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .build();
+    public static final PropertyDescriptor RETRY_BUDGET = new PropertyDescriptor.Builder()
+            .name("Retry Budget")
+            .description("The percentage of the requests sent by all tasks that may be retries. Every request sent earns that share of a retry and "
+                    + "every retry spends one, from a budget that starts at, and never holds more than, 10 retries; once it is used up, failed requests "
+                    + "are routed to failure rather than tried again")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .defaultValue("20")
+            .build();
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success").description("Files that are successfully send will be transferred to success").build();
     public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure").description("Files that fail to send will transferred to failure").build();
+    public static final Relationship REL_CIRCUIT_OPEN = new Relationship.Builder().name("circuit-open")
+            .description("Files that were not sent because the circuit of their destination is open; only exists if Circuit Breaker Failure Threshold is set").build();
 
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships;
     private List<PropertyDescriptor> properties;
 
     private final AtomicReference<DestinationAccepts> acceptsRef = new AtomicReference<>();
     private final AtomicReference<StreamThrottler> throttlerRef = new AtomicReference<>();
+    private volatile RetryPolicy retryPolicy;
+    private volatile ExecutorService negotiator;
+    private volatile ExecutorService compressor;
+    private volatile DictionaryTrainer dictionaryTrainer;
+    private volatile ResponseBuffer.Factory responseBuffers;
+    private volatile JsonPathExtractor jsonPathExtractor;
+    private volatile JsonPath correlationPath;
+    private volatile List<String> endpoints;
+    private volatile EndpointSelector endpointSelector;
+    private volatile HedgingPolicy hedgingPolicy;
+    private volatile ScheduledExecutorService hedger;
     private final ConcurrentMap<String, Config> configMap = new ConcurrentHashMap<>();
 
     @Override
@@ -270,20 +671,62 @@ public class PostAdvancedHTTP extends AbstractProcessor {
         this.relationships = Collections.unmodifiableSet(relationships);
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(URL);
+        properties.add(ENDPOINTS);
+        properties.add(ENDPOINT_SELECTION);
+        properties.add(ENDPOINT_EJECTION_THRESHOLD);
+        properties.add(ENDPOINT_EJECTION_DURATION);
+        properties.add(HEDGE_DELAY_PERCENTILE);
+        properties.add(MIN_HEDGE_DELAY);
+        properties.add(HEDGE_BUDGET);
         properties.add(DESTINATION);
         properties.add(DESTINATION_NAME);
         properties.add(MAX_BATCH_SIZE);
+        properties.add(MAX_BATCH_COUNT);
+        properties.add(MAX_DESTINATION_BUCKETS);
+        properties.add(BATCH_LINGER);
+        properties.add(TARGET_BATCH_LATENCY);
         properties.add(MAX_DATA_RATE);
+        properties.add(MAX_DESTINATION_REQUEST_RATE);
+        properties.add(MAX_DESTINATION_DATA_RATE);
         properties.add(SSL_CONTEXT_SERVICE);
+        properties.add(TLS_PROTOCOLS);
+        properties.add(TLS_CIPHER_SUITES);
+        properties.add(CONNECTION_POOL_SERVICE);
         properties.add(USERNAME);
         properties.add(PASSWORD);
         properties.add(SEND_AS_FLOWFILE);
+        properties.add(AGGREGATION);
+        properties.add(CORRELATION_ATTRIBUTE);
+        properties.add(CORRELATION_JSON_PATH);
+        properties.add(CAPABILITIES_TTL);
+        properties.add(FAILED_NEGOTIATION_TTL);
         properties.add(CHUNKED_ENCODING);
         properties.add(COMPRESSION_LEVEL);
+        properties.add(COMPRESSION_CODEC);
+        properties.add(COMPRESSION_DICTIONARY_SIZE);
+        properties.add(COMPRESSION_DICTIONARY_RETRAIN_INTERVAL);
+        properties.add(ADAPTIVE_COMPRESSION);
+        properties.add(COMPRESSION_THREADS);
         properties.add(CONNECTION_TIMEOUT);
         properties.add(DATA_TIMEOUT);
         properties.add(ATTRIBUTES_AS_HEADERS_REGEX);
         properties.add(USER_AGENT);
+        properties.add(MAX_RESPONSE_SIZE);
+        properties.add(MAX_IN_MEMORY_RESPONSE_SIZE);
+        properties.add(RESPONSE_SPILL_DIRECTORY);
+        properties.add(HTTP_ENGINE);
+        properties.add(MAX_IN_FLIGHT_REQUESTS);
+        properties.add(MAX_IN_FLIGHT_DATA);
+        properties.add(HOLD_RELEASE_WINDOW);
+        properties.add(MAX_CONCURRENT_STREAMS);
+        properties.add(ADAPTIVE_CONCURRENCY);
+        properties.add(CIRCUIT_BREAKER_THRESHOLD);
+        properties.add(CIRCUIT_BREAKER_OPEN_DURATION);
+        properties.add(CIRCUIT_BREAKER_PROBE_REQUESTS);
+        properties.add(MAX_RETRIES);
+        properties.add(RETRY_BACKOFF);
+        properties.add(MAX_RETRY_BACKOFF);
+        properties.add(RETRY_BUDGET);
         this.properties = Collections.unmodifiableList(properties);
     }
 
@@ -297,17 +740,65 @@ public class PostAdvancedHTTP extends AbstractProcessor {
         return properties;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .description("A JsonPath expression evaluated against the response of each successful POST; its result is written to the attribute "
+                        + "named after this property of every FlowFile the POST was sent for, whatever the Destination. Expressions that do not match leave "
+                        + "their attribute unset. Only responses no larger than the Max In-Memory Response Size are evaluated; the FlowFiles sent for a "
+                        + "larger one get a 'jsonpath.skipped' attribute of 'true' instead")
+                .expressionLanguageSupported(false)
+                .required(false)
+                .addValidator(JsonPathExtractor.VALIDATOR)
+                .dynamic(true)
+                .build();
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (descriptor.equals(CIRCUIT_BREAKER_THRESHOLD)) {
+            final Set<Relationship> relationships = new HashSet<>(this.relationships);
+            if (newValue == null) {
+                relationships.remove(REL_CIRCUIT_OPEN);
+            } else {
+                relationships.add(REL_CIRCUIT_OPEN);
+            }
+            this.relationships = Collections.unmodifiableSet(relationships);
+        }
+    }
+
     @Override
     protected Collection<ValidationResult> customValidate(final ValidationContext context) {
         final Collection<ValidationResult> results = new ArrayList<>();
 
-        if (context.getProperty(URL).getValue().startsWith("https") && context.getProperty(SSL_CONTEXT_SERVICE).getValue() == null) {
+        if (context.getProperty(URL).getValue().startsWith("https") && context.getProperty(SSL_CONTEXT_SERVICE).getValue() == null
+                && context.getProperty(CONNECTION_POOL_SERVICE).getValue() == null) {
             results.add(new ValidationResult.Builder()
                     .explanation("URL is set to HTTPS protocol but no SSLContext has been specified")
                     .valid(false)
                     .subject("SSL Context")
                     .build());
         }
+
+        if (context.getProperty(ENDPOINTS).isSet()) {
+            for (final String endpoint : EndpointSelector.parseEndpoints(context.getProperty(ENDPOINTS).getValue())) {
+                if (!endpoint.matches("https?\\://[^/]+")) {
+                    results.add(new ValidationResult.Builder()
+                            .explanation(endpoint + " is not a base URL made of a scheme, host and port")
+                            .valid(false)
+                            .subject(ENDPOINTS.getName())
+                            .build());
+                } else if (endpoint.startsWith("https") && context.getProperty(SSL_CONTEXT_SERVICE).getValue() == null
+                        && context.getProperty(CONNECTION_POOL_SERVICE).getValue() == null) {
+                    results.add(new ValidationResult.Builder()
+                            .explanation("Endpoint " + endpoint + " uses HTTPS but no SSLContext has been specified")
+                            .valid(false)
+                            .subject("SSL Context")
+                            .build());
+                }
+            }
+        }
         
         if (context.getProperty(DESTINATION).getValue().equals(DESTINATION_ATTRIBUTE) && !context.getProperty(DESTINATION_NAME).isSet()){
             results.add(new ValidationResult.Builder()
@@ -317,6 +808,16 @@ public class PostAdvancedHTTP extends AbstractProcessor {
                     .build());
         }
 
+        if (context.getProperty(CORRELATION_ATTRIBUTE).isSet() && !context.getProperty(CORRELATION_JSON_PATH).isSet()
+                && !context.getProperty(AGGREGATION).getValue().equals(Aggregation.MULTIPART_MIXED.getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .explanation(CORRELATION_ATTRIBUTE.getName() + " is set but " + CORRELATION_JSON_PATH.getName() + " is not, and Aggregation is not "
+                            + Aggregation.MULTIPART_MIXED.getValue())
+                    .valid(false)
+                    .subject("Correlation")
+                    .build());
+        }
+
         return results;
     }
 
@@ -324,18 +825,178 @@ public class PostAdvancedHTTP extends AbstractProcessor {
     public void onStopped() {
         this.acceptsRef.set(null);
 
+        if (negotiator != null) {
+            negotiator.shutdownNow();
+            negotiator = null;
+        }
+        if (compressor != null) {
+            compressor.shutdownNow();
+            compressor = null;
+        }
+        if (hedger != null) {
+            hedger.shutdownNow();
+            hedger = null;
+        }
+
         for (final Map.Entry<String, Config> entry : configMap.entrySet()) {
             final Config config = entry.getValue();
-            config.getConnectionManager().shutdown();
+            config.shutdown();
         }
 
         configMap.clear();
+
+        if (responseBuffers != null) {
+            clearSpilledResponses(responseBuffers);
+            responseBuffers = null;
+        }
     }
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
         final Double bytesPerSecond = context.getProperty(MAX_DATA_RATE).asDataSize(DataUnit.B);
         this.throttlerRef.set(bytesPerSecond == null ? null : new LeakyBucketStreamThrottler(bytesPerSecond.intValue()));
+        this.retryPolicy = new RetryPolicy(context.getProperty(MAX_RETRIES).asInteger(),
+                context.getProperty(RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(MAX_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(RETRY_BUDGET).asInteger() / 100.0);
+
+        final Double dictionarySize = context.getProperty(COMPRESSION_DICTIONARY_SIZE).asDataSize(DataUnit.B);
+        if (dictionarySize != null && context.getProperty(COMPRESSION_LEVEL).asInteger() > 0
+                && CompressionCodec.ZSTD.getEncoding().equals(context.getProperty(COMPRESSION_CODEC).getValue())) {
+            this.dictionaryTrainer = new DictionaryTrainer(dictionarySize.intValue(),
+                    context.getProperty(COMPRESSION_DICTIONARY_RETRAIN_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+        } else {
+            this.dictionaryTrainer = null;
+        }
+
+        // the negotiator also trains the compression dictionaries
+        negotiator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "PostAdvancedHTTP Negotiator " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final String spillDirectory = context.getProperty(RESPONSE_SPILL_DIRECTORY).getValue();
+        responseBuffers = new ResponseBuffer.Factory(
+                Paths.get(spillDirectory == null ? System.getProperty("java.io.tmpdir") : spillDirectory, "PostAdvancedHTTP-" + getIdentifier()),
+                context.getProperty(MAX_IN_MEMORY_RESPONSE_SIZE).asDataSize(DataUnit.B).longValue());
+        // whatever a previous run left behind can no longer be read
+        clearSpilledResponses(responseBuffers);
+
+        final Map<String, String> jsonPaths = new LinkedHashMap<>();
+        for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (entry.getKey().isDynamic()) {
+                jsonPaths.put(entry.getKey().getName(), entry.getValue());
+            }
+        }
+        this.jsonPathExtractor = jsonPaths.isEmpty() ? null : new JsonPathExtractor(jsonPaths);
+        final String correlationJsonPath = context.getProperty(CORRELATION_JSON_PATH).getValue();
+        this.correlationPath = (correlationJsonPath == null) ? null : JsonPath.compile(correlationJsonPath);
+        final String endpointList = context.getProperty(ENDPOINTS).getValue();
+        this.endpoints = (endpointList == null) ? null : EndpointSelector.parseEndpoints(endpointList);
+        this.endpointSelector = new EndpointSelector(EndpointSelector.Policy.forValue(context.getProperty(ENDPOINT_SELECTION).getValue()));
+
+        final Integer hedgePercentile = context.getProperty(HEDGE_DELAY_PERCENTILE).asInteger();
+        if (hedgePercentile != null && endpoints != null && endpoints.size() > 1
+                && !ENGINE_BLOCKING.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            this.hedgingPolicy = new HedgingPolicy(hedgePercentile, context.getProperty(MIN_HEDGE_DELAY).asTimePeriod(TimeUnit.MILLISECONDS),
+                    context.getProperty(HEDGE_BUDGET).asInteger() / 100.0);
+            final ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "PostAdvancedHTTP Hedger " + getIdentifier());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // most requests are answered before their hedge is due
+            timers.setRemoveOnCancelPolicy(true);
+            hedger = timers;
+        } else {
+            this.hedgingPolicy = null;
+        }
+
+        final int compressionThreads = context.getProperty(COMPRESSION_THREADS).asInteger();
+        if (compressionThreads > 1 && context.getProperty(COMPRESSION_LEVEL).asInteger() > 0) {
+            compressor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "PostAdvancedHTTP Compressor " + getIdentifier() + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        // with a static URL, the first batch need not wait for the HEAD request
+        final String rawUrl = context.getProperties().get(URL);
+        if (context.getProperty(SEND_AS_FLOWFILE).asBoolean() && !rawUrl.contains("${")) {
+            final String staticUrl = context.getProperty(URL).evaluateAttributeExpressions().getValue();
+            for (final String url : getEndpointUrls(staticUrl)) {
+                try {
+                    final Config config = getConfig(url, context);
+                    if (config.claimNegotiation(0L)) {
+                        negotiateInBackground(context, config, url);
+                    }
+                } catch (final ProcessException e) {
+                    getLogger().warn("Unable to negotiate with {} ahead of the first batch due to {}", new Object[]{url, e});
+                }
+            }
+        }
+    }
+
+    /**
+     * Negotiates the capabilities of the given destination on the negotiator
+     * thread, after {@link Config#claimNegotiation(long)} returned true.
+     */
+    private void negotiateInBackground(final ProcessContext context, final Config config, final String url) {
+        final long retryMillis = context.getProperty(FAILED_NEGOTIATION_TTL).asTimePeriod(TimeUnit.MILLISECONDS);
+        final ExecutorService negotiator = this.negotiator;
+        if (negotiator == null) {
+            config.negotiated(null, retryMillis);
+            return;
+        }
+
+        final CloseableHttpClient client = createClient(context, config, new ObjectHolder<>("none"));
+        try {
+            negotiator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DestinationAccepts accepts = null;
+                    try {
+                        accepts = getDestinationAcceptance(client, url, getLogger(), UUID.randomUUID().toString());
+                    } catch (final IOException e) {
+                        getLogger().warn("Unable to communicate with destination {} to determine whether or not it can accept flowfiles/gzip due to {}; "
+                                + "will try again in {} milliseconds", new Object[]{url, e, retryMillis});
+                    } finally {
+                        config.negotiated(accepts, retryMillis);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // stopped in the meantime
+            config.negotiated(null, retryMillis);
+        }
+    }
+
+    /**
+     * @return the Config of the given base URL, or null if it has not been
+     * posted to in the current run
+     */
+    Config getEndpointConfig(final String baseUrl) {
+        return configMap.get(baseUrl);
+    }
+
+    /**
+     * @return the compression dictionary trainer of the current run, if any
+     */
+    DictionaryTrainer getDictionaryTrainer() {
+        return dictionaryTrainer;
     }
 
     private String getBaseUrl(final String url) {
@@ -354,255 +1015,1688 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             return config;
         }
 
+        final HttpConnectionPoolService poolService = context.getProperty(CONNECTION_POOL_SERVICE).asControllerService(HttpConnectionPoolService.class);
+        if (poolService != null) {
+            config = new Config(poolService, baseUrl);
+            final Config existingConfig = configMap.putIfAbsent(baseUrl, config);
+            return (existingConfig == null) ? config : existingConfig;
+        }
+
         final PoolingHttpClientConnectionManager conMan;
         final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
+        TlsSettings tlsSettings = null;
         if (sslContextService == null) {
             conMan = new PoolingHttpClientConnectionManager();
         } else {
-            final SSLContext sslContext;
             try {
-                sslContext = createSSLContext(sslContextService);
+                // the SSLContext is cached per service, so new destinations do not re-read the keystores
+                tlsSettings = TlsSettings.create(sslContextService, context.getProperty(TLS_PROTOCOLS).getValue(),
+                        context.getProperty(TLS_CIPHER_SUITES).getValue());
             } catch (final Exception e) {
                 throw new ProcessException(e);
             }
 
-            final SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext, new String[]{"TLSv1"}, null,
-                    SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
-
             final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                    .register("https", sslsf).build();
+                    .register("https", tlsSettings.createSocketFactory()).build();
 
             conMan = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
         }
 
-        conMan.setDefaultMaxPerRoute(context.getMaxConcurrentTasks());
-        conMan.setMaxTotal(context.getMaxConcurrentTasks());
-        config = new Config(conMan);
+        // fanning out, every task keeps up to Max In-Flight Requests connections busy at once
+        final int maxConnections = ENGINE_FAN_OUT.equals(context.getProperty(HTTP_ENGINE).getValue())
+                ? context.getMaxConcurrentTasks() * context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger() : context.getMaxConcurrentTasks();
+        conMan.setDefaultMaxPerRoute(maxConnections);
+        conMan.setMaxTotal(maxConnections);
+        config = new Config(conMan, tlsSettings);
         final Config existingConfig = configMap.putIfAbsent(baseUrl, config);
 
         return (existingConfig == null) ? config : existingConfig;
     }
 
-    private SSLContext createSSLContext(final SSLContextService service) throws KeyStoreException, IOException, NoSuchAlgorithmException,
-            CertificateException, KeyManagementException, UnrecoverableKeyException {
-        final KeyStore truststore = KeyStore.getInstance(service.getTrustStoreType());
-        try (final InputStream in = new FileInputStream(new File(service.getTrustStoreFile()))) {
-            truststore.load(in, service.getTrustStorePassword().toCharArray());
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        if (!ENGINE_BLOCKING.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            onTriggerAsync(context, session);
+            return;
         }
 
-        final KeyStore keystore = KeyStore.getInstance(service.getKeyStoreType());
-        try (final InputStream in = new FileInputStream(new File(service.getKeyStoreFile()))) {
-            keystore.load(in, service.getKeyStorePassword().toCharArray());
+        final RequestConfig requestConfig = createRequestConfig(context);
+        final int holdReleaseWindow = context.getProperty(HOLD_RELEASE_WINDOW).asInteger();
+        if (holdReleaseWindow > 1 || context.getProperty(MAX_DESTINATION_BUCKETS).asInteger() > 1) {
+            // several batches in one session: the pipelined loop routes each of them without rolling back the others
+            onTriggerPipelined(context, session, requestConfig, holdReleaseWindow);
+            return;
         }
 
-        SSLContext sslContext = SSLContexts.custom()
-                .loadTrustMaterial(truststore, new TrustSelfSignedStrategy())
-                .loadKeyMaterial(keystore, service.getKeyStorePassword().toCharArray())
-                .build();
+        final Batch batch = nextBatch(context, session, null);
+        if (batch == null) {
+            yieldIfWaiting(context, session);
+            return;
+        }
 
-        return sslContext;
+        postBatch(context, session, batch, requestConfig, null, null);
     }
 
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
-        final int compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
-        final String userAgent = context.getProperty(USER_AGENT).getValue();
-
-        final RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
-        requestConfigBuilder.setConnectionRequestTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
-        requestConfigBuilder.setConnectTimeout(context.getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
-        requestConfigBuilder.setRedirectsEnabled(false);
-        requestConfigBuilder.setSocketTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
-        final RequestConfig requestConfig = requestConfigBuilder.build();
-
-        final StreamThrottler throttler = throttlerRef.get();
-        final ProcessorLog logger = getLogger();
-
-        final Double maxBatchBytes = context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
-        String lastUrl = null;
-        long bytesToSend = 0L;
-
-        final List<FlowFile> toSend = new ArrayList<>();
-        DestinationAccepts destinationAccepts = null;
-        CloseableHttpClient client = null;
-        final String transactionId = UUID.randomUUID().toString();
+    /**
+     * Posts batch after batch through the blocking client, leaving the release
+     * of up to the given number of holds to the non-blocking client of their
+     * destination meanwhile. The FlowFiles of a batch are routed once its hold
+     * is released, so none of them is committed before then.
+     */
+    private void onTriggerPipelined(final ProcessContext context, final ProcessSession session, final RequestConfig requestConfig, final int holdReleaseWindow) {
+        final BlockingQueue<AsyncExchange> completionQueue = new LinkedBlockingQueue<>();
+        final Set<AsyncExchange> releasing = new HashSet<>();
+        final List<FlowFile> carried = new ArrayList<>();
+        boolean drained = false;
+        boolean interrupted = false;
+        boolean pulled = false;
 
-        final ObjectHolder<String> dnHolder = new ObjectHolder<>("none");
         while (true) {
-            FlowFile flowFile = session.get();
-            if (flowFile == null) {
-                break;
-            }
-
-            final String url = context.getProperty(URL).evaluateAttributeExpressions(flowFile).getValue();
-            try {
-                new java.net.URL(url);
-            } catch (final MalformedURLException e) {
-                logger.error("After substituting attribute values for {}, URL is {}; this is not a valid URL, so routing to failure",
-                        new Object[]{flowFile, url});
-                flowFile = session.penalize(flowFile);
-                session.transfer(flowFile, REL_FAILURE);
+            // route whatever has been released meanwhile before posting anything else
+            AsyncExchange exchange = completionQueue.poll();
+            if (exchange == null && !drained && releasing.size() < holdReleaseWindow) {
+                final Batch batch = nextBucketedBatch(context, session, carried);
+                if (batch == null) {
+                    drained = true;
+                } else {
+                    pulled = true;
+                    drained = !postBatch(context, session, batch, requestConfig, releasing, completionQueue);
+                }
                 continue;
             }
 
-            // If this FlowFile doesn't have the same url, throw it back on the queue and stop grabbing FlowFiles
-            if (lastUrl != null && !lastUrl.equals(url)) {
-                session.transfer(flowFile);
-                break;
-            }
-
-            lastUrl = url;
-            toSend.add(flowFile);
-
-            if (client == null || destinationAccepts == null) {
-                final Config config = getConfig(url, context);
-                final HttpClientConnectionManager conMan = config.getConnectionManager();
-
-                final HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-                clientBuilder.setConnectionManager(conMan);
-                clientBuilder.setUserAgent(userAgent);
-                clientBuilder.addInterceptorFirst(new HttpResponseInterceptor() {
-                    @Override
-                    public void process(final HttpResponse response, final HttpContext httpContext) throws HttpException, IOException {
-                        HttpCoreContext coreContext = HttpCoreContext.adapt(httpContext);
-                        ManagedHttpClientConnection conn = coreContext.getConnection(ManagedHttpClientConnection.class);
-                        if (!conn.isOpen()) {
-                            return;
-                        }
-
-                        SSLSession sslSession = conn.getSSLSession();
-
-                        if (sslSession != null) {
-                            final X509Certificate[] certChain = sslSession.getPeerCertificateChain();
-                            if (certChain == null || certChain.length == 0) {
-                                throw new SSLPeerUnverifiedException("No certificates found");
-                            }
-
-                            final X509Certificate cert = certChain[0];
-                            dnHolder.set(cert.getSubjectDN().getName().trim());
-                        }
-                    }
-                });
-
-                clientBuilder.disableAutomaticRetries();
-                clientBuilder.disableContentCompression();
-
-                final String username = context.getProperty(USERNAME).getValue();
-                final String password = context.getProperty(PASSWORD).getValue();
-                // set the credentials if appropriate
-                if (username != null) {
-                    final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                    if (password == null) {
-                        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username));
-                    } else {
-                        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
-                    };
-                    clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+            if (exchange == null) {
+                if (releasing.isEmpty()) {
+                    break;
                 }
-                client = clientBuilder.build();
-
-                // determine whether or not destination accepts flowfile/gzip
-                destinationAccepts = config.getDestinationAccepts();
-                if (destinationAccepts == null) {
-                    try {
-                        if (sendAsFlowFile) {
-                            destinationAccepts = getDestinationAcceptance(client, url, getLogger(), transactionId);
-                        } else {
-                            destinationAccepts = new DestinationAccepts(false, false, false, false, null);
-                        }
-
-                        config.setDestinationAccepts(destinationAccepts);
-                    } catch (IOException e) {
-                        flowFile = session.penalize(flowFile);
-                        session.transfer(flowFile, REL_FAILURE);
-                        logger.error("Unable to communicate with destination {} to determine whether or not it can accept flowfiles/gzip; routing {} to failure due to {}", new Object[]{url, flowFile, e});
-                        context.yield();
-                        return;
+                try {
+                    exchange = completionQueue.take();
+                } catch (final InterruptedException e) {
+                    // the cancelled releases are still handed back through the completion queue
+                    // and sent back to the queue to be tried again
+                    interrupted = true;
+                    drained = true;
+                    for (final AsyncExchange outstanding : releasing) {
+                        outstanding.cancel();
                     }
+                    continue;
                 }
             }
 
-            // if we are not sending as flowfile, or if the destination doesn't accept V3 or V2 (streaming) format,
-            // then only use a single FlowFile
-            if (!sendAsFlowFile || (!destinationAccepts.isFlowFileV3Accepted() && !destinationAccepts.isFlowFileV2Accepted())) {
-                break;
-            }
-
-            bytesToSend += flowFile.getSize();
-            if (bytesToSend > maxBatchBytes.longValue()) {
-                break;
+            releasing.remove(exchange);
+            final HttpResponse response = exchange.getResponse();
+            final boolean resubmitted = onAsyncCompletion(context, session, exchange, requestConfig, completionQueue);
+            // a response spilled to disk that nothing read gives its file back
+            discardResponse(response);
+            if (resubmitted) {
+                releasing.add(exchange);
             }
         }
 
-        if (toSend.isEmpty()) {
-            return;
+        if (!carried.isEmpty()) {
+            session.transfer(carried);
         }
-
-        final String url = lastUrl;
-        final HttpPost post = new HttpPost(url);
-        final List<FlowFile> flowFileList = toSend;
-        final DestinationAccepts accepts = destinationAccepts;
+        if (!pulled) {
+            yieldIfWaiting(context, session);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Posts the given batch through the blocking client and routes its
+     * FlowFiles.
+     *
+     * @param releasing if not null, a hold placed on the batch is released
+     * through the non-blocking client of the destination instead of right
+     * away, and its exchange is added to this set until it completes
+     * @param completionQueue the queue the releases are handed back through;
+     * only used if releasing is not null
+     * @return false if the task should not post any further batches
+     */
+    private boolean postBatch(final ProcessContext context, final ProcessSession session, final Batch batch, final RequestConfig requestConfig,
+            final Set<AsyncExchange> releasing, final BlockingQueue<AsyncExchange> completionQueue) {
+        final ProcessorLog logger = getLogger();
+        final String url = batch.getUrl();
+        final List<FlowFile> toSend = batch.getFlowFiles();
+        final long bytesToSend = batch.getBytesToSend();
+        final String transactionId = batch.getTransactionId();
+        final CloseableHttpClient client = batch.getClient();
+        final ObjectHolder<String> dnHolder = batch.getDnHolder();
+
+        if (batch.getHoldUri() != null) {
+            // the POST went through on an earlier attempt; only the hold is left to release
+            final String flowFileDescription = toSend.size() <= 10 ? toSend.toString() : toSend.size() + " FlowFiles";
+            if (releasing != null) {
+                final AsyncExchange exchange = new AsyncExchange(url, toSend, transactionId, 0L);
+                exchange.setHoldUri(batch.getHoldUri());
+                if (submitDelete(context, session, exchange, null, requestConfig, completionQueue)) {
+                    releasing.add(exchange);
+                }
+                return true;
+            }
+            releaseHold(context, session, client, url, batch.getHoldUri(), transactionId, toSend, flowFileDescription, 0L, null);
+            return true;
+        }
+
+        final long waitNanos = tryAcquireRate(context, session, batch);
+        if (waitNanos > 0L) {
+            logger.debug("{} has used up its rate for now; returning {} to the queue", new Object[]{url, toSend});
+            deferBatch(session, batch, waitNanos);
+            return true;
+        }
+
+        final HttpPost post = createPost(context, session, batch, requestConfig);
+        if (post == null) {
+            if (releasing != null) {
+                // rolling back would also undo the batches already routed by this task
+                logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; returning FlowFiles to the queue", new Object[]{url});
+                session.transfer(toSend);
+            } else {
+                logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; rolling back session", new Object[]{url});
+                session.rollback();
+            }
+            context.yield();
+            return false;
+        }
+
+        // Do the actual POST
+        final String flowFileDescription = toSend.size() <= 10 ? toSend.toString() : toSend.size() + " FlowFiles";
+
+        final ConcurrencyLimiter limiter = getConcurrencyLimiter(context, url);
+        ConcurrencyLimiter.Permit permit = null;
+        if (limiter != null) {
+            try {
+                permit = limiter.acquire(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (permit == null) {
+                logger.warn("{} already has {} requests outstanding, which is as many as it currently copes with; returning {} to the queue",
+                        new Object[]{url, limiter.getInFlight(), flowFileDescription});
+                session.transfer(toSend);
+                context.yield();
+                return false;
+            }
+        }
+
+        final String uploadDataRate;
+        final long uploadMillis;
+
+        final CloseableHttpResponse response;
+        try {
+            final StopWatch stopWatch = new StopWatch(true);
+            retryPolicy.onRequest();
+            final Config config = getConfig(url, context);
+            config.requestStarted();
+            try {
+                response = client.execute(post);
+            } finally {
+                config.requestCompleted();
+            }
+            stopWatch.stop();
+            uploadDataRate = stopWatch.calculateDataRate(bytesToSend);
+            uploadMillis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
+            if (permit != null) {
+                permit.onResponse(response.getStatusLine().getStatusCode());
+                reportConcurrency(session, url, limiter);
+            }
+            recordOutcome(context, url, response.getStatusLine().getStatusCode() >= 500);
+            if (response.getStatusLine().getStatusCode() < 400) {
+                recordBatchLatency(context, session, url, bytesToSend, uploadMillis);
+            }
+        } catch (final IOException e) {
+            if (permit != null) {
+                permit.onFailure(e);
+                reportConcurrency(session, url, limiter);
+            }
+            recordOutcome(context, url, true);
+            if (scheduleRetry(session, toSend, null, null)) {
+                logger.warn("Failed to Post {} due to {}; will try again", new Object[]{flowFileDescription, e});
+                return true;
+            }
+            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, e});
+            context.yield();
+            for (FlowFile flowFile : toSend) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return false;
+        }
+
+        // the response stays open until the FlowFiles are routed, so that its
+        // content can be streamed straight into them
+        try {
+            // If we get a 'SEE OTHER' status code and an HTTP header that indicates that the intent
+            // of the Location URI is a flowfile hold, we will store this holdUri. This prevents us
+            // from posting to some other webservice and then attempting to delete some resource to which
+            // we are redirected
+            final int responseCode = response.getStatusLine().getStatusCode();
+            final String responseReason = response.getStatusLine().getReasonPhrase();
+            String holdUri = null;
+            if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
+                holdUri = getHoldUri(response);
+
+                if (holdUri == null) {
+                    for (FlowFile flowFile : toSend) {
+                        flowFile = session.penalize(flowFile);
+                        logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    return true;
+                }
+            }
+
+            if (holdUri == null) {
+                if (isRetryable(responseCode) && scheduleRetry(session, toSend, null, null)) {
+                    logger.warn("Failed to Post {} to {}: response code was {}:{}; will try again", new Object[]{flowFileDescription, url, responseCode, responseReason});
+                    if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE && limiter == null) {
+                        context.yield();
+                        return false;
+                    }
+                    return true;
+                }
+
+                if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                    // with adaptive concurrency, backing off is left to the limiter of this destination alone
+                    final String reaction = (limiter == null) ? "will yield processing" : "will send it fewer requests at once";
+                    for (FlowFile flowFile : toSend) {
+                        flowFile = session.penalize(flowFile);
+                        logger.error("Failed to Post {} to {}: response code was {}:{}; {}, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason, reaction});
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    if (limiter == null) {
+                        context.yield();
+                        return false;
+                    }
+                    return true;
+                }
+
+                if (responseCode >= 300) {
+                    for (FlowFile flowFile : toSend) {
+                        flowFile = session.penalize(flowFile);
+                        logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    return true;
+                }
+
+                logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
+                    flowFileDescription, url, FormatUtils.formatMinutesSeconds(uploadMillis, TimeUnit.MILLISECONDS), uploadDataRate});
+
+                try {
+                    this.setHttpPostResponse(context, session, response.getEntity(), toSend);
+                } catch (final IOException e) {
+                    logger.error("Failed to read the response to {} from {} due to {}; transferring to failure", new Object[]{flowFileDescription, url, e});
+                    for (FlowFile flowFile : toSend) {
+                        flowFile = markIfTruncated(session, session.penalize(flowFile), e);
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    return true;
+                }
+
+                for (final FlowFile flowFile : toSend) {
+                    session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + dnHolder.get(), uploadMillis, true);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+
+                return true;
+            }
+
+            //
+            // the response indicated a Hold URI; delete the Hold.
+            //
+            final String fullHoldUri = resolveHoldUri(url, holdUri);
+
+            // nothing to keep from the POST response; hand its connection back before the DELETE
+            EntityUtils.consumeQuietly(response.getEntity());
+
+            if (releasing != null) {
+                final AsyncExchange exchange = new AsyncExchange(url, toSend, transactionId, bytesToSend);
+                exchange.setHoldUri(fullHoldUri);
+                exchange.setPosted(uploadMillis, uploadDataRate);
+                if (submitDelete(context, session, exchange, null, requestConfig, completionQueue)) {
+                    releasing.add(exchange);
+                }
+                return true;
+            }
+            releaseHold(context, session, client, url, fullHoldUri, transactionId, toSend, flowFileDescription, uploadMillis, uploadDataRate);
+            return true;
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                getLogger().warn("Failed to close HTTP Response due to {}", new Object[]{e});
+            }
+        }
+    }
+
+    /**
+     * Deletes the hold that the destination placed on the given FlowFiles and
+     * routes them; if the DELETE fails, they are sent back to the queue to try
+     * it again later, as far as Max Retries allows.
+     *
+     * @param uploadDataRate the rate at which the FlowFiles were posted, or
+     * null if they were posted on an earlier attempt
+     */
+    private void releaseHold(final ProcessContext context, final ProcessSession session, final CloseableHttpClient client, final String url, final String fullHoldUri,
+            final String transactionId, final List<FlowFile> toSend, final String flowFileDescription, final long uploadMillis, final String uploadDataRate) {
+        final ProcessorLog logger = getLogger();
+        final HttpDelete delete = new HttpDelete(fullHoldUri);
+        delete.setHeader(TRANSACTION_ID_HEADER, transactionId);
+
+        try (final CloseableHttpResponse holdResponse = client.execute(delete)) {
+            final int holdStatusCode = holdResponse.getStatusLine().getStatusCode();
+            final String holdReason = holdResponse.getStatusLine().getReasonPhrase();
+            if (holdStatusCode >= 300) {
+                if (isRetryable(holdStatusCode) && scheduleRetry(session, toSend, fullHoldUri, transactionId)) {
+                    logger.warn("Failed to delete Hold that destination placed on {}: got response code {}:{}; will try again",
+                            new Object[]{flowFileDescription, holdStatusCode, holdReason});
+                    return;
+                }
+                logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
+                        new Object[]{flowFileDescription, holdStatusCode, holdReason});
+
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return;
+            }
+
+            if (uploadDataRate == null) {
+                logger.info("Successfully released the Hold that {} placed on {}", new Object[]{url, flowFileDescription});
+            } else {
+                logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
+                        new Object[]{flowFileDescription, url, uploadMillis, uploadDataRate});
+            }
+
+            try {
+                this.setHttpPostResponse(context, session, holdResponse.getEntity(), toSend);
+            } catch (final IOException e) {
+                logger.error("Failed to read the response to {} from {} due to {}; transferring to failure", new Object[]{flowFileDescription, fullHoldUri, e});
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return;
+            }
+
+            for (final FlowFile flowFile : toSend) {
+                session.getProvenanceReporter().send(flowFile, url);
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+        } catch (final IOException e) {
+            if (scheduleRetry(session, toSend, fullHoldUri, transactionId)) {
+                logger.warn("Failed to delete Hold that destination placed on {} due to {}; will try again", new Object[]{flowFileDescription, e});
+                return;
+            }
+            logger.error("Failed to delete Hold that destination placed on {} due to {}; routing to failure", new Object[]{flowFileDescription, e});
+            for (FlowFile flowFile : toSend) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Keeps up to Max In-Flight Requests batches outstanding over the
+     * non-blocking client of each destination, routing the FlowFiles of a
+     * batch as soon as its response (or the release of its hold) arrives.
+     */
+    private void onTriggerAsync(final ProcessContext context, final ProcessSession session) {
+        final int maxInFlight = context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
+        final long maxInFlightBytes = context.getProperty(MAX_IN_FLIGHT_DATA).asDataSize(DataUnit.B).longValue();
+        final RequestConfig requestConfig = createRequestConfig(context);
+
+        final BlockingQueue<AsyncExchange> completionQueue = new LinkedBlockingQueue<>();
+        final Set<AsyncExchange> inFlight = new HashSet<>();
+        final List<FlowFile> carried = new ArrayList<>();
+        Batch pending = null;
+        long bufferedBytes = 0L;
+        boolean drained = false;
+        boolean interrupted = false;
+        boolean pulled = false;
+
+        while (true) {
+            while (!drained && inFlight.size() < maxInFlight) {
+                final Batch batch = (pending == null) ? nextBucketedBatch(context, session, carried) : pending;
+                pending = null;
+                if (batch == null) {
+                    drained = true;
+                    break;
+                }
+                pulled = true;
+
+                if (batch.getHoldUri() == null && !inFlight.isEmpty() && bufferedBytes + batch.getBytesToSend() > maxInFlightBytes) {
+                    // wait for one of our own requests to complete and give its body back
+                    session.adjustCounter("Data Limited Batches for " + getBaseUrl(batch.getUrl()), 1L, false);
+                    pending = batch;
+                    break;
+                }
+
+                final ConcurrencyLimiter limiter = getConcurrencyLimiter(context, batch.getUrl());
+                final ConcurrencyLimiter.Permit permit = (limiter == null) ? null : limiter.tryAcquire();
+                if (limiter != null && permit == null) {
+                    if (inFlight.isEmpty()) {
+                        // the other tasks use up the whole limit of the destination
+                        getLogger().debug("{} already has {} requests outstanding; returning FlowFiles to the queue", new Object[]{batch.getUrl(), limiter.getInFlight()});
+                        returnToQueue(session, batch);
+                        context.yield();
+                        drained = true;
+                    } else {
+                        // wait for one of our own requests to complete before trying again
+                        pending = batch;
+                    }
+                    break;
+                }
+
+                final long waitNanos = (batch.getHoldUri() == null) ? tryAcquireRate(context, session, batch) : 0L;
+                if (waitNanos > 0L) {
+                    if (permit != null) {
+                        permit.release();
+                    }
+                    // the batches for other destinations go on meanwhile
+                    getLogger().debug("{} has used up its rate for now; returning FlowFiles to the queue", new Object[]{batch.getUrl()});
+                    deferBatch(session, batch, waitNanos);
+                    continue;
+                }
+
+                final AsyncExchange exchange = submitAsync(context, session, batch, permit, requestConfig, completionQueue);
+                if (exchange == null) {
+                    drained = true;
+                    break;
+                }
+                inFlight.add(exchange);
+                bufferedBytes += exchange.getBytesToSend();
+            }
+
+            if (inFlight.isEmpty()) {
+                break;
+            }
+
+            final AsyncExchange exchange;
+            try {
+                exchange = completionQueue.take();
+            } catch (final InterruptedException e) {
+                // cancel everything that is still outstanding; the cancelled exchanges
+                // are still handed back through the completion queue and routed to failure
+                interrupted = true;
+                drained = true;
+                for (final AsyncExchange outstanding : inFlight) {
+                    outstanding.cancel();
+                }
+                continue;
+            }
+
+            inFlight.remove(exchange);
+            if (exchange.getHoldUri() == null) {
+                // the POST is over; the DELETE of its hold, if any, has no body
+                bufferedBytes -= exchange.getBytesToSend();
+            }
+            final HttpResponse response = exchange.getResponse();
+            final boolean resubmitted = onAsyncCompletion(context, session, exchange, requestConfig, completionQueue);
+            // a response spilled to disk that nothing read gives its file back
+            discardResponse(response);
+            if (resubmitted) {
+                inFlight.add(exchange);
+            }
+        }
+
+        if (pending != null) {
+            returnToQueue(session, pending);
+        }
+        if (!carried.isEmpty()) {
+            session.transfer(carried);
+        }
+        if (!pulled) {
+            yieldIfWaiting(context, session);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Buffers the body of the given batch and submits its POST.
+     *
+     * @param permit the permit of the concurrency limiter of the destination;
+     * may be null
+     * @return the submitted exchange or null if the batch could not be
+     * submitted, in which case its FlowFiles have already been routed
+     */
+    private AsyncExchange submitAsync(final ProcessContext context, final ProcessSession session, final Batch batch,
+            final ConcurrencyLimiter.Permit permit, final RequestConfig requestConfig, final BlockingQueue<AsyncExchange> completionQueue) {
+        final ProcessorLog logger = getLogger();
+        final String url = batch.getUrl();
+
+        if (batch.getHoldUri() != null) {
+            // the POST went through on an earlier attempt; only the hold is left to release
+            final AsyncExchange exchange = new AsyncExchange(url, batch.getFlowFiles(), batch.getTransactionId(), 0L);
+            exchange.setHoldUri(batch.getHoldUri());
+            return submitDelete(context, session, exchange, permit, requestConfig, completionQueue) ? exchange : null;
+        }
+
+        final HttpPost post = createPost(context, session, batch, requestConfig);
+        if (post == null) {
+            if (permit != null) {
+                permit.release();
+            }
+            logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; returning FlowFiles to the queue", new Object[]{url});
+            session.transfer(batch.getFlowFiles());
+            context.yield();
+            return null;
+        }
+
+        final AsyncExchange exchange = new AsyncExchange(url, batch.getFlowFiles(), batch.getTransactionId(), batch.getBytesToSend());
+        try {
+            // FlowFile content may only be read by the thread that owns the session, so the
+            // body is produced here and the I/O reactor only ever sees the resulting bytes
+            final RequestBody body = new RequestBody(batch.getBytesToSend());
+            post.getEntity().writeTo(body);
+            post.setEntity(body.toEntity());
+
+            retryPolicy.onRequest();
+            exchange.execute(getHedgedTransport(context, url), post, permit, completionQueue);
+        } catch (final IOException e) {
+            if (permit != null) {
+                permit.onFailure(e);
+            }
+            if (scheduleRetry(session, batch.getFlowFiles(), null, null)) {
+                logger.warn("Failed to Post {} due to {}; will try again", new Object[]{exchange.getFlowFileDescription(), e});
+                return null;
+            }
+            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{exchange.getFlowFileDescription(), e});
+            context.yield();
+            for (FlowFile flowFile : batch.getFlowFiles()) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return null;
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Routes the FlowFiles of a completed exchange, or submits the DELETE that
+     * releases the hold placed on them by the destination.
+     *
+     * @return true if a new request was submitted for this exchange
+     */
+    private boolean onAsyncCompletion(final ProcessContext context, final ProcessSession session, final AsyncExchange exchange,
+            final RequestConfig requestConfig, final BlockingQueue<AsyncExchange> completionQueue) {
+        final ProcessorLog logger = getLogger();
+        final String url = exchange.getUrl();
+        final String flowFileDescription = exchange.getFlowFileDescription();
+        final HttpResponse response = exchange.getResponse();
+
+        final Exception failure = exchange.getFailure();
+
+        final ConcurrencyLimiter limiter = getConcurrencyLimiter(context, url);
+        if (limiter != null) {
+            reportConcurrency(session, url, limiter);
+        }
+
+        if (failure instanceof Http2Transport.NoStreamAvailableException) {
+            // held back like a batch over the concurrency limit, as the request never went out
+            logger.debug("Every stream to {} is in use; returning {} to the queue", new Object[]{url, flowFileDescription});
+            session.adjustCounter("Stream Limited Batches for " + getBaseUrl(url), 1L, false);
+            returnToQueue(session, exchange.getFlowFiles(), exchange.getHoldUri(), exchange.getTransactionId());
+            return false;
+        }
+
+        if (exchange.getHoldUri() == null) {
+            if (exchange.isHedged()) {
+                session.adjustCounter("Hedged Requests", 1L, false);
+                if (exchange.isHedgeWon()) {
+                    session.adjustCounter("Hedges Won", 1L, false);
+                }
+            }
+            if (failure != null) {
+                if (!(failure instanceof CancellationException)) {
+                    recordOutcome(context, url, true);
+                }
+                if (isRetryable(failure) && scheduleRetry(session, exchange.getFlowFiles(), null, null)) {
+                    logger.warn("Failed to Post {} due to {}; will try again", new Object[]{flowFileDescription, failure});
+                    return false;
+                }
+                logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, failure});
+                context.yield();
+                for (FlowFile flowFile : exchange.getFlowFiles()) {
+                    flowFile = markIfTruncated(session, session.penalize(flowFile), failure);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return false;
+            }
+
+            final int responseCode = response.getStatusLine().getStatusCode();
+            final String responseReason = response.getStatusLine().getReasonPhrase();
+            recordOutcome(context, url, responseCode >= 500);
+            if (responseCode < 400 && exchange.isHedgeWon()) {
+                // the hedge's endpoint is credited with the hedge alone, and the endpoint that did not answer
+                // in all that time with at least as long, so that selection and the hedge delay steer away from it
+                recordBatchLatency(context, session, url, exchange.getBytesToSend(), exchange.getHedgeMillis());
+                getConfig(exchange.getPrimaryUrl(), context).recordLatency(exchange.getUploadMillis());
+            } else if (responseCode < 400) {
+                recordBatchLatency(context, session, url, exchange.getBytesToSend(), exchange.getUploadMillis());
+            }
+            final String holdUri = (responseCode == HttpServletResponse.SC_SEE_OTHER) ? getHoldUri(response) : null;
+            if (holdUri == null) {
+                if (isRetryable(responseCode) && scheduleRetry(session, exchange.getFlowFiles(), null, null)) {
+                    logger.warn("Failed to Post {} to {}: response code was {}:{}; will try again", new Object[]{flowFileDescription, url, responseCode, responseReason});
+                    if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE && limiter == null) {
+                        context.yield();
+                    }
+                    return false;
+                }
+
+                if (responseCode >= 300) {
+                    final boolean unavailable = responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                    for (FlowFile flowFile : exchange.getFlowFiles()) {
+                        flowFile = session.penalize(flowFile);
+                        if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
+                            logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
+                        } else if (unavailable && limiter != null) {
+                            logger.error("Failed to Post {} to {}: response code was {}:{}; will send it fewer requests at once, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
+                        } else if (unavailable) {
+                            logger.error("Failed to Post {} to {}: response code was {}:{}; will yield processing, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
+                        } else {
+                            logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
+                        }
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    if (unavailable && limiter == null) {
+                        context.yield();
+                    }
+                    return false;
+                }
+
+                logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
+                    flowFileDescription, url, FormatUtils.formatMinutesSeconds(exchange.getUploadMillis(), TimeUnit.MILLISECONDS), exchange.getUploadDataRate()});
+
+                if (!this.setAsyncResponse(context, session, exchange, response)) {
+                    return false;
+                }
+                for (final FlowFile flowFile : exchange.getFlowFiles()) {
+                    session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + exchange.getRemoteDn(), exchange.getUploadMillis(), true);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+                return false;
+            }
+
+            exchange.setHoldUri(resolveHoldUri(url, holdUri));
+        } else if (failure == null) {
+            final int holdStatusCode = response.getStatusLine().getStatusCode();
+            final String holdReason = response.getStatusLine().getReasonPhrase();
+            if (holdStatusCode >= 300) {
+                if (isRetryable(holdStatusCode) && scheduleRetry(session, exchange.getFlowFiles(), exchange.getHoldUri(), exchange.getTransactionId())) {
+                    logger.warn("Failed to delete Hold that destination placed on {}: got response code {}:{}; will try again",
+                            new Object[]{flowFileDescription, holdStatusCode, holdReason});
+                    return false;
+                }
+                logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
+                        new Object[]{flowFileDescription, holdStatusCode, holdReason});
+                for (FlowFile flowFile : exchange.getFlowFiles()) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return false;
+            }
+
+            if (exchange.wasPosted()) {
+                logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
+                        new Object[]{flowFileDescription, url, exchange.getUploadMillis(), exchange.getUploadDataRate()});
+            } else {
+                logger.info("Successfully released the Hold that {} placed on {}", new Object[]{url, flowFileDescription});
+            }
+            if (!this.setAsyncResponse(context, session, exchange, response)) {
+                return false;
+            }
+            for (final FlowFile flowFile : exchange.getFlowFiles()) {
+                session.getProvenanceReporter().send(flowFile, url);
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+            return false;
+        } else {
+            if (scheduleRetry(session, exchange.getFlowFiles(), exchange.getHoldUri(), exchange.getTransactionId())) {
+                logger.warn("Failed to delete Hold that destination placed on {} due to {}; will try again", new Object[]{flowFileDescription, failure});
+                return false;
+            }
+            logger.error("Failed to delete Hold that destination placed on {} due to {}; routing to failure", new Object[]{flowFileDescription, failure});
+            for (FlowFile flowFile : exchange.getFlowFiles()) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return false;
+        }
+
+        return submitDelete(context, session, exchange, null, requestConfig, completionQueue);
+    }
+
+    /**
+     * Throws away what is left of the body of the given response, if any.
+     */
+    private static void discardResponse(final HttpResponse response) {
+        if (response != null) {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * Submits the DELETE that releases the hold of the given exchange.
+     *
+     * @return true if it was submitted; otherwise the FlowFiles of the
+     * exchange have already been routed or sent back to the queue
+     */
+    private boolean submitDelete(final ProcessContext context, final ProcessSession session, final AsyncExchange exchange,
+            final ConcurrencyLimiter.Permit permit, final RequestConfig requestConfig, final BlockingQueue<AsyncExchange> completionQueue) {
+        final HttpDelete delete = new HttpDelete(exchange.getHoldUri());
+        delete.setHeader(TRANSACTION_ID_HEADER, exchange.getTransactionId());
+        delete.setConfig(requestConfig);
+        try {
+            exchange.execute(getAsyncTransport(context, exchange.getUrl()), delete, permit, completionQueue);
+        } catch (final IOException e) {
+            if (permit != null) {
+                permit.onFailure(e);
+            }
+            if (scheduleRetry(session, exchange.getFlowFiles(), exchange.getHoldUri(), exchange.getTransactionId())) {
+                getLogger().warn("Failed to delete Hold that destination placed on {} due to {}; will try again", new Object[]{exchange.getFlowFileDescription(), e});
+                return false;
+            }
+            getLogger().error("Failed to delete Hold that destination placed on {} due to {}; routing to failure", new Object[]{exchange.getFlowFileDescription(), e});
+            for (FlowFile flowFile : exchange.getFlowFiles()) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies the response of an exchange to its FlowFiles, routing them to
+     * failure if it cannot be read.
+     *
+     * @return true if the FlowFiles may be routed to success
+     */
+    private boolean setAsyncResponse(final ProcessContext context, final ProcessSession session, final AsyncExchange exchange, final HttpResponse response) {
+        try {
+            this.setHttpPostResponse(context, session, response.getEntity(), exchange.getFlowFiles());
+            return true;
+        } catch (final IOException e) {
+            getLogger().error("Failed to read the response to {} from {} due to {}; transferring to failure",
+                    new Object[]{exchange.getFlowFileDescription(), exchange.getUrl(), e});
+            for (FlowFile flowFile : exchange.getFlowFiles()) {
+                flowFile = markIfTruncated(session, session.penalize(flowFile), e);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the transport to POST to the given URL with: one that hedges the
+     * request to another endpoint if Hedge Delay Percentile is set and there
+     * is another healthy endpoint, or else that of the destination
+     */
+    private AsyncTransport getHedgedTransport(final ProcessContext context, final String url) throws IOException {
+        final AsyncTransport transport = getAsyncTransport(context, url);
+        final HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+        final ScheduledExecutorService hedger = this.hedger;
+        if (hedgingPolicy == null || hedger == null) {
+            return transport;
+        }
+        hedgingPolicy.onRequest();
+
+        final List<String> urls = getEndpointUrls(url);
+        final List<Config> configs = new ArrayList<>(urls.size());
+        for (final String endpointUrl : urls) {
+            configs.add(getConfig(endpointUrl, context));
+        }
+        final int hedgeIndex = endpointSelector.selectHedge(configs, urls.indexOf(url));
+        if (hedgeIndex < 0) {
+            return transport;
+        }
+        final String hedgeUrl = urls.get(hedgeIndex);
+        return new HedgedTransport(transport, getAsyncTransport(context, hedgeUrl), hedgeUrl, hedgingPolicy.getDelayMillis(), hedger, hedgingPolicy);
+    }
+
+    private AsyncTransport getAsyncTransport(final ProcessContext context, final String url) throws IOException {
+        if (ENGINE_FAN_OUT.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            final int maxRequests = context.getMaxConcurrentTasks() * context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
+            final long maxResponseSize = getMaxResponseSize(context);
+            final ResponseBuffer.Factory responseBuffers = this.responseBuffers;
+            final Config config = getConfig(url, context);
+
+            return config.getAsyncTransport(new AsyncTransport.Factory() {
+                @Override
+                public AsyncTransport create(final TlsSettings tlsSettings) throws IOException {
+                    final ThreadPoolExecutor workers = new ThreadPoolExecutor(maxRequests, maxRequests, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final Thread thread = new Thread(r, "PostAdvancedHTTP Fan-Out " + getIdentifier() + "-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    workers.allowCoreThreadTimeOut(true);
+                    return new PooledTransport(createClient(context, config, new ObjectHolder<>("none")), workers, maxResponseSize, responseBuffers);
+                }
+            });
+        }
+
+        if (ENGINE_HTTP2.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            final int maxConcurrentStreams = context.getProperty(MAX_CONCURRENT_STREAMS).asInteger();
+            final String userAgent = context.getProperty(USER_AGENT).getValue();
+            final String username = context.getProperty(USERNAME).getValue();
+            final String password = context.getProperty(PASSWORD).getValue();
+            final long maxResponseSize = getMaxResponseSize(context);
+            final ResponseBuffer.Factory responseBuffers = this.responseBuffers;
+
+            return getConfig(url, context).getAsyncTransport(new AsyncTransport.Factory() {
+                @Override
+                public AsyncTransport create(final TlsSettings tlsSettings) throws IOException {
+                    return Http2Transport.create(tlsSettings, maxConcurrentStreams, userAgent, username, password, maxResponseSize, responseBuffers);
+                }
+            });
+        }
+
+        final int maxConnections = context.getMaxConcurrentTasks() * context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
+        final String userAgent = context.getProperty(USER_AGENT).getValue();
+        final CredentialsProvider credentialsProvider = createCredentialsProvider(context);
+        final long maxResponseSize = getMaxResponseSize(context);
+        final ResponseBuffer.Factory responseBuffers = this.responseBuffers;
+
+        return getConfig(url, context).getAsyncTransport(new AsyncTransport.Factory() {
+            @Override
+            public AsyncTransport create(final TlsSettings tlsSettings) throws IOException {
+                return AsyncHttpClients.create(tlsSettings, maxConnections, userAgent, credentialsProvider, maxResponseSize, responseBuffers);
+            }
+        });
+    }
+
+    /**
+     * @return the adaptive concurrency limiter of the destination of the given
+     * URL, or null if Adaptive Concurrency is disabled
+     */
+    private ConcurrencyLimiter getConcurrencyLimiter(final ProcessContext context, final String url) {
+        if (!context.getProperty(ADAPTIVE_CONCURRENCY).asBoolean()) {
+            return null;
+        }
+
+        int maxLimit = context.getMaxConcurrentTasks();
+        if (!ENGINE_BLOCKING.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            maxLimit *= context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
+        }
+        return getConfig(url, context).getConcurrencyLimiter(maxLimit);
+    }
+
+    /**
+     * Takes the tokens for posting the given batch from the rate limiter of
+     * its destination, if its rate is limited.
+     *
+     * @return 0 if the batch may be posted, or else the nanoseconds after
+     * which it may be tried again
+     */
+    private long tryAcquireRate(final ProcessContext context, final ProcessSession session, final Batch batch) {
+        final Integer requestsPerSecond = context.getProperty(MAX_DESTINATION_REQUEST_RATE).asInteger();
+        final Double bytesPerSecond = context.getProperty(MAX_DESTINATION_DATA_RATE).asDataSize(DataUnit.B);
+        if (requestsPerSecond == null && bytesPerSecond == null) {
+            return 0L;
+        }
+
+        final RateLimiter limiter = getConfig(batch.getUrl(), context).getRateLimiter(requestsPerSecond, bytesPerSecond);
+        final long waitNanos = limiter.tryAcquire(getContentSize(batch.getFlowFiles()));
+        if (waitNanos > 0L) {
+            session.adjustCounter("Rate Limited Batches for " + getBaseUrl(batch.getUrl()), 1L, false);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * @return the adaptive batch size limit of the destination of the given
+     * URL, or null if Target Batch Latency or Max Batch Size is not set
+     */
+    private BatchSizer getBatchSizer(final ProcessContext context, final String url) {
+        if (!context.getProperty(TARGET_BATCH_LATENCY).isSet() || !context.getProperty(MAX_BATCH_SIZE).isSet()) {
+            return null;
+        }
+
+        final long maxBatchBytes = context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B).longValue();
+        final long targetMillis = context.getProperty(TARGET_BATCH_LATENCY).asTimePeriod(TimeUnit.MILLISECONDS);
+        return getConfig(url, context).getBatchSizer(maxBatchBytes, targetMillis);
+    }
+
+    /**
+     * Feeds the time the destination took to take a batch to its batch sizer,
+     * if any, and brings the counter showing its limit up to date.
+     */
+    private void recordBatchLatency(final ProcessContext context, final ProcessSession session, final String url, final long bytes, final long millis) {
+        if (endpoints != null) {
+            getConfig(url, context).recordLatency(millis);
+        }
+        final HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+        if (hedgingPolicy != null) {
+            hedgingPolicy.recordLatency(millis);
+        }
+        final BatchSizer batchSizer = getBatchSizer(context, url);
+        if (batchSizer != null) {
+            batchSizer.record(bytes, millis);
+            session.adjustCounter("Batch Size Limit (KB) for " + getBaseUrl(url), batchSizer.getLimitKilobytesChange(), false);
+        }
+    }
+
+    /**
+     * Brings the counters showing the current limit and latency of the
+     * destination up to date.
+     */
+    private void reportConcurrency(final ProcessSession session, final String url, final ConcurrencyLimiter limiter) {
+        final String baseUrl = getBaseUrl(url);
+        session.adjustCounter("Concurrency Limit for " + baseUrl, limiter.getLimitChange(), false);
+        session.adjustCounter("Latency Millis for " + baseUrl, limiter.getLatencyMillisChange(), false);
+    }
+
+    /**
+     * @return the circuit breaker of the destination of the given URL, or null
+     * if Circuit Breaker Failure Threshold is not set
+     */
+    private CircuitBreaker getCircuitBreaker(final ProcessContext context, final String url) {
+        final Integer failureThreshold = context.getProperty(CIRCUIT_BREAKER_THRESHOLD).asInteger();
+        if (failureThreshold == null) {
+            return null;
+        }
+
+        final long openMillis = context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS);
+        final int probeRequests = context.getProperty(CIRCUIT_BREAKER_PROBE_REQUESTS).asInteger();
+        return getConfig(url, context).getCircuitBreaker(failureThreshold, openMillis, probeRequests);
+    }
+
+    /**
+     * @return the given URL rewritten for every endpoint, or just the URL if
+     * Endpoints is not set
+     */
+    private List<String> getEndpointUrls(final String url) {
+        final List<String> endpoints = this.endpoints;
+        if (endpoints == null) {
+            return Collections.singletonList(url);
+        }
+        final List<String> urls = new ArrayList<>(endpoints.size());
+        for (final String endpoint : endpoints) {
+            urls.add(EndpointSelector.rewrite(url, endpoint));
+        }
+        return urls;
+    }
+
+    /**
+     * @return the given URL rewritten for the endpoint picked for the next
+     * batch, or the URL as is if Endpoints is not set
+     */
+    private String selectEndpoint(final ProcessContext context, final String url) {
+        if (endpoints == null) {
+            return url;
+        }
+        final List<String> urls = getEndpointUrls(url);
+        final List<Config> configs = new ArrayList<>(urls.size());
+        for (final String endpointUrl : urls) {
+            configs.add(getConfig(endpointUrl, context));
+        }
+        return urls.get(endpointSelector.select(configs));
+    }
+
+    /**
+     * Records in the circuit breaker of the destination, if any, whether a
+     * request to it failed, and in its health if it is one of the Endpoints.
+     */
+    private void recordOutcome(final ProcessContext context, final String url, final boolean failed) {
+        if (endpoints != null && getConfig(url, context).recordHealth(failed, context.getProperty(ENDPOINT_EJECTION_THRESHOLD).asInteger(),
+                context.getProperty(ENDPOINT_EJECTION_DURATION).asTimePeriod(TimeUnit.MILLISECONDS))) {
+            getLogger().warn("Ejecting endpoint {} for {} after too many failed requests", new Object[]{getBaseUrl(url),
+                context.getProperty(ENDPOINT_EJECTION_DURATION).getValue()});
+        }
+
+        final CircuitBreaker circuitBreaker = getCircuitBreaker(context, url);
+        if (circuitBreaker == null) {
+            return;
+        }
+
+        if (failed) {
+            if (circuitBreaker.onFailure()) {
+                getLogger().warn("Opening the circuit of {} for {} after too many failed requests; FlowFiles for it will be routed to circuit-open",
+                        new Object[]{getBaseUrl(url), context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).getValue()});
+            }
+        } else if (circuitBreaker.onSuccess()) {
+            getLogger().info("Closing the circuit of {}, since it handles requests again", new Object[]{getBaseUrl(url)});
+        }
+    }
+
+    private RequestConfig createRequestConfig(final ProcessContext context) {
+        final RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
+        requestConfigBuilder.setConnectionRequestTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        requestConfigBuilder.setConnectTimeout(context.getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        requestConfigBuilder.setRedirectsEnabled(false);
+        requestConfigBuilder.setSocketTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+        return requestConfigBuilder.build();
+    }
+
+    private CredentialsProvider createCredentialsProvider(final ProcessContext context) {
+        final String username = context.getProperty(USERNAME).getValue();
+        final String password = context.getProperty(PASSWORD).getValue();
+        if (username == null) {
+            return null;
+        }
+
+        final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        if (password == null) {
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username));
+        } else {
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        }
+        return credentialsProvider;
+    }
+
+    private CloseableHttpClient createClient(final ProcessContext context, final Config config, final ObjectHolder<String> dnHolder) {
+        final HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+        clientBuilder.setConnectionManager(config.getConnectionManager());
+        if (config.isConnectionManagerShared()) {
+            // the pool outlives the client, and keeps connections alive as configured in the service
+            final HttpConnectionPoolService poolService = context.getProperty(CONNECTION_POOL_SERVICE).asControllerService(HttpConnectionPoolService.class);
+            clientBuilder.setConnectionManagerShared(true);
+            clientBuilder.setKeepAliveStrategy(poolService.getKeepAliveStrategy());
+        }
+        clientBuilder.setUserAgent(context.getProperty(USER_AGENT).getValue());
+        clientBuilder.addInterceptorFirst(new HttpResponseInterceptor() {
+            @Override
+            public void process(final HttpResponse response, final HttpContext httpContext) throws HttpException, IOException {
+                HttpCoreContext coreContext = HttpCoreContext.adapt(httpContext);
+                ManagedHttpClientConnection conn = coreContext.getConnection(ManagedHttpClientConnection.class);
+                if (!conn.isOpen()) {
+                    return;
+                }
+
+                SSLSession sslSession = conn.getSSLSession();
+
+                if (sslSession != null) {
+                    dnHolder.set(TlsSettings.getPeerDn(sslSession));
+                    // requests fanned out over this client each have a context of their own
+                    httpContext.setAttribute(AsyncHttpClients.REMOTE_DN_ATTRIBUTE, TlsSettings.getPeerDn(sslSession));
+                }
+            }
+        });
+
+        clientBuilder.disableAutomaticRetries();
+        clientBuilder.disableContentCompression();
+
+        // set the credentials if appropriate
+        final CredentialsProvider credentialsProvider = createCredentialsProvider(context);
+        if (credentialsProvider != null) {
+            clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+        }
+        return clientBuilder.build();
+    }
+
+    /**
+     * Pulls the next batch of FlowFiles that share the same URL from the
+     * session, negotiating the capabilities of the destination if needed.
+     *
+     * @param carried if null, a FlowFile whose URL differs from the batch's is
+     * thrown back on the queue; otherwise it is added to this list, which is
+     * drained before pulling from the session again
+     * @return the batch, or null if there is nothing (more) to send
+     */
+    private Batch nextBatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> carried) {
+        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
+        final Aggregation aggregation = getAggregation(context);
+        final ProcessorLog logger = getLogger();
+
+        // without a Max Batch Size, each FlowFile is sent separately
+        final Double maxBatchBytes = context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
+        final Integer maxBatchCount = (maxBatchBytes == null) ? Integer.valueOf(1) : context.getProperty(MAX_BATCH_COUNT).asInteger();
+        final long lingerMillis = context.getProperty(BATCH_LINGER).asTimePeriod(TimeUnit.MILLISECONDS);
+        // bucketed batches are drawn from the carried FlowFiles alone; the buckets are refilled once they run dry
+        final boolean bucketed = carried != null && context.getProperty(MAX_DESTINATION_BUCKETS).asInteger() > 1;
+        String lastUrl = null;
+        String batchUrl = null;
+        long bytesToSend = 0L;
+        long batchLimit = Long.MAX_VALUE;
+        long lingerDeadline = 0L;
+
+        final List<FlowFile> toSend = new ArrayList<>();
+        DestinationAccepts destinationAccepts = null;
+        CloseableHttpClient client = null;
+        final String transactionId = UUID.randomUUID().toString();
+
+        final ObjectHolder<String> dnHolder = new ObjectHolder<>("none");
+        while (true) {
+            FlowFile flowFile;
+            if (carried != null && !carried.isEmpty()) {
+                flowFile = carried.remove(0);
+            } else {
+                flowFile = bucketed ? null : pollFlowFile(session);
+            }
+            if (flowFile == null && !bucketed && !toSend.isEmpty() && lingerMillis > 0) {
+                flowFile = lingerForFlowFile(session, lingerDeadline);
+            }
+            if (flowFile == null) {
+                break;
+            }
+
+            final String url = context.getProperty(URL).evaluateAttributeExpressions(flowFile).getValue();
+            try {
+                new java.net.URL(url);
+            } catch (final MalformedURLException e) {
+                logger.error("After substituting attribute values for {}, URL is {}; this is not a valid URL, so routing to failure",
+                        new Object[]{flowFile, url});
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+                continue;
+            }
+
+            // If this FlowFile doesn't have the same url, throw it back on the queue and stop grabbing FlowFiles
+            if (lastUrl != null && !lastUrl.equals(url)) {
+                if (carried == null) {
+                    session.transfer(flowFile);
+                } else {
+                    carried.add(0, flowFile);
+                }
+                break;
+            }
+
+            if (flowFile.getAttribute(RetryPolicy.HOLD_URI_ATTRIBUTE) != null) {
+                if (toSend.isEmpty()) {
+                    return nextHoldBatch(context, session, carried, flowFile, url);
+                }
+
+                // only its hold is left to release, so it goes in a batch of its own
+                if (carried == null) {
+                    session.transfer(flowFile);
+                } else {
+                    carried.add(0, flowFile);
+                }
+                break;
+            }
+
+            if (toSend.isEmpty()) {
+                // the whole batch goes to the endpoint picked for its first FlowFile
+                batchUrl = selectEndpoint(context, url);
+                final CircuitBreaker circuitBreaker = getCircuitBreaker(context, batchUrl);
+                if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                    logger.debug("Circuit of {} is open; routing {} to circuit-open", new Object[]{batchUrl, flowFile});
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_CIRCUIT_OPEN);
+                    continue;
+                }
+            }
+
+            lastUrl = url;
+            toSend.add(flowFile);
+            if (toSend.size() == 1) {
+                lingerDeadline = System.currentTimeMillis() + lingerMillis;
+            }
+
+            if (client == null || destinationAccepts == null) {
+                final Config config = getConfig(batchUrl, context);
+                client = createClient(context, config, dnHolder);
+                final BatchSizer batchSizer = getBatchSizer(context, batchUrl);
+                if (batchSizer != null) {
+                    batchLimit = batchSizer.getLimit();
+                } else if (maxBatchBytes != null) {
+                    batchLimit = maxBatchBytes.longValue();
+                }
+
+                // determine whether or not destination accepts flowfile/gzip
+                destinationAccepts = config.getDestinationAccepts();
+                if (destinationAccepts != null && sendAsFlowFile) {
+                    if (destinationAccepts.isUnavailable()
+                            && System.currentTimeMillis() >= destinationAccepts.getNegotiatedAt() + context.getProperty(FAILED_NEGOTIATION_TTL).asTimePeriod(TimeUnit.MILLISECONDS)) {
+                        // there is nothing to go by meanwhile, so this batch waits for the negotiation
+                        destinationAccepts = null;
+                    } else if (config.claimNegotiation(context.getProperty(CAPABILITIES_TTL).asTimePeriod(TimeUnit.MILLISECONDS))) {
+                        negotiateInBackground(context, config, batchUrl);
+                    }
+                }
+                if (destinationAccepts == null) {
+                    try {
+                        if (sendAsFlowFile) {
+                            destinationAccepts = getDestinationAcceptance(client, batchUrl, getLogger(), transactionId);
+                        } else {
+                            destinationAccepts = new DestinationAccepts(false, false, false, false, null);
+                        }
+
+                        config.setDestinationAccepts(destinationAccepts);
+                    } catch (IOException e) {
+                        recordOutcome(context, batchUrl, true);
+                        flowFile = session.penalize(flowFile);
+                        session.transfer(flowFile, REL_FAILURE);
+                        logger.error("Unable to communicate with destination {} to determine whether or not it can accept flowfiles/gzip; routing {} to failure due to {}", new Object[]{batchUrl, flowFile, e});
+                        context.yield();
+                        return null;
+                    }
+                }
+            }
+
+            // counted before a single FlowFile breaks off, so that every batch reports the size of its content
+            bytesToSend += flowFile.getSize();
+
+            // if we are neither sending as flowfile nor aggregating, or if the destination doesn't accept V3 or V2 (streaming) format,
+            // then only use a single FlowFile
+            if (aggregation == null && (!sendAsFlowFile || (!destinationAccepts.isFlowFileV3Accepted() && !destinationAccepts.isFlowFileV2Accepted()))) {
+                break;
+            }
+
+            if (bytesToSend > batchLimit || (maxBatchCount != null && toSend.size() >= maxBatchCount)) {
+                break;
+            }
+        }
+
+        if (toSend.isEmpty()) {
+            return null;
+        }
+
+        session.adjustCounter("Batches " + BatchSizer.getHistogramBucket(bytesToSend) + " for " + getBaseUrl(batchUrl), 1L, false);
+        return new Batch(batchUrl, toSend, destinationAccepts, client, transactionId, dnHolder, bytesToSend, null);
+    }
+
+    /**
+     * Returns the next batch, first pulling FlowFiles for up to Max
+     * Destination Buckets URLs into the carried FlowFiles if there are none
+     * left, so that consecutive batches drain them group by group.
+     */
+    private Batch nextBucketedBatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> carried) {
+        final int maxBuckets = context.getProperty(MAX_DESTINATION_BUCKETS).asInteger();
+        if (maxBuckets > 1 && carried.isEmpty()) {
+            drainBuckets(context, session, carried, maxBuckets);
+        }
+        return nextBatch(context, session, carried);
+    }
+
+    /**
+     * Pulls FlowFiles into the given list grouped by URL, in the order the
+     * URLs first turn up, until the queue runs dry (and Batch Linger has
+     * passed), a FlowFile for one URL more than the given number turns up, or
+     * a full batch has been pulled for every bucket.
+     */
+    private void drainBuckets(final ProcessContext context, final ProcessSession session, final List<FlowFile> carried, final int maxBuckets) {
+        // without a Max Batch Size, each FlowFile is sent separately, so every bucket is full with one
+        final Double maxBatchBytes = context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
+        final Integer maxBatchCount = (maxBatchBytes == null) ? Integer.valueOf(1) : context.getProperty(MAX_BATCH_COUNT).asInteger();
+        final long maxBytes = (maxBatchBytes == null || maxBatchBytes.longValue() > Long.MAX_VALUE / maxBuckets)
+                ? Long.MAX_VALUE : maxBatchBytes.longValue() * maxBuckets;
+        final long maxCount = (maxBatchCount == null) ? Long.MAX_VALUE : (long) maxBatchCount * maxBuckets;
+
+        final long lingerMillis = context.getProperty(BATCH_LINGER).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        final Map<String, List<FlowFile>> buckets = new LinkedHashMap<>();
+        long bytes = 0L;
+        long count = 0L;
+        long lingerDeadline = 0L;
+        while (bytes < maxBytes && count < maxCount) {
+            FlowFile flowFile = pollFlowFile(session);
+            if (flowFile == null && count > 0 && lingerMillis > 0) {
+                flowFile = lingerForFlowFile(session, lingerDeadline);
+            }
+            if (flowFile == null) {
+                break;
+            }
+            if (count == 0) {
+                lingerDeadline = System.currentTimeMillis() + lingerMillis;
+            }
+
+            final String url = context.getProperty(URL).evaluateAttributeExpressions(flowFile).getValue();
+            List<FlowFile> bucket = buckets.get(url);
+            if (bucket == null) {
+                if (buckets.size() == maxBuckets) {
+                    session.transfer(flowFile);
+                    break;
+                }
+                bucket = new ArrayList<>();
+                buckets.put(url, bucket);
+            }
+            bucket.add(flowFile);
+            bytes += flowFile.getSize();
+            count++;
+        }
+
+        for (final List<FlowFile> bucket : buckets.values()) {
+            carried.addAll(bucket);
+        }
+    }
+
+    /**
+     * Gathers the FlowFiles that wait for the same hold to be released as the
+     * given one, which was posted on an earlier attempt.
+     */
+    private Batch nextHoldBatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> carried, final FlowFile first, final String url) {
+        final String holdUri = first.getAttribute(RetryPolicy.HOLD_URI_ATTRIBUTE);
+        final String transactionId = first.getAttribute(RetryPolicy.TRANSACTION_ID_ATTRIBUTE);
+
+        final List<FlowFile> held = new ArrayList<>();
+        held.add(first);
+        if (carried != null) {
+            for (final Iterator<FlowFile> itr = carried.iterator(); itr.hasNext();) {
+                final FlowFile flowFile = itr.next();
+                if (holdUri.equals(flowFile.getAttribute(RetryPolicy.HOLD_URI_ATTRIBUTE))) {
+                    held.add(flowFile);
+                    itr.remove();
+                }
+            }
+        }
+        held.addAll(session.get(new FlowFileFilter() {
+            private int rejects = 0;
+
+            @Override
+            public FlowFileFilterResult filter(final FlowFile flowFile) {
+                if (holdUri.equals(flowFile.getAttribute(RetryPolicy.HOLD_URI_ATTRIBUTE))) {
+                    return FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+                }
+                // those further down the queue are released on their own later
+                return (++rejects < MAX_POLL_REJECTS) ? FlowFileFilterResult.REJECT_AND_CONTINUE : FlowFileFilterResult.REJECT_AND_TERMINATE;
+            }
+        }));
+
+        // the batch remembers the hold from now on, so that the FlowFiles do not carry it any further
+        final Set<String> holdAttributes = new HashSet<>(Arrays.asList(RetryPolicy.HOLD_URI_ATTRIBUTE, RetryPolicy.TRANSACTION_ID_ATTRIBUTE));
+        final List<FlowFile> toSend = new ArrayList<>(held.size());
+        for (final FlowFile flowFile : held) {
+            toSend.add(session.removeAllAttributes(flowFile, holdAttributes));
+        }
+
+        // the hold was resolved against the endpoint that placed it, which is the one to go back to
+        final String endpointUrl = EndpointSelector.rewrite(url, getBaseUrl(holdUri));
+        final Config config = getConfig(endpointUrl, context);
+        final ObjectHolder<String> dnHolder = new ObjectHolder<>("none");
+        return new Batch(endpointUrl, toSend, config.getDestinationAccepts(), createClient(context, config, dnHolder), transactionId, dnHolder, 0L, holdUri);
+    }
+
+    /**
+     * @return the next FlowFile of the incoming queue that is not waiting for
+     * a retry, or null if there is none among the first
+     * {@link #MAX_POLL_REJECTS} that are
+     */
+    private FlowFile pollFlowFile(final ProcessSession session) {
+        final long now = System.currentTimeMillis();
+        final List<FlowFile> flowFiles = session.get(new FlowFileFilter() {
+            private int rejects = 0;
+
+            @Override
+            public FlowFileFilterResult filter(final FlowFile flowFile) {
+                if (RetryPolicy.isDue(flowFile, now)) {
+                    return FlowFileFilterResult.ACCEPT_AND_TERMINATE;
+                }
+                return (++rejects < MAX_POLL_REJECTS) ? FlowFileFilterResult.REJECT_AND_CONTINUE : FlowFileFilterResult.REJECT_AND_TERMINATE;
+            }
+        });
+        return flowFiles.isEmpty() ? null : flowFiles.get(0);
+    }
+
+    /**
+     * Polls the queue until a FlowFile arrives or the given time has come. The
+     * pause between polls doubles while the queue stays dry, and the queue is
+     * only scanned when it is not empty.
+     *
+     * @return the FlowFile, or null if none arrived in time
+     */
+    private FlowFile lingerForFlowFile(final ProcessSession session, final long deadline) {
+        long pollMillis = MIN_LINGER_POLL_MILLIS;
+        long remainingMillis;
+        while ((remainingMillis = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(remainingMillis, pollMillis));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            pollMillis = Math.min(MAX_LINGER_POLL_MILLIS, pollMillis * 2);
+            if (session.getQueueSize().getObjectCount() == 0) {
+                continue;
+            }
+            final FlowFile flowFile = pollFlowFile(session);
+            if (flowFile != null) {
+                return flowFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Yields if nothing could be pulled from a queue that is not empty, which
+     * means that the FlowFiles at its head wait for a retry.
+     */
+    private void yieldIfWaiting(final ProcessContext context, final ProcessSession session) {
+        if (session.getQueueSize().getObjectCount() > 0) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Sends the FlowFiles of a batch that was not sent back to the queue, along
+     * with the hold they are waiting on, if any.
+     */
+    private void returnToQueue(final ProcessSession session, final Batch batch) {
+        returnToQueue(session, batch.getFlowFiles(), batch.getHoldUri(), batch.getTransactionId());
+    }
+
+    /**
+     * Sends the given FlowFiles back to the queue, along with the hold they
+     * are waiting on, if any.
+     */
+    private void returnToQueue(final ProcessSession session, final List<FlowFile> flowFiles, final String holdUri, final String transactionId) {
+        for (FlowFile flowFile : flowFiles) {
+            if (holdUri != null) {
+                flowFile = session.putAttribute(flowFile, RetryPolicy.HOLD_URI_ATTRIBUTE, holdUri);
+                flowFile = session.putAttribute(flowFile, RetryPolicy.TRANSACTION_ID_ATTRIBUTE, transactionId);
+            }
+            session.transfer(flowFile);
+        }
+    }
+
+    /**
+     * Sends the FlowFiles of a batch whose destination has used up its rate
+     * back to the queue, not to be picked up again before the destination has
+     * tokens again; the batches for other destinations go on meanwhile.
+     */
+    private void deferBatch(final ProcessSession session, final Batch batch, final long waitNanos) {
+        final String notBefore = String.valueOf(System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1L);
+        for (final FlowFile flowFile : batch.getFlowFiles()) {
+            session.transfer(session.putAttribute(flowFile, RetryPolicy.RETRY_AT_ATTRIBUTE, notBefore));
+        }
+    }
+
+    /**
+     * Sends the given FlowFiles back to the queue to be tried again once their
+     * backoff has elapsed, if Max Retries and the retry budget allow.
+     *
+     * @param holdUri the hold that is left to release, or null if the POST
+     * itself is to be tried again
+     * @param transactionId the transaction of the hold; ignored if there is
+     * no hold
+     * @return true if the FlowFiles were sent back; otherwise they are left
+     * for the caller to route to failure
+     */
+    private boolean scheduleRetry(final ProcessSession session, final List<FlowFile> flowFiles, final String holdUri, final String transactionId) {
+        int retryCount = 0;
+        for (final FlowFile flowFile : flowFiles) {
+            retryCount = Math.max(retryCount, RetryPolicy.getRetryCount(flowFile));
+        }
+
+        final long backoffMillis = retryPolicy.nextBackoff(retryCount);
+        if (backoffMillis < 0) {
+            return false;
+        }
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(RetryPolicy.RETRY_COUNT_ATTRIBUTE, String.valueOf(retryCount + 1));
+        attributes.put(RetryPolicy.RETRY_AT_ATTRIBUTE, String.valueOf(System.currentTimeMillis() + backoffMillis));
+        if (holdUri != null) {
+            attributes.put(RetryPolicy.HOLD_URI_ATTRIBUTE, holdUri);
+            attributes.put(RetryPolicy.TRANSACTION_ID_ATTRIBUTE, transactionId);
+        }
+        for (FlowFile flowFile : flowFiles) {
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            session.transfer(flowFile);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a request answered with the given status code may
+     * succeed if it is tried again
+     */
+    private boolean isRetryable(final int statusCode) {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+    /**
+     * @return true if a request that failed with the given exception may
+     * succeed if it is tried again
+     */
+    private boolean isRetryable(final Exception failure) {
+        return !(failure instanceof CancellationException) && !(failure instanceof ContentTooLongException);
+    }
+
+    /**
+     * Creates the POST for the given batch.
+     *
+     * @return the POST or null if the destination does not accept any of the
+     * FlowFile packaging formats while configured to send as FlowFile
+     */
+    private HttpPost createPost(final ProcessContext context, final ProcessSession session, final Batch batch, final RequestConfig requestConfig) {
+        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
+        final int compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
+        final StreamThrottler throttler = throttlerRef.get();
+
+        final String url = batch.getUrl();
+        final HttpPost post = new HttpPost(url);
+        final List<FlowFile> flowFileList = batch.getFlowFiles();
+        final DestinationAccepts accepts = batch.getDestinationAccepts();
+        final CompressionCodec negotiatedCodec = (compressionLevel == 0) ? null
+                : CompressionCodec.negotiate(CompressionCodec.forEncoding(context.getProperty(COMPRESSION_CODEC).getValue()), accepts);
+        final DictionaryTrainer.Dictionary sharedDictionary = (negotiatedCodec == CompressionCodec.ZSTD)
+                ? getSharedDictionary(context, session, batch, requestConfig) : null;
+        final CompressionPolicy policy = (negotiatedCodec != null && context.getProperty(ADAPTIVE_COMPRESSION).asBoolean())
+                ? getConfig(url, context).getCompressionPolicy() : null;
+        final boolean compress = (policy == null) || shouldCompress(session, batch, policy, negotiatedCodec, sharedDictionary);
+        final CompressionCodec codec = compress ? negotiatedCodec : null;
+        final DictionaryTrainer.Dictionary dictionary = compress ? sharedDictionary : null;
+        final int level = (policy == null) ? compressionLevel : policy.getLevel(compressionLevel);
+        final boolean metered = (policy != null && codec != null);
+        final ExecutorService blockCompressor = (dictionary == null && codec != null && codec.isBlockCompressionSupported()
+                && getContentSize(flowFileList) > ParallelCompressionOutputStream.BLOCK_SIZE) ? this.compressor : null;
+        final int maxPendingBlocks = 2 * context.getProperty(COMPRESSION_THREADS).asInteger();
         final boolean isDestinationLegacyNiFi = accepts.getProtocolVersion() == null;
+        final Aggregation aggregation = getAggregation(context);
+        final String boundary = "batch-" + batch.getTransactionId();
+        final List<byte[]> partStarts = new ArrayList<>();
+        long framingLength = 0L;
+        if (aggregation != null) {
+            final String correlationAttribute = context.getProperty(CORRELATION_ATTRIBUTE).getValue();
+            for (int i = 0; i < flowFileList.size(); i++) {
+                final FlowFile flowFile = flowFileList.get(i);
+                final String contentId = (correlationAttribute == null || flowFile.getAttribute(correlationAttribute) == null)
+                        ? flowFile.getAttribute(CoreAttributes.UUID.key()) : flowFile.getAttribute(correlationAttribute);
+                final String mimeType = flowFile.getAttribute(CoreAttributes.MIME_TYPE.key());
+                partStarts.add(aggregation.getPartStart(i, contentId, (mimeType == null) ? DEFAULT_CONTENT_TYPE : mimeType, boundary));
+                framingLength += partStarts.get(i).length + aggregation.getPartEnd(boundary).length;
+            }
+            framingLength += aggregation.getStart(boundary).length + aggregation.getEnd(boundary).length;
+        }
 
         final EntityTemplate entity = new EntityTemplate(new ContentProducer() {
             @Override
             public void writeTo(final OutputStream rawOut) throws IOException {
                 final OutputStream throttled = (throttler == null) ? rawOut : throttler.newThrottledOutputStream(rawOut);
                 OutputStream wrappedOut = new BufferedOutputStream(throttled);
-                if (compressionLevel > 0 && accepts.isGzipAccepted()) {
-                    wrappedOut = new GZIPOutputStream(wrappedOut, compressionLevel);
+                final MeteredOutputStream compressedOut = metered ? new MeteredOutputStream(wrappedOut, false) : null;
+                final OutputStream belowCompressor = metered ? compressedOut : wrappedOut;
+                final ParallelCompressionOutputStream parallelOut = (blockCompressor == null) ? null
+                        : new ParallelCompressionOutputStream(belowCompressor, codec, level, blockCompressor, maxPendingBlocks);
+                final OutputStream compressingOut;
+                if (dictionary != null) {
+                    compressingOut = dictionary.compress(belowCompressor, level);
+                } else if (parallelOut != null) {
+                    compressingOut = parallelOut;
+                } else if (codec != null) {
+                    compressingOut = codec.compress(belowCompressor, level);
+                } else {
+                    compressingOut = null;
+                }
+                final MeteredOutputStream uncompressedOut = metered ? new MeteredOutputStream(compressingOut, true) : null;
+                if (metered) {
+                    wrappedOut = new BufferedOutputStream(uncompressedOut, METERED_BUFFER_SIZE);
+                } else if (compressingOut != null) {
+                    wrappedOut = compressingOut;
                 }
 
                 try (final OutputStream out = wrappedOut) {
-                    for (final FlowFile flowFile : flowFileList) {
+                    if (aggregation != null) {
+                        out.write(aggregation.getStart(boundary));
+                    }
+                    for (int i = 0; i < flowFileList.size(); i++) {
+                        final FlowFile flowFile = flowFileList.get(i);
+                        if (aggregation != null) {
+                            out.write(partStarts.get(i));
+                        }
                         session.read(flowFile, new InputStreamCallback() {
                             @Override
                             public void process(final InputStream rawIn) throws IOException {
                                 try (final InputStream in = new BufferedInputStream(rawIn)) {
 
-                                    FlowFilePackager packager = null;
-                                    if (!sendAsFlowFile) {
-                                        packager = null;
-                                    } else if (accepts.isFlowFileV3Accepted()) {
-                                        packager = new FlowFilePackagerV3();
-                                    } else if (accepts.isFlowFileV2Accepted()) {
-                                        packager = new FlowFilePackagerV2();
-                                    } else if (accepts.isFlowFileV1Accepted()) {
-                                        packager = new FlowFilePackagerV1();
-                                    }
+                                    final FlowFilePackager packager = createPackager(sendAsFlowFile, accepts);
 
-                                    // if none of the above conditions is met, we should never get here, because
-                                    // we will have already verified that at least 1 of the FlowFile packaging
-                                    // formats is acceptable if sending as FlowFile.
+                                    // the packager is only null if not sending as FlowFile, because we will have
+                                    // already verified that at least 1 of the FlowFile packaging formats is
+                                    // acceptable if sending as FlowFile.
                                     if (packager == null) {
                                         StreamUtils.copy(in, out);
                                     } else {
-                                        final Map<String, String> flowFileAttributes;
-                                        if (isDestinationLegacyNiFi) {
-                                            // Old versions of NiFi expect nf.file.name and nf.file.path to indicate filename & path;
-                                            // in order to maintain backward compatibility, we copy the filename & path to those attribute keys.
-                                            flowFileAttributes = new HashMap<>(flowFile.getAttributes());
-                                            flowFileAttributes.put("nf.file.name", flowFile.getAttribute(CoreAttributes.FILENAME.key()));
-                                            flowFileAttributes.put("nf.file.path", flowFile.getAttribute(CoreAttributes.PATH.key()));
-                                        } else {
-                                            flowFileAttributes = flowFile.getAttributes();
-                                        }
-
+                                        final Map<String, String> flowFileAttributes = getPackagedAttributes(flowFile, isDestinationLegacyNiFi);
                                         packager.packageFlowFile(in, out, flowFileAttributes, flowFile.getSize());
                                     }
                                 }
                             }
                         });
+                        if (aggregation != null) {
+                            out.write(aggregation.getPartEnd(boundary));
+                        }
+                    }
+                    if (aggregation != null) {
+                        out.write(aggregation.getEnd(boundary));
                     }
 
                     out.flush();
                 }
+
+                if (metered) {
+                    final long cpuNanos = uncompressedOut.getCpuNanos() + ((parallelOut == null) ? 0L : parallelOut.getWorkerCpuNanos());
+                    policy.record(uncompressedOut.getBytesWritten(), compressedOut.getBytesWritten(), cpuNanos);
+                    final String baseUrl = getBaseUrl(url);
+                    session.adjustCounter("Compression Ratio (%) for " + baseUrl, policy.getRatioPercentChange(), false);
+                    session.adjustCounter("Compression CPU Millis for " + baseUrl, policy.getCpuMillisChange(), false);
+                }
             }
         });
 
-        entity.setChunked(context.getProperty(CHUNKED_ENCODING).asBoolean());
-        post.setEntity(entity);
+        final boolean chunked = context.getProperty(CHUNKED_ENCODING).asBoolean();
+        entity.setChunked(chunked);
+        // an uncompressed body is as long as its packaged FlowFiles and their framing, so it can be streamed
+        // with a Content-Length rather than chunked or buffered; a compressed one has to be chunked
+        final long packagedLength = (chunked || codec != null || dictionary != null) ? -1L
+                : getPackagedLength(flowFileList, sendAsFlowFile, accepts, isDestinationLegacyNiFi);
+        final long contentLength = (packagedLength < 0) ? -1L : packagedLength + framingLength;
+        if (contentLength < 0) {
+            post.setEntity(entity);
+        } else {
+            post.setEntity(new HttpEntityWrapper(entity) {
+                @Override
+                public long getContentLength() {
+                    return contentLength;
+                }
+            });
+        }
         post.setConfig(requestConfig);
 
         final String contentType;
@@ -614,13 +2708,12 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             } else if (accepts.isFlowFileV1Accepted()) {
                 contentType = APPLICATION_FLOW_FILE_V1;
             } else {
-                logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; rolling back session", new Object[]{url});
-                session.rollback();
-                context.yield();
-                return;
+                return null;
             }
+        } else if (aggregation != null) {
+            contentType = aggregation.getContentType(boundary);
         } else {
-            final String attributeValue = toSend.get(0).getAttribute(CoreAttributes.MIME_TYPE.key());
+            final String attributeValue = flowFileList.get(0).getAttribute(CoreAttributes.MIME_TYPE.key());
             contentType = (attributeValue == null) ? DEFAULT_CONTENT_TYPE : attributeValue;
         }
 
@@ -640,111 +2733,255 @@ public class PostAdvancedHTTP extends AbstractProcessor {
         post.setHeader(CONTENT_TYPE, contentType);
         post.setHeader(FLOWFILE_CONFIRMATION_HEADER, "true");
         post.setHeader(PROTOCOL_VERSION_HEADER, PROTOCOL_VERSION);
-        post.setHeader(TRANSACTION_ID_HEADER, transactionId);
-        if (compressionLevel > 0 && accepts.isGzipAccepted()) {
+        post.setHeader(TRANSACTION_ID_HEADER, batch.getTransactionId());
+        if (codec == CompressionCodec.GZIP) {
             post.setHeader(GZIPPED_HEADER, "true");
+        } else if (codec != null) {
+            post.setHeader(CODEC_HEADER, codec.getEncoding());
+        }
+        if (dictionary != null) {
+            post.setHeader(DICTIONARY_HEADER, String.valueOf(dictionary.getId()));
         }
 
-        // Do the actual POST
-        final String flowFileDescription = toSend.size() <= 10 ? toSend.toString() : toSend.size() + " FlowFiles";
+        return post;
+    }
 
-        final String uploadDataRate;
-        final long uploadMillis;
-        String responseContent;
+    /**
+     * @return the total size of the content of the given FlowFiles; unlike
+     * the bytes to send of a batch, it also counts a FlowFile sent on its own
+     */
+    private static long getContentSize(final List<FlowFile> flowFiles) {
+        long size = 0L;
+        for (final FlowFile flowFile : flowFiles) {
+            size += flowFile.getSize();
+        }
+        return size;
+    }
 
-        CloseableHttpResponse response = null;
-        try {
-            final StopWatch stopWatch = new StopWatch(true);
-            response = client.execute(post);
-            responseContent = EntityUtils.toString(response.getEntity());
-            stopWatch.stop();
-            uploadDataRate = stopWatch.calculateDataRate(bytesToSend);
-            uploadMillis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
-        } catch (final IOException e) {
-            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, e});
-            context.yield();
-            for (FlowFile flowFile : toSend) {
-                flowFile = session.penalize(flowFile);
-                session.transfer(flowFile, REL_FAILURE);
+    /**
+     * @return the packager the content of each FlowFile is sent with, or null
+     * if it is sent as is or the destination accepts none of the packaging
+     * formats
+     */
+    private static FlowFilePackager createPackager(final boolean sendAsFlowFile, final DestinationAccepts accepts) {
+        if (!sendAsFlowFile) {
+            return null;
+        } else if (accepts.isFlowFileV3Accepted()) {
+            return new FlowFilePackagerV3();
+        } else if (accepts.isFlowFileV2Accepted()) {
+            return new FlowFilePackagerV2();
+        } else if (accepts.isFlowFileV1Accepted()) {
+            return new FlowFilePackagerV1();
+        }
+        return null;
+    }
+
+    /**
+     * @return the attributes packaged along with the content of the given
+     * FlowFile
+     */
+    private static Map<String, String> getPackagedAttributes(final FlowFile flowFile, final boolean isDestinationLegacyNiFi) {
+        if (!isDestinationLegacyNiFi) {
+            return flowFile.getAttributes();
+        }
+        // Old versions of NiFi expect nf.file.name and nf.file.path to indicate filename & path;
+        // in order to maintain backward compatibility, we copy the filename & path to those attribute keys.
+        final Map<String, String> flowFileAttributes = new HashMap<>(flowFile.getAttributes());
+        flowFileAttributes.put("nf.file.name", flowFile.getAttribute(CoreAttributes.FILENAME.key()));
+        flowFileAttributes.put("nf.file.path", flowFile.getAttribute(CoreAttributes.PATH.key()));
+        return flowFileAttributes;
+    }
+
+    /**
+     * @return the exact length of the uncompressed body sending the given
+     * FlowFiles, or -1 if it cannot be worked out without sending it
+     */
+    private long getPackagedLength(final List<FlowFile> flowFiles, final boolean sendAsFlowFile, final DestinationAccepts accepts,
+            final boolean isDestinationLegacyNiFi) {
+        long length = 0L;
+        for (final FlowFile flowFile : flowFiles) {
+            final FlowFilePackager packager = createPackager(sendAsFlowFile, accepts);
+            try {
+                length += PackagedLength.of(packager, (packager == null) ? null : getPackagedAttributes(flowFile, isDestinationLegacyNiFi), flowFile.getSize());
+            } catch (final IOException | RuntimeException e) {
+                getLogger().debug("Unable to work out the packaged length of {} due to {}; sending it chunked", new Object[]{flowFile, e});
+                return -1L;
             }
-            return;
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (IOException e) {
-                    getLogger().warn("Failed to close HTTP Response due to {}", new Object[]{e});
-                }
-            }
-        }
-
-        // If we get a 'SEE OTHER' status code and an HTTP header that indicates that the intent
-        // of the Location URI is a flowfile hold, we will store this holdUri. This prevents us
-        // from posting to some other webservice and then attempting to delete some resource to which
-        // we are redirected
-        final int responseCode = response.getStatusLine().getStatusCode();
-        final String responseReason = response.getStatusLine().getReasonPhrase();
-        String holdUri = null;
-        if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
-            final Header locationUriHeader = response.getFirstHeader(LOCATION_URI_INTENT_NAME);
-            if (locationUriHeader != null) {
-                if (LOCATION_URI_INTENT_VALUE.equals(locationUriHeader.getValue())) {
-                    final Header holdUriHeader = response.getFirstHeader(LOCATION_HEADER_NAME);
-                    if (holdUriHeader != null) {
-                        holdUri = holdUriHeader.getValue();
+        }
+        return length;
+    }
+
+    /**
+     * Asks the compression policy of the destination whether to compress the
+     * given batch, trial-compressing a prefix of it with the given codec or
+     * dictionary if the policy wants to know how well it compresses.
+     */
+    private boolean shouldCompress(final ProcessSession session, final Batch batch, final CompressionPolicy policy,
+            final CompressionCodec codec, final DictionaryTrainer.Dictionary dictionary) {
+        final long batchBytes = getContentSize(batch.getFlowFiles());
+        boolean compressedContent = true;
+        for (final FlowFile flowFile : batch.getFlowFiles()) {
+            compressedContent &= CompressionPolicy.isCompressedType(flowFile.getAttribute(CoreAttributes.MIME_TYPE.key()));
+        }
+
+        switch (policy.decide(batchBytes, compressedContent, dictionary != null)) {
+            case SKIP:
+                return false;
+            case COMPRESS:
+                return true;
+            default:
+                break;
+        }
+
+        final byte[] prefix = new byte[(int) Math.min(batchBytes, TRIAL_SIZE)];
+        int prefixLength = 0;
+        for (final FlowFile flowFile : batch.getFlowFiles()) {
+            if (prefixLength == prefix.length) {
+                break;
+            }
+            final int offset = prefixLength;
+            final int length = (int) Math.min(flowFile.getSize(), prefix.length - offset);
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(final InputStream in) throws IOException {
+                    int read = 0;
+                    int n;
+                    while (read < length && (n = in.read(prefix, offset + read, length - read)) >= 0) {
+                        read += n;
                     }
                 }
-            }
+            });
+            prefixLength += length;
+        }
 
-            if (holdUri == null) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                return;
-            }
+        final MeteredOutputStream compressedOut = MeteredOutputStream.discarding();
+        try (final OutputStream out = (dictionary == null) ? codec.compress(compressedOut, 1) : dictionary.compress(compressedOut, 1)) {
+            out.write(prefix, 0, prefixLength);
+        } catch (final IOException e) {
+            // cannot happen when writing to nowhere; compress as configured
+            return true;
         }
 
-        if (holdUri == null) {
-            if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: response code was {}:{}; will yield processing, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                context.yield();
-                return;
-            }
+        return policy.onTrial((double) prefixLength / Math.max(compressedOut.getBytesWritten(), 1L));
+    }
 
-            if (responseCode >= 300) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
+    /**
+     * Samples the given batch for the compression dictionary if it is being
+     * learned, and makes sure that the destination holds the current one.
+     *
+     * @return the dictionary to compress the batch with, or null if there is
+     * none the destination holds
+     */
+    private DictionaryTrainer.Dictionary getSharedDictionary(final ProcessContext context, final ProcessSession session, final Batch batch,
+            final RequestConfig requestConfig) {
+        final DictionaryTrainer trainer = this.dictionaryTrainer;
+        if (trainer == null) {
+            return null;
+        }
+
+        if (trainer.wantsSamples()) {
+            for (final FlowFile flowFile : batch.getFlowFiles()) {
+                if (flowFile.getSize() > 0 && flowFile.getSize() <= trainer.getMaxSampleSize()) {
+                    final byte[] sample = new byte[(int) flowFile.getSize()];
+                    session.read(flowFile, new InputStreamCallback() {
+                        @Override
+                        public void process(final InputStream in) throws IOException {
+                            StreamUtils.fillBuffer(in, sample);
+                        }
+                    });
+                    trainer.addSample(sample);
                 }
-                return;
             }
+            if (trainer.claimTraining()) {
+                trainInBackground(trainer);
+            }
+        }
 
-            logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
-                flowFileDescription, url, FormatUtils.formatMinutesSeconds(uploadMillis, TimeUnit.MILLISECONDS), uploadDataRate});
+        final DictionaryTrainer.Dictionary dictionary = trainer.getDictionary();
+        if (dictionary == null || !batch.getDestinationAccepts().isDictionaryExchangeSupported()) {
+            return null;
+        }
 
-            for (FlowFile flowFile : toSend) {
+        final Config config = getConfig(batch.getUrl(), context);
+        if (config.isDictionaryShared(dictionary.getId())) {
+            return dictionary;
+        }
+
+        final HttpPut put = new HttpPut(batch.getUrl());
+        put.setHeader(DICTIONARY_HEADER, String.valueOf(dictionary.getId()));
+        put.setHeader(TRANSACTION_ID_HEADER, batch.getTransactionId());
+        put.setEntity(new ByteArrayEntity(dictionary.getContent(), ContentType.create(APPLICATION_ZSTD_DICTIONARY)));
+        put.setConfig(requestConfig);
+        try (final CloseableHttpResponse response = batch.getClient().execute(put)) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= 300) {
+                getLogger().warn("{} did not take compression dictionary {}: response code was {}:{}; sending {} without it",
+                        new Object[]{batch.getUrl(), dictionary.getId(), statusCode, response.getStatusLine().getReasonPhrase(), batch.getFlowFiles()});
+                return null;
+            }
+        } catch (final IOException e) {
+            getLogger().warn("Failed to send compression dictionary {} to {} due to {}; sending {} without it",
+                    new Object[]{dictionary.getId(), batch.getUrl(), e, batch.getFlowFiles()});
+            return null;
+        }
 
-                flowFile = this.setHttpPostResponse(context, session, responseContent, flowFile);
+        getLogger().info("Sent compression dictionary {} to {}", new Object[]{dictionary.getId(), batch.getUrl()});
+        config.dictionaryShared(dictionary.getId());
+        return dictionary;
+    }
 
-                session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + dnHolder.get(), uploadMillis, true);
-                session.transfer(flowFile, REL_SUCCESS);
+    /**
+     * Trains the next compression dictionary on the negotiator thread, after
+     * {@link DictionaryTrainer#claimTraining()} returned true.
+     */
+    private void trainInBackground(final DictionaryTrainer trainer) {
+        final Runnable training = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final DictionaryTrainer.Dictionary dictionary = trainer.train();
+                    getLogger().info("Learned compression dictionary {} of {} bytes", new Object[]{dictionary.getId(), dictionary.getContent().length});
+                } catch (final RuntimeException e) {
+                    getLogger().warn("Failed to learn a compression dictionary due to {}; will sample content again", new Object[]{e});
+                }
             }
+        };
 
-            return;
+        final ExecutorService negotiator = this.negotiator;
+        try {
+            if (negotiator != null) {
+                negotiator.execute(training);
+                return;
+            }
+        } catch (final RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+        training.run();
+    }
+
+    /**
+     * @return the Location of the response if its intent is a flowfile hold,
+     * null otherwise
+     */
+    private String getHoldUri(final HttpResponse response) {
+        final Header locationUriHeader = response.getFirstHeader(LOCATION_URI_INTENT_NAME);
+        if (locationUriHeader != null) {
+            if (LOCATION_URI_INTENT_VALUE.equals(locationUriHeader.getValue())) {
+                final Header holdUriHeader = response.getFirstHeader(LOCATION_HEADER_NAME);
+                if (holdUriHeader != null) {
+                    return holdUriHeader.getValue();
+                }
+            }
         }
+        return null;
+    }
 
-        //
-        // the response indicated a Hold URI; delete the Hold.
-        //
-        // determine the full URI of the Flow File's Hold; Unfortunately, the responses that are returned have
-        // changed over the past, so we have to take into account a few different possibilities.
+    /**
+     * determine the full URI of the Flow File's Hold; Unfortunately, the responses that are returned have
+     * changed over the past, so we have to take into account a few different possibilities.
+     */
+    private String resolveHoldUri(final String url, final String holdUri) {
         String fullHoldUri = holdUri;
         if (holdUri.startsWith("/contentListener")) {
             // If the Hold URI that we get starts with /contentListener, it may not really be /contentListener,
@@ -765,55 +3002,18 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             // Absolute URL
             fullHoldUri = url + (url.endsWith("/") ? "" : "/") + holdUri;
         }
-
-        final HttpDelete delete = new HttpDelete(fullHoldUri);
-        delete.setHeader(TRANSACTION_ID_HEADER, transactionId);
-
-        while (true) {
-            try {
-                final HttpResponse holdResponse = client.execute(delete);
-                responseContent = EntityUtils.toString(holdResponse.getEntity());
-                final int holdStatusCode = holdResponse.getStatusLine().getStatusCode();
-                final String holdReason = holdResponse.getStatusLine().getReasonPhrase();
-                if (holdStatusCode >= 300) {
-                    logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
-                            new Object[]{flowFileDescription, holdStatusCode, holdReason});
-
-                    for (FlowFile flowFile : toSend) {
-                        flowFile = session.penalize(flowFile);
-                        session.transfer(flowFile, REL_FAILURE);
-                    }
-                    return;
-                }
-
-                logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
-                        new Object[]{flowFileDescription, url, uploadMillis, uploadDataRate});
-
-                for (FlowFile flowFile : toSend) {
-                    flowFile = this.setHttpPostResponse(context, session, responseContent, flowFile);
-                    session.getProvenanceReporter().send(flowFile, url);
-                    session.transfer(flowFile, REL_SUCCESS);
-                }
-                return;
-            } catch (final IOException e) {
-                logger.warn("Failed to delete Hold that destination placed on {} due to {}", new Object[]{flowFileDescription, e});
-            }
-
-            if (!isScheduled()) {
-                context.yield();
-                logger.warn("Failed to delete Hold that destination placed on {}; Processor has been stopped so routing FlowFile(s) to failure", new Object[]{flowFileDescription});
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                return;
-            }
-        }
+        return fullHoldUri;
     }
 
     private DestinationAccepts getDestinationAcceptance(final HttpClient client, final String uri, final ProcessorLog logger, final String transactionId) throws IOException {
         final HttpHead head = new HttpHead(uri);
         head.addHeader(TRANSACTION_ID_HEADER, transactionId);
+        final DictionaryTrainer trainer = this.dictionaryTrainer;
+        final DictionaryTrainer.Dictionary dictionary = (trainer == null) ? null : trainer.getDictionary();
+        if (dictionary != null) {
+            // advertise the current dictionary, so that the destination can tell whether it holds it
+            head.addHeader(DICTIONARY_HEADER, String.valueOf(dictionary.getId()));
+        }
         final HttpResponse response = client.execute(head);
 
         final int statusCode = response.getStatusLine().getStatusCode();
@@ -824,7 +3024,7 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             boolean acceptsFlowFileV3 = false;
             boolean acceptsFlowFileV2 = false;
             boolean acceptsFlowFileV1 = true;
-            boolean acceptsGzip = false;
+            final Set<String> encodings = new HashSet<>();
             Integer protocolVersion = null;
 
             Header[] headers = response.getHeaders(ACCEPT);
@@ -868,126 +3068,440 @@ public class PostAdvancedHTTP extends AbstractProcessor {
             if (headers != null) {
                 for (final Header header : headers) {
                     for (final String accepted : header.getValue().split(",")) {
-                        if (accepted.equalsIgnoreCase("gzip")) {
-                            acceptsGzip = true;
+                        // drop any quality value, as in "gzip;q=0.5"
+                        final int paramIndex = accepted.indexOf(';');
+                        final String encoding = (paramIndex < 0) ? accepted : accepted.substring(0, paramIndex);
+                        if (!encoding.trim().isEmpty()) {
+                            encodings.add(encoding.trim().toLowerCase());
                         }
                     }
                 }
             }
 
-            if (acceptsGzip) {
-                logger.debug("Connection to URI " + uri + " indicates that inline GZIP compression is supported");
+            if (encodings.isEmpty()) {
+                logger.debug("Connection to URI " + uri + " indicates that it does NOT support inline compression");
             } else {
-                logger.debug("Connection to URI " + uri + " indicates that it does NOT support inline GZIP compression");
+                logger.debug("Connection to URI " + uri + " indicates that inline compression is supported with " + encodings);
+            }
+
+            Set<Long> dictionaries = null;
+            headers = response.getHeaders(DICTIONARIES_HEADER);
+            if (headers != null && headers.length > 0) {
+                dictionaries = new HashSet<>();
+                for (final Header header : headers) {
+                    for (final String held : header.getValue().split(",")) {
+                        try {
+                            if (!held.trim().isEmpty()) {
+                                dictionaries.add(Long.valueOf(held.trim()));
+                            }
+                        } catch (final NumberFormatException e) {
+                            // not a dictionary of ours
+                        }
+                    }
+                }
+                logger.debug("Connection to URI " + uri + " indicates that it takes compression dictionaries and holds " + dictionaries);
             }
 
-            return new DestinationAccepts(acceptsFlowFileV3, acceptsFlowFileV2, acceptsFlowFileV1, acceptsGzip, protocolVersion);
+            return new DestinationAccepts(acceptsFlowFileV3, acceptsFlowFileV2, acceptsFlowFileV1, encodings, dictionaries, protocolVersion);
         } else {
             logger.warn("Unable to communicate with destination; when attempting to perform an HTTP HEAD, got unexpected response code of " + statusCode + ": " + response.getStatusLine().getReasonPhrase());
-            return new DestinationAccepts(false, false, false, false, null);
+            return DestinationAccepts.unavailable();
         }
     }
 
-    private FlowFile setHttpPostResponse(final ProcessContext context, final ProcessSession session, final String responseContent, FlowFile flowFile) {
+    /**
+     * Applies the response of a POST to the FlowFiles it was sent for, as
+     * configured by the Destination property. When the response goes to the
+     * content of the FlowFiles, it is streamed once into the first FlowFile
+     * and copied from there into the others, so it is never held in memory.
+     * The given list is updated in place with the new version of each
+     * FlowFile, even if an IOException is thrown halfway.
+     *
+     * @throws IOException if the response cannot be read, or exceeds the Max
+     * Response Size
+     */
+    private void setHttpPostResponse(final ProcessContext context, final ProcessSession session, final HttpEntity entity, final List<FlowFile> flowFiles) throws IOException {
         final ProcessorLog logger = getLogger();
+        final JsonPathExtractor extractor = this.jsonPathExtractor;
+        final Aggregation aggregation = getAggregation(context);
+        if (aggregation != null && entity != null) {
+            setAggregatedResponse(context, session, entity, flowFiles, aggregation);
+            return;
+        }
         
         PropertyValue property = context.getProperty(DESTINATION);
 
         switch (property.getValue()) {
             case DESTINATION_IGNORE:
+                if (extractor != null && entity != null) {
+                    try (final InputStream in = new MaxSizeEntity(entity, getMaxResponseSize(context)).getContent()) {
+                        putAllAttributes(session, flowFiles, evaluateJsonPaths(extractor, in, getCharset(entity), getMaxInMemoryResponseSize(context), flowFiles));
+                    }
+                }
                 //do nothing
-                logger.info("No neeed to update content of {}", new Object[]{flowFile});
-                return flowFile;
+                EntityUtils.consume(entity);
+                logger.info("No neeed to update content of {}", new Object[]{flowFiles});
+                return;
             case DESTINATION_ATTRIBUTE:
                 PropertyValue destinationName = context.getProperty(DESTINATION_NAME);
+                final int maxAttributeSize = getMaxInMemoryResponseSize(context);
+                final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+                boolean truncated = false;
+                if (entity != null) {
+                    // only the beginning of a response too large to be held in memory makes it into the attribute
+                    try (final InputStream in = new MaxSizeEntity(entity, getMaxResponseSize(context)).getContent()) {
+                        truncated = readAtMost(in, maxAttributeSize, responseBytes);
+                    }
+                }
+                final String responseContent = new String(responseBytes.toByteArray(), getCharset(entity));
                 //set the content as an attribute
-                flowFile = session.putAttribute(flowFile, destinationName.getValue(), responseContent);
-                logger.info("Successfully set attribute {} of {}.", new Object[]{property.getValue(), flowFile});
-                return flowFile;
+                for (int i = 0; i < flowFiles.size(); i++) {
+                    FlowFile flowFile = session.putAttribute(flowFiles.get(i), destinationName.getValue(), responseContent);
+                    if (truncated) {
+                        flowFile = session.putAttribute(flowFile, RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+                    }
+                    flowFiles.set(i, flowFile);
+                    logger.info("Successfully set attribute {} of {}.", new Object[]{property.getValue(), flowFile});
+                }
+                if (truncated) {
+                    logger.warn("Response to {} exceeds the Max In-Memory Response Size of {} bytes; only its beginning was kept", new Object[]{flowFiles, maxAttributeSize});
+                }
+                if (extractor != null) {
+                    putAllAttributes(session, flowFiles, truncated ? skipJsonPaths(flowFiles, maxAttributeSize)
+                            : evaluateJsonPaths(extractor, new ByteArrayInputStream(responseBytes.toByteArray()), getCharset(entity), maxAttributeSize, flowFiles));
+                }
+                return;
             case DESTINATION_CONTENT:
-                final ObjectHolder<RuntimeException> error = new ObjectHolder<>(null);
-                flowFile = session.write(flowFile, new OutputStreamCallback() {
-                    @Override
-                    public void process(final OutputStream rawOut) throws IOException {
-                        try (final OutputStream out = new BufferedOutputStream(rawOut)) {
-                            org.apache.commons.io.IOUtils.write(responseContent, out);
-                            out.flush();
-                        } catch (RuntimeException e) {
-                            error.set(e);
+                final HttpEntity content = (entity == null) ? null : new MaxSizeEntity(entity, getMaxResponseSize(context));
+                final FlowFile first;
+                try {
+                    first = session.write(flowFiles.get(0), new OutputStreamCallback() {
+                        @Override
+                        public void process(final OutputStream out) throws IOException {
+                            if (content != null) {
+                                content.writeTo(out);
+                            }
                         }
+                    });
+                } catch (final ProcessException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
                     }
-                });
-
-                if (error.get() != null) {
-                    throw error.get();
+                    throw e;
+                }
+                flowFiles.set(0, first);
+                logger.info("Successfully updated content for {}.", new Object[]{first});
+                final Charset charset = getCharset(entity);
+
+                // the rest of the batch gets the same response: copy it over from the first FlowFile
+                for (int i = 1; i < flowFiles.size(); i++) {
+                    final FlowFile flowFile = session.write(flowFiles.get(i), new OutputStreamCallback() {
+                        @Override
+                        public void process(final OutputStream out) throws IOException {
+                            session.exportTo(first, out);
+                        }
+                    });
+                    flowFiles.set(i, flowFile);
+                    logger.info("Successfully updated content for {}.", new Object[]{flowFile});
                 }
-                logger.info("Successfully updated content for {}.", new Object[]{flowFile});
 
-                return flowFile;
+                if (extractor != null) {
+                    // read the response back from the content rather than holding on to it
+                    final int maxDocumentSize = getMaxInMemoryResponseSize(context);
+                    final ObjectHolder<Map<String, String>> results = new ObjectHolder<>(null);
+                    try {
+                        session.read(first, new InputStreamCallback() {
+                            @Override
+                            public void process(final InputStream in) throws IOException {
+                                results.set(evaluateJsonPaths(extractor, in, charset, maxDocumentSize, flowFiles));
+                            }
+                        });
+                    } catch (final ProcessException e) {
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        }
+                        throw e;
+                    }
+                    putAllAttributes(session, flowFiles, results.get());
+                }
+                return;
             default:
                 throw new IllegalStateException("???");
         }
+    }
 
+    /**
+     * Splits the response to an aggregated body into a result per FlowFile,
+     * matches each FlowFile to its result, by position or by its Correlation
+     * Attribute, and handles every result according to the Destination. A
+     * FlowFile without a result is left as it is.
+     * <p>
+     * The given list is updated in place with the new version of each
+     * FlowFile.
+     *
+     * @throws IOException if the response cannot be read, exceeds the Max
+     * Response Size or is not in the format of the Aggregation
+     */
+    private void setAggregatedResponse(final ProcessContext context, final ProcessSession session, final HttpEntity entity, final List<FlowFile> flowFiles,
+            final Aggregation aggregation) throws IOException {
+        final ProcessorLog logger = getLogger();
+        final JsonPathExtractor extractor = this.jsonPathExtractor;
+        final JsonPath correlationPath = this.correlationPath;
+        final String correlationAttribute = context.getProperty(CORRELATION_ATTRIBUTE).getValue();
+        final String destination = context.getProperty(DESTINATION).getValue();
+        final int maxAttributeSize = getMaxInMemoryResponseSize(context);
+        final Charset charset = getCharset(entity);
+
+        final List<Aggregation.Part> parts;
+        try (final InputStream in = new MaxSizeEntity(entity, getMaxResponseSize(context)).getContent()) {
+            parts = aggregation.split(in, charset, (entity.getContentType() == null) ? null : entity.getContentType().getValue());
+        }
 
-    }
+        final Map<String, Aggregation.Part> partsByKey = new HashMap<>();
+        if (correlationAttribute != null) {
+            for (final Aggregation.Part part : parts) {
+                String key = part.getContentId();
+                if (correlationPath != null) {
+                    try {
+                        key = JsonPathExtractor.read(correlationPath, part.getDocument());
+                    } catch (final InvalidJsonException e) {
+                        logger.warn("A result in the response to {} is not JSON, so its correlation value cannot be read; ignoring it", new Object[]{flowFiles});
+                        continue;
+                    }
+                }
+                if (key != null) {
+                    partsByKey.put(key, part);
+                }
+            }
+        } else if (parts.size() != flowFiles.size()) {
+            logger.warn("Response to {} holds {} results for {} FlowFiles; matching them by position", new Object[]{flowFiles, parts.size(), flowFiles.size()});
+        }
 
-    private static class DestinationAccepts {
+        for (int i = 0; i < flowFiles.size(); i++) {
+            FlowFile flowFile = flowFiles.get(i);
+            final Aggregation.Part part;
+            if (correlationAttribute == null) {
+                part = (i < parts.size()) ? parts.get(i) : null;
+            } else {
+                final String key = flowFile.getAttribute(correlationAttribute);
+                part = (key == null) ? null : partsByKey.get(key);
+            }
+            if (part == null) {
+                logger.warn("Response holds no result for {}; leaving it as it is", new Object[]{flowFile});
+                continue;
+            }
 
-        private final boolean flowFileV1;
-        private final boolean flowFileV2;
-        private final boolean flowFileV3;
-        private final boolean gzip;
-        private final Integer protocolVersion;
+            switch (destination) {
+                case DESTINATION_ATTRIBUTE:
+                    final byte[] bytes = part.getContent();
+                    final boolean truncated = bytes.length > maxAttributeSize;
+                    flowFile = session.putAttribute(flowFile, context.getProperty(DESTINATION_NAME).getValue(),
+                            new String(bytes, 0, Math.min(bytes.length, maxAttributeSize), charset));
+                    if (truncated) {
+                        flowFile = session.putAttribute(flowFile, RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+                    }
+                    break;
+                case DESTINATION_CONTENT:
+                    flowFile = session.write(flowFile, new OutputStreamCallback() {
+                        @Override
+                        public void process(final OutputStream out) throws IOException {
+                            out.write(part.getContent());
+                        }
+                    });
+                    break;
+                default:
+                    break;
+            }
 
-        public DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
-                final boolean gzip, final Integer protocolVersion) {
-            this.flowFileV3 = flowFileV3;
-            this.flowFileV2 = flowFileV2;
-            this.flowFileV1 = flowFileV1;
-            this.gzip = gzip;
-            this.protocolVersion = protocolVersion;
+            if (extractor != null) {
+                try {
+                    flowFile = session.putAllAttributes(flowFile, extractor.extract(part.getDocument()));
+                } catch (final InvalidJsonException e) {
+                    logger.warn("Unable to evaluate JsonPath expressions against the result for {} due to {}; not setting their attributes",
+                            new Object[]{flowFile, e});
+                }
+            }
+            flowFiles.set(i, flowFile);
         }
+        logger.info("Successfully split the response to {} into {} results", new Object[]{flowFiles, parts.size()});
+    }
+
+    /**
+     * @return how the FlowFiles of a batch are packed into one body, or null
+     * if they are sent as FlowFiles or one at a time
+     */
+    private static Aggregation getAggregation(final ProcessContext context) {
+        return context.getProperty(SEND_AS_FLOWFILE).asBoolean() ? null : Aggregation.forValue(context.getProperty(AGGREGATION).getValue());
+    }
 
-        public boolean isFlowFileV3Accepted() {
-            return flowFileV3;
+    /**
+     * Evaluates the JsonPath dynamic properties against the response to the
+     * given FlowFiles, unless it is larger than the given size: the whole
+     * document would have to be parsed into memory.
+     *
+     * @return the attributes to set, which are none if the response is not
+     * JSON, and only {@link #JSONPATH_SKIPPED_ATTRIBUTE} if it is too large
+     * @throws IOException if the response cannot be read
+     */
+    private Map<String, String> evaluateJsonPaths(final JsonPathExtractor extractor, final InputStream response, final Charset charset,
+            final int maxSize, final List<FlowFile> flowFiles) throws IOException {
+        final ByteArrayOutputStream document = new ByteArrayOutputStream();
+        if (readAtMost(response, maxSize, document)) {
+            return skipJsonPaths(flowFiles, maxSize);
         }
+        try {
+            return extractor.extract(new ByteArrayInputStream(document.toByteArray()), charset.name());
+        } catch (final InvalidJsonException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            getLogger().warn("Unable to evaluate JsonPath expressions against the response to {} due to {}; not setting their attributes",
+                    new Object[]{flowFiles, e});
+            return Collections.emptyMap();
+        }
+    }
 
-        public boolean isFlowFileV2Accepted() {
-            return flowFileV2;
+    private Map<String, String> skipJsonPaths(final List<FlowFile> flowFiles, final int maxSize) {
+        getLogger().warn("Response to {} exceeds the Max In-Memory Response Size of {} bytes; not evaluating JsonPath expressions against it",
+                new Object[]{flowFiles, maxSize});
+        return Collections.singletonMap(JSONPATH_SKIPPED_ATTRIBUTE, "true");
+    }
+
+    /**
+     * Reads the given stream into the given buffer until its end or until
+     * the buffer holds the given number of bytes.
+     *
+     * @return true if the stream holds more than that
+     */
+    private static boolean readAtMost(final InputStream in, final int max, final ByteArrayOutputStream out) throws IOException {
+        final byte[] chunk = new byte[8192];
+        int count = 0;
+        while (out.size() < max && (count = in.read(chunk, 0, Math.min(chunk.length, max - out.size()))) >= 0) {
+            out.write(chunk, 0, count);
         }
+        return count >= 0 && in.read() >= 0;
+    }
 
-        public boolean isFlowFileV1Accepted() {
-            return flowFileV1;
+    private static void putAllAttributes(final ProcessSession session, final List<FlowFile> flowFiles, final Map<String, String> attributes) {
+        if (attributes.isEmpty()) {
+            return;
         }
+        for (int i = 0; i < flowFiles.size(); i++) {
+            flowFiles.set(i, session.putAllAttributes(flowFiles.get(i), attributes));
+        }
+    }
 
-        public boolean isGzipAccepted() {
-            return gzip;
+    /**
+     * @return the charset of the given response entity, or ISO-8859-1 if it
+     * does not specify one
+     */
+    private static Charset getCharset(final HttpEntity entity) throws UnsupportedEncodingException {
+        Charset charset = null;
+        try {
+            final ContentType contentType = (entity == null) ? null : ContentType.get(entity);
+            if (contentType != null) {
+                charset = contentType.getCharset();
+            }
+        } catch (final UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(e.getMessage());
         }
+        return (charset == null) ? HTTP.DEF_CONTENT_CHARSET : charset;
+    }
+
+    /**
+     * Marks a FlowFile routed to failure because its response exceeded the
+     * Max Response Size.
+     */
+    private static FlowFile markIfTruncated(final ProcessSession session, final FlowFile flowFile, final Exception failure) {
+        return (failure instanceof ContentTooLongException) ? session.putAttribute(flowFile, RESPONSE_TRUNCATED_ATTRIBUTE, "true") : flowFile;
+    }
 
-        public Integer getProtocolVersion() {
-            return protocolVersion;
+    /**
+     * Deletes the responses spilled to disk that are left in the spill
+     * directory of this processor.
+     */
+    private void clearSpilledResponses(final ResponseBuffer.Factory responseBuffers) {
+        try {
+            responseBuffers.clear();
+        } catch (final IOException e) {
+            getLogger().warn("Unable to clear the responses spilled to disk due to {}", new Object[]{e});
         }
     }
 
-    private static class Config {
+    /**
+     * @return the Max In-Memory Response Size in bytes, or Integer.MAX_VALUE
+     * if it is larger than that
+     */
+    private static int getMaxInMemoryResponseSize(final ProcessContext context) {
+        return (int) Math.min(Integer.MAX_VALUE, context.getProperty(MAX_IN_MEMORY_RESPONSE_SIZE).asDataSize(DataUnit.B).longValue());
+    }
+
+    /**
+     * @return the Max Response Size in bytes, or Long.MAX_VALUE if not set
+     */
+    private long getMaxResponseSize(final ProcessContext context) {
+        final PropertyValue maxResponseSize = context.getProperty(MAX_RESPONSE_SIZE);
+        return (maxResponseSize.getValue() == null) ? Long.MAX_VALUE : maxResponseSize.asDataSize(DataUnit.B).longValue();
+    }
+
+    private static class Batch {
+
+        private final String url;
+        private final List<FlowFile> flowFiles;
+        private final DestinationAccepts destinationAccepts;
+        private final CloseableHttpClient client;
+        private final String transactionId;
+        private final ObjectHolder<String> dnHolder;
+        private final long bytesToSend;
+        private final String holdUri;
+
+        public Batch(final String url, final List<FlowFile> flowFiles, final DestinationAccepts destinationAccepts, final CloseableHttpClient client,
+                final String transactionId, final ObjectHolder<String> dnHolder, final long bytesToSend, final String holdUri) {
+            this.url = url;
+            this.flowFiles = flowFiles;
+            this.destinationAccepts = destinationAccepts;
+            this.client = client;
+            this.transactionId = transactionId;
+            this.dnHolder = dnHolder;
+            this.bytesToSend = bytesToSend;
+            this.holdUri = holdUri;
+        }
 
-        private volatile DestinationAccepts destinationAccepts;
-        private final HttpClientConnectionManager conMan;
+        public String getUrl() {
+            return url;
+        }
 
-        public Config(final HttpClientConnectionManager conMan) {
-            this.conMan = conMan;
+        public List<FlowFile> getFlowFiles() {
+            return flowFiles;
         }
 
         public DestinationAccepts getDestinationAccepts() {
-            return this.destinationAccepts;
+            return destinationAccepts;
         }
 
-        public void setDestinationAccepts(final DestinationAccepts destinationAccepts) {
-            this.destinationAccepts = destinationAccepts;
+        public CloseableHttpClient getClient() {
+            return client;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public ObjectHolder<String> getDnHolder() {
+            return dnHolder;
+        }
+
+        public long getBytesToSend() {
+            return bytesToSend;
         }
 
-        public HttpClientConnectionManager getConnectionManager() {
-            return conMan;
+        /**
+         * @return the hold that is left to release for the FlowFiles of this
+         * batch, which were posted on an earlier attempt, or null if they
+         * are still to be posted
+         */
+        public String getHoldUri() {
+            return holdUri;
         }
     }
 }
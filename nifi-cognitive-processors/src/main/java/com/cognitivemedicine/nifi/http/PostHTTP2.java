@@ -15,18 +15,10 @@
  */
 package com.cognitivemedicine.nifi.http;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -36,16 +28,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
-import javax.security.cert.X509Certificate;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.Header;
@@ -63,13 +55,8 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContextBuilder;
-import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.client.BasicCredentialsProvider;
@@ -136,6 +123,8 @@ public class PostHTTP2 extends AbstractProcessor {
     public static final String LOCATION_URI_INTENT_NAME = "x-location-uri-intent";
     public static final String LOCATION_URI_INTENT_VALUE = "flowfile-hold";
     public static final String GZIPPED_HEADER = "flowfile-gzipped";
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_ASYNC = "async";
 
     public static final String PROTOCOL_VERSION_HEADER = "x-nifi-transfer-protocol-version";
     public static final String TRANSACTION_ID_HEADER = "x-nifi-transaction-id";
@@ -209,6 +198,22 @@ public class PostHTTP2 extends AbstractProcessor {
             .required(false)
             .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
             .build();
+    public static final PropertyDescriptor MAX_DESTINATION_REQUEST_RATE = new PropertyDescriptor.Builder()
+            .name("Max Requests per Second per Destination")
+            .description("The maximum number of POSTs sent to a single destination (scheme, host and port) per second, over all tasks. A batch whose "
+                    + "destination has used up its rate goes back to the queue penalized, while the FlowFiles for other destinations go on being sent. "
+                    + "If not specified, the request rate is not limited")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_DESTINATION_DATA_RATE = new PropertyDescriptor.Builder()
+            .name("Max Data to Post per Second per Destination")
+            .description("The maximum amount of FlowFile content sent to a single destination per second, over all tasks, enforced like Max Requests "
+                    + "per Second per Destination. A batch larger than this goes out whenever the destination has not been sent anything for a second. "
+                    + "If not specified, the data rate of each destination is only limited by Max Data to Post per Second")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
     public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
             .name("Max Batch Size")
             .description("If the Send as FlowFile property is true, specifies the max data size for a batch of FlowFiles to send in a single HTTP POST. If not specified, each FlowFile will be sent separately. If the Send as FlowFile property is false, this property is ignored")
@@ -230,6 +235,57 @@ public class PostHTTP2 extends AbstractProcessor {
             .required(false)
             .identifiesControllerService(SSLContextService.class)
             .build();
+    public static final PropertyDescriptor TLS_PROTOCOLS = TlsSettings.TLS_PROTOCOLS;
+    public static final PropertyDescriptor TLS_CIPHER_SUITES = TlsSettings.TLS_CIPHER_SUITES;
+    public static final PropertyDescriptor CONNECTION_POOL_SERVICE = new PropertyDescriptor.Builder()
+            .name("Connection Pool Service")
+            .description("The Controller Service providing the connection pool to post through. If set, connections, and what each destination was found "
+                    + "to accept, are shared with every other processor using the same service, and the SSL Context Service of the pool service is used "
+                    + "instead of the one of this processor. The async HTTP Engine keeps connections of its own")
+            .required(false)
+            .identifiesControllerService(HttpConnectionPoolService.class)
+            .build();
+    public static final PropertyDescriptor HTTP_ENGINE = new PropertyDescriptor.Builder()
+            .name("HTTP Engine")
+            .description("Indicates how requests are sent. If blocking, each task sends one request at a time and waits for its response. If async, each task keeps "
+                    + "up to Max In-Flight Requests requests outstanding over a non-blocking client and routes the FlowFiles of each one as its response arrives; "
+                    + "in that case the body of each request is buffered into memory before it is sent.")
+            .required(true)
+            .allowableValues(ENGINE_BLOCKING, ENGINE_ASYNC)
+            .defaultValue(ENGINE_BLOCKING)
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Requests")
+            .description("If HTTP Engine is async, specifies the maximum number of requests that a single task keeps outstanding at any time. If HTTP Engine is blocking, this property is ignored")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT_DATA = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Data")
+            .description("If HTTP Engine is async, specifies how much request data a single task keeps in memory for its outstanding "
+                    + "requests, as their bodies are buffered before they are submitted; further batches wait for earlier ones to be answered. A batch "
+                    + "is always sent when the task has nothing else outstanding, however large. If HTTP Engine is blocking, this property is ignored")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 MB")
+            .build();
+    public static final PropertyDescriptor MAX_DESTINATION_POOLS = new PropertyDescriptor.Builder()
+            .name("Max Destination Pools")
+            .description("Specifies the maximum number of destinations (scheme, host and port) for which a connection pool is kept open at any time. When a "
+                    + "FlowFile goes to a new destination and this many pools are open already, the pool of the least recently used destination is closed")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+    public static final PropertyDescriptor DESTINATION_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Destination Idle Timeout")
+            .description("How long a destination may go without a FlowFile being sent to it before its connection pool is closed and what it was found to "
+                    + "accept is forgotten. Pooled connections that go unused for this long are closed as well")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success").description("Files that are successfully send will be transferred to success").build();
     public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure").description("Files that fail to send will transferred to failure").build();
@@ -239,7 +295,8 @@ public class PostHTTP2 extends AbstractProcessor {
 
     private final AtomicReference<DestinationAccepts> acceptsRef = new AtomicReference<>();
     private final AtomicReference<StreamThrottler> throttlerRef = new AtomicReference<>();
-    private final ConcurrentMap<String, Config> configMap = new ConcurrentHashMap<>();
+    private volatile ConfigCache configCache;
+    private volatile ScheduledExecutorService reaper;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -252,7 +309,12 @@ public class PostHTTP2 extends AbstractProcessor {
         properties.add(URL);
         properties.add(MAX_BATCH_SIZE);
         properties.add(MAX_DATA_RATE);
+        properties.add(MAX_DESTINATION_REQUEST_RATE);
+        properties.add(MAX_DESTINATION_DATA_RATE);
         properties.add(SSL_CONTEXT_SERVICE);
+        properties.add(TLS_PROTOCOLS);
+        properties.add(TLS_CIPHER_SUITES);
+        properties.add(CONNECTION_POOL_SERVICE);
         properties.add(USERNAME);
         properties.add(PASSWORD);
         properties.add(SEND_AS_FLOWFILE);
@@ -262,6 +324,11 @@ public class PostHTTP2 extends AbstractProcessor {
         properties.add(DATA_TIMEOUT);
         properties.add(ATTRIBUTES_AS_HEADERS_REGEX);
         properties.add(USER_AGENT);
+        properties.add(HTTP_ENGINE);
+        properties.add(MAX_IN_FLIGHT_REQUESTS);
+        properties.add(MAX_IN_FLIGHT_DATA);
+        properties.add(MAX_DESTINATION_POOLS);
+        properties.add(DESTINATION_IDLE_TIMEOUT);
         this.properties = Collections.unmodifiableList(properties);
     }
 
@@ -279,7 +346,8 @@ public class PostHTTP2 extends AbstractProcessor {
     protected Collection<ValidationResult> customValidate(final ValidationContext context) {
         final Collection<ValidationResult> results = new ArrayList<>();
 
-        if (context.getProperty(URL).getValue().startsWith("https") && context.getProperty(SSL_CONTEXT_SERVICE).getValue() == null) {
+        if (context.getProperty(URL).getValue().startsWith("https") && context.getProperty(SSL_CONTEXT_SERVICE).getValue() == null
+                && context.getProperty(CONNECTION_POOL_SERVICE).getValue() == null) {
             results.add(new ValidationResult.Builder()
                     .explanation("URL is set to HTTPS protocol but no SSLContext has been specified")
                     .valid(false)
@@ -294,18 +362,55 @@ public class PostHTTP2 extends AbstractProcessor {
     public void onStopped() {
         this.acceptsRef.set(null);
 
-        for (final Map.Entry<String, Config> entry : configMap.entrySet()) {
-            final Config config = entry.getValue();
-            config.getConnectionManager().shutdown();
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
         }
 
-        configMap.clear();
+        final ConfigCache configCache = this.configCache;
+        if (configCache != null) {
+            getLogger().info("Closing connection pools: {}", new Object[]{configCache});
+            configCache.clear();
+        }
     }
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
         final Double bytesPerSecond = context.getProperty(MAX_DATA_RATE).asDataSize(DataUnit.B);
         this.throttlerRef.set(bytesPerSecond == null ? null : new LeakyBucketStreamThrottler(bytesPerSecond.intValue()));
+
+        final long idleMillis = context.getProperty(DESTINATION_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        final ConfigCache configCache = new ConfigCache(context.getProperty(MAX_DESTINATION_POOLS).asInteger(), idleMillis);
+        this.configCache = configCache;
+
+        // the reaper closes what has gone idle in between the triggers of the processor
+        final long reapMillis = Math.max(1000L, Math.min(idleMillis / 2, 30000L));
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "PostHTTP2 Connection Reaper " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    configCache.reap();
+                    getLogger().debug("Reaped idle connection pools: {}", new Object[]{configCache});
+                } catch (final RuntimeException e) {
+                    getLogger().warn("Failed to close idle connection pools due to {}", new Object[]{e});
+                }
+            }
+        }, reapMillis, reapMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the cache of connection pools of the current run, if any
+     */
+    ConfigCache getConfigCache() {
+        return configCache;
     }
 
     private String getBaseUrl(final String url) {
@@ -319,81 +424,584 @@ public class PostHTTP2 extends AbstractProcessor {
 
     private Config getConfig(final String url, final ProcessContext context) {
         final String baseUrl = getBaseUrl(url);
-        Config config = configMap.get(baseUrl);
+        Config config = configCache.get(baseUrl);
         if (config != null) {
             return config;
         }
 
+        final HttpConnectionPoolService poolService = context.getProperty(CONNECTION_POOL_SERVICE).asControllerService(HttpConnectionPoolService.class);
+        if (poolService != null) {
+            return configCache.putIfAbsent(baseUrl, new Config(poolService, baseUrl));
+        }
+
         final PoolingHttpClientConnectionManager conMan;
         final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
-        if ( sslContextService == null ) {
+        TlsSettings tlsSettings = null;
+        if (sslContextService == null) {
             conMan = new PoolingHttpClientConnectionManager();
         } else {
-            final SSLContext sslContext;
             try {
-                sslContext = createSSLContext(sslContextService);
+                // the SSLContext is cached per service, so new destinations do not re-read the keystores
+                tlsSettings = TlsSettings.create(sslContextService, context.getProperty(TLS_PROTOCOLS).getValue(),
+                        context.getProperty(TLS_CIPHER_SUITES).getValue());
             } catch (final Exception e) {
                 throw new ProcessException(e);
             }
-            
-            final SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext, new String[] { "TLSv1" }, null,
-                    SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
-    
+
             final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                    .register("https", sslsf).build();
-            
+                    .register("https", tlsSettings.createSocketFactory()).build();
+
             conMan = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
         }
         
         conMan.setDefaultMaxPerRoute(context.getMaxConcurrentTasks());
         conMan.setMaxTotal(context.getMaxConcurrentTasks());
-        config = new Config(conMan);
-        final Config existingConfig = configMap.putIfAbsent(baseUrl, config);
+        config = new Config(conMan, tlsSettings);
+        final Config cachedConfig = configCache.putIfAbsent(baseUrl, config);
+        if (cachedConfig != config) {
+            // another task got there first
+            config.shutdown();
+        }
 
-        return (existingConfig == null) ? config : existingConfig;
+        return cachedConfig;
     }
     
     
-    private SSLContext createSSLContext(final SSLContextService service) throws KeyStoreException, IOException, NoSuchAlgorithmException, 
-        CertificateException, KeyManagementException, UnrecoverableKeyException 
-    {
-        SSLContextBuilder builder = SSLContexts.custom();
-        final String trustFilename = service.getTrustStoreFile();
-        if ( trustFilename != null ) {
-            final KeyStore truststore  = KeyStore.getInstance(service.getTrustStoreType());
-            try (final InputStream in = new FileInputStream(new File(service.getTrustStoreFile()))) {
-                truststore.load(in, service.getTrustStorePassword().toCharArray());
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        if (ENGINE_ASYNC.equals(context.getProperty(HTTP_ENGINE).getValue())) {
+            onTriggerAsync(context, session);
+            return;
+        }
+
+        final RequestConfig requestConfig = createRequestConfig(context);
+        final ProcessorLog logger = getLogger();
+
+        final Batch batch = nextBatch(context, session, null);
+        if (batch == null) {
+            return;
+        }
+
+        final String url = batch.getUrl();
+        final List<FlowFile> toSend = batch.getFlowFiles();
+        final long bytesToSend = batch.getBytesToSend();
+        final String transactionId = batch.getTransactionId();
+        final CloseableHttpClient client = batch.getClient();
+        final ObjectHolder<String> dnHolder = batch.getDnHolder();
+
+        if (tryAcquireRate(context, session, batch) > 0L) {
+            // only these FlowFiles wait, not the ones for other destinations
+            logger.debug("{} has used up its rate for now; returning {} to the queue", new Object[]{url, toSend});
+            penalizeToQueue(session, toSend);
+            return;
+        }
+
+        final HttpPost post = createPost(context, session, batch, requestConfig);
+        if (post == null) {
+            logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; rolling back session", new Object[]{url});
+            session.rollback();
+            context.yield();
+            return;
+        }
+
+        // Do the actual POST
+        final String flowFileDescription = toSend.size() <= 10 ? toSend.toString() : toSend.size() + " FlowFiles";
+
+        final String uploadDataRate;
+        final long uploadMillis;
+        CloseableHttpResponse response = null;
+        try {
+            final StopWatch stopWatch = new StopWatch(true);
+            response = client.execute(post);
+
+            // consume input stream entirely, ignoring its contents. If we
+            // don't do this, the Connection will not be returned to the pool
+            EntityUtils.consume(response.getEntity());
+            stopWatch.stop();
+            uploadDataRate = stopWatch.calculateDataRate(bytesToSend);
+            uploadMillis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
+        } catch (final IOException e) {
+            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, e});
+            context.yield();
+            for (FlowFile flowFile : toSend) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    getLogger().warn("Failed to close HTTP Response due to {}", new Object[]{e});
+                }
             }
-            builder = builder.loadTrustMaterial(truststore, new TrustSelfSignedStrategy());
         }
 
-        final String keyFilename = service.getKeyStoreFile();
-        if ( keyFilename != null ) {
-            final KeyStore keystore  = KeyStore.getInstance(service.getKeyStoreType());
-            try (final InputStream in = new FileInputStream(new File(service.getKeyStoreFile()))) {
-                keystore.load(in, service.getKeyStorePassword().toCharArray());
+        // If we get a 'SEE OTHER' status code and an HTTP header that indicates that the intent
+        // of the Location URI is a flowfile hold, we will store this holdUri. This prevents us
+        // from posting to some other webservice and then attempting to delete some resource to which
+        // we are redirected
+        final int responseCode = response.getStatusLine().getStatusCode();
+        final String responseReason = response.getStatusLine().getReasonPhrase();
+        String holdUri = null;
+        if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
+            holdUri = getHoldUri(response);
+
+            if (holdUri == null) {
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return;
+            }
+        }
+
+        if (holdUri == null) {
+            if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    logger.error("Failed to Post {} to {}: response code was {}:{}; will yield processing, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                context.yield();
+                return;
+            }
+
+            if (responseCode >= 300) {
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return;
+            }
+
+            logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
+                flowFileDescription, url, FormatUtils.formatMinutesSeconds(uploadMillis, TimeUnit.MILLISECONDS), uploadDataRate});
+
+            for (final FlowFile flowFile : toSend) {
+                session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + dnHolder.get(), uploadMillis, true);
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+            return;
+        }
+
+        //
+        // the response indicated a Hold URI; delete the Hold.
+        //
+        final String fullHoldUri = resolveHoldUri(url, holdUri);
+
+        final HttpDelete delete = new HttpDelete(fullHoldUri);
+        delete.setHeader(TRANSACTION_ID_HEADER, transactionId);
+
+        while (true) {
+            try {
+                final HttpResponse holdResponse = client.execute(delete);
+                EntityUtils.consume(holdResponse.getEntity());
+                final int holdStatusCode = holdResponse.getStatusLine().getStatusCode();
+                final String holdReason = holdResponse.getStatusLine().getReasonPhrase();
+                if (holdStatusCode >= 300) {
+                    logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
+                            new Object[]{flowFileDescription, holdStatusCode, holdReason});
+
+                    for (FlowFile flowFile : toSend) {
+                        flowFile = session.penalize(flowFile);
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    return;
+                }
+
+                logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
+                        new Object[]{flowFileDescription, url, uploadMillis, uploadDataRate});
+
+                for (final FlowFile flowFile : toSend) {
+                    session.getProvenanceReporter().send(flowFile, url);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+                return;
+            } catch (final IOException e) {
+                logger.warn("Failed to delete Hold that destination placed on {} due to {}", new Object[]{flowFileDescription, e});
+            }
+
+            if (!isScheduled()) {
+                context.yield();
+                logger.warn("Failed to delete Hold that destination placed on {}; Processor has been stopped so routing FlowFile(s) to failure", new Object[]{flowFileDescription});
+                for (FlowFile flowFile : toSend) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return;
             }
-            builder = builder.loadKeyMaterial(keystore, service.getKeyStorePassword().toCharArray());
         }
-        
-        SSLContext sslContext = builder.build();
-        return sslContext;
     }
 
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
-        final int compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
+    /**
+     * Keeps up to Max In-Flight Requests batches outstanding over the
+     * non-blocking client of each destination, routing the FlowFiles of a
+     * batch as soon as its response (or the release of its hold) arrives.
+     */
+    private void onTriggerAsync(final ProcessContext context, final ProcessSession session) {
+        final int maxInFlight = context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
+        final long maxInFlightBytes = context.getProperty(MAX_IN_FLIGHT_DATA).asDataSize(DataUnit.B).longValue();
+        final RequestConfig requestConfig = createRequestConfig(context);
+
+        final BlockingQueue<AsyncExchange> completionQueue = new LinkedBlockingQueue<>();
+        final Set<AsyncExchange> inFlight = new HashSet<>();
+        final List<FlowFile> carried = new ArrayList<>();
+        Batch pending = null;
+        long bufferedBytes = 0L;
+        boolean drained = false;
+        boolean interrupted = false;
+
+        while (true) {
+            while (!drained && inFlight.size() < maxInFlight) {
+                final Batch batch = (pending == null) ? nextBatch(context, session, carried) : pending;
+                pending = null;
+                if (batch != null && !inFlight.isEmpty() && bufferedBytes + batch.getBytesToSend() > maxInFlightBytes) {
+                    // wait for one of our own requests to complete and give its body back
+                    session.adjustCounter("Data Limited Batches for " + getBaseUrl(batch.getUrl()), 1L, false);
+                    pending = batch;
+                    break;
+                }
+                if (batch != null && tryAcquireRate(context, session, batch) > 0L) {
+                    // the batches for other destinations go on meanwhile
+                    getLogger().debug("{} has used up its rate for now; returning FlowFiles to the queue", new Object[]{batch.getUrl()});
+                    penalizeToQueue(session, batch.getFlowFiles());
+                    continue;
+                }
+
+                final AsyncExchange exchange = (batch == null) ? null : submitAsync(context, session, batch, requestConfig, completionQueue);
+                if (exchange == null) {
+                    drained = true;
+                    break;
+                }
+                inFlight.add(exchange);
+                bufferedBytes += exchange.getBytesToSend();
+            }
+
+            if (inFlight.isEmpty()) {
+                break;
+            }
+
+            final AsyncExchange exchange;
+            try {
+                exchange = completionQueue.take();
+            } catch (final InterruptedException e) {
+                // cancel everything that is still outstanding; the cancelled exchanges
+                // are still handed back through the completion queue and routed to failure
+                interrupted = true;
+                drained = true;
+                for (final AsyncExchange outstanding : inFlight) {
+                    outstanding.cancel();
+                }
+                continue;
+            }
+
+            inFlight.remove(exchange);
+            if (exchange.getHoldUri() == null) {
+                // the POST is over; the DELETE of its hold, if any, has no body
+                bufferedBytes -= exchange.getBytesToSend();
+            }
+            if (onAsyncCompletion(context, session, exchange, requestConfig, completionQueue, !interrupted)) {
+                inFlight.add(exchange);
+            }
+        }
+
+        if (pending != null) {
+            session.transfer(pending.getFlowFiles());
+        }
+        if (!carried.isEmpty()) {
+            session.transfer(carried);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Buffers the body of the given batch and submits its POST.
+     *
+     * @return the submitted exchange or null if the batch could not be
+     * submitted, in which case its FlowFiles have already been routed
+     */
+    private AsyncExchange submitAsync(final ProcessContext context, final ProcessSession session, final Batch batch,
+            final RequestConfig requestConfig, final BlockingQueue<AsyncExchange> completionQueue) {
+        final ProcessorLog logger = getLogger();
+        final String url = batch.getUrl();
+
+        final HttpPost post = createPost(context, session, batch, requestConfig);
+        if (post == null) {
+            logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; returning FlowFiles to the queue", new Object[]{url});
+            session.transfer(batch.getFlowFiles());
+            context.yield();
+            return null;
+        }
+
+        final AsyncExchange exchange = new AsyncExchange(url, batch.getFlowFiles(), batch.getTransactionId(), batch.getBytesToSend());
+        try {
+            // FlowFile content may only be read by the thread that owns the session, so the
+            // body is produced here and the I/O reactor only ever sees the resulting bytes
+            final RequestBody body = new RequestBody(batch.getBytesToSend());
+            post.getEntity().writeTo(body);
+            post.setEntity(body.toEntity());
+
+            exchange.execute(getAsyncTransport(context, url), post, null, completionQueue);
+        } catch (final IOException e) {
+            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{exchange.getFlowFileDescription(), e});
+            context.yield();
+            for (FlowFile flowFile : batch.getFlowFiles()) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return null;
+        }
+
+        return exchange;
+    }
+
+    /**
+     * Routes the FlowFiles of a completed exchange, or submits the DELETE that
+     * releases the hold placed on them by the destination.
+     *
+     * @return true if a new request was submitted for this exchange
+     */
+    private boolean onAsyncCompletion(final ProcessContext context, final ProcessSession session, final AsyncExchange exchange,
+            final RequestConfig requestConfig, final BlockingQueue<AsyncExchange> completionQueue, final boolean mayRetryHold) {
+        final ProcessorLog logger = getLogger();
+        final String url = exchange.getUrl();
+        final String flowFileDescription = exchange.getFlowFileDescription();
+        final HttpResponse response = exchange.getResponse();
+
+        Exception failure = exchange.getFailure();
+        if (response != null) {
+            try {
+                EntityUtils.consume(response.getEntity());
+            } catch (final IOException e) {
+                failure = e;
+            }
+        }
+
+        if (exchange.getHoldUri() == null) {
+            if (failure != null) {
+                logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, failure});
+                context.yield();
+                for (FlowFile flowFile : exchange.getFlowFiles()) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return false;
+            }
+
+            final int responseCode = response.getStatusLine().getStatusCode();
+            final String responseReason = response.getStatusLine().getReasonPhrase();
+            final String holdUri = (responseCode == HttpServletResponse.SC_SEE_OTHER) ? getHoldUri(response) : null;
+            if (holdUri == null) {
+                if (responseCode >= 300) {
+                    final boolean unavailable = responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                    for (FlowFile flowFile : exchange.getFlowFiles()) {
+                        flowFile = session.penalize(flowFile);
+                        if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
+                            logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
+                        } else if (unavailable) {
+                            logger.error("Failed to Post {} to {}: response code was {}:{}; will yield processing, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
+                        } else {
+                            logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
+                        }
+                        session.transfer(flowFile, REL_FAILURE);
+                    }
+                    if (unavailable) {
+                        context.yield();
+                    }
+                    return false;
+                }
+
+                logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
+                    flowFileDescription, url, FormatUtils.formatMinutesSeconds(exchange.getUploadMillis(), TimeUnit.MILLISECONDS), exchange.getUploadDataRate()});
+
+                for (final FlowFile flowFile : exchange.getFlowFiles()) {
+                    session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + exchange.getRemoteDn(), exchange.getUploadMillis(), true);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+                return false;
+            }
+
+            exchange.setHoldUri(resolveHoldUri(url, holdUri));
+        } else if (failure == null) {
+            final int holdStatusCode = response.getStatusLine().getStatusCode();
+            final String holdReason = response.getStatusLine().getReasonPhrase();
+            if (holdStatusCode >= 300) {
+                logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
+                        new Object[]{flowFileDescription, holdStatusCode, holdReason});
+                for (FlowFile flowFile : exchange.getFlowFiles()) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return false;
+            }
+
+            logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
+                    new Object[]{flowFileDescription, url, exchange.getUploadMillis(), exchange.getUploadDataRate()});
+            for (final FlowFile flowFile : exchange.getFlowFiles()) {
+                session.getProvenanceReporter().send(flowFile, url);
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+            return false;
+        } else {
+            logger.warn("Failed to delete Hold that destination placed on {} due to {}", new Object[]{flowFileDescription, failure});
+            if (!mayRetryHold || !isScheduled()) {
+                context.yield();
+                logger.warn("Failed to delete Hold that destination placed on {}; Processor has been stopped so routing FlowFile(s) to failure", new Object[]{flowFileDescription});
+                for (FlowFile flowFile : exchange.getFlowFiles()) {
+                    flowFile = session.penalize(flowFile);
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+                return false;
+            }
+        }
+
+        final HttpDelete delete = new HttpDelete(exchange.getHoldUri());
+        delete.setHeader(TRANSACTION_ID_HEADER, exchange.getTransactionId());
+        delete.setConfig(requestConfig);
+        try {
+            exchange.execute(getAsyncTransport(context, url), delete, null, completionQueue);
+        } catch (final IOException e) {
+            logger.error("Failed to delete Hold that destination placed on {} due to {}; routing to failure", new Object[]{flowFileDescription, e});
+            for (FlowFile flowFile : exchange.getFlowFiles()) {
+                flowFile = session.penalize(flowFile);
+                session.transfer(flowFile, REL_FAILURE);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the given FlowFiles back to the queue penalized, so that they are
+     * left alone while their destination has no tokens, without holding back
+     * the FlowFiles for other destinations.
+     */
+    private void penalizeToQueue(final ProcessSession session, final List<FlowFile> flowFiles) {
+        for (final FlowFile flowFile : flowFiles) {
+            session.transfer(session.penalize(flowFile));
+        }
+    }
+
+    /**
+     * Takes the tokens for posting the given batch from the rate limiter of
+     * its destination, if its rate is limited.
+     *
+     * @return 0 if the batch may be posted, or else the nanoseconds after
+     * which it may be tried again
+     */
+    private long tryAcquireRate(final ProcessContext context, final ProcessSession session, final Batch batch) {
+        final Integer requestsPerSecond = context.getProperty(MAX_DESTINATION_REQUEST_RATE).asInteger();
+        final Double bytesPerSecond = context.getProperty(MAX_DESTINATION_DATA_RATE).asDataSize(DataUnit.B);
+        if (requestsPerSecond == null && bytesPerSecond == null) {
+            return 0L;
+        }
+
+        long contentSize = 0L;
+        for (final FlowFile flowFile : batch.getFlowFiles()) {
+            contentSize += flowFile.getSize();
+        }
+        final RateLimiter limiter = getConfig(batch.getUrl(), context).getRateLimiter(requestsPerSecond, bytesPerSecond);
+        final long waitNanos = limiter.tryAcquire(contentSize);
+        if (waitNanos > 0L) {
+            session.adjustCounter("Rate Limited Batches for " + getBaseUrl(batch.getUrl()), 1L, false);
+        }
+        return waitNanos;
+    }
+
+    private AsyncTransport getAsyncTransport(final ProcessContext context, final String url) throws IOException {
+        final int maxConnections = context.getMaxConcurrentTasks() * context.getProperty(MAX_IN_FLIGHT_REQUESTS).asInteger();
         final String userAgent = context.getProperty(USER_AGENT).getValue();
+        final CredentialsProvider credentialsProvider = createCredentialsProvider(context);
 
+        return getConfig(url, context).getAsyncTransport(new AsyncTransport.Factory() {
+            @Override
+            public AsyncTransport create(final TlsSettings tlsSettings) throws IOException {
+                // the response body is discarded anyway, so it is not worth a limit or a spill directory of its own
+                return AsyncHttpClients.create(tlsSettings, maxConnections, userAgent, credentialsProvider, Long.MAX_VALUE, ResponseBuffer.Factory.inMemory());
+            }
+        });
+    }
+
+    private RequestConfig createRequestConfig(final ProcessContext context) {
         final RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
         requestConfigBuilder.setConnectionRequestTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
         requestConfigBuilder.setConnectTimeout(context.getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
         requestConfigBuilder.setRedirectsEnabled(false);
         requestConfigBuilder.setSocketTimeout(context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
-        final RequestConfig requestConfig = requestConfigBuilder.build();
-        
-        final StreamThrottler throttler = throttlerRef.get();
+        return requestConfigBuilder.build();
+    }
+
+    private CredentialsProvider createCredentialsProvider(final ProcessContext context) {
+        final String username = context.getProperty(USERNAME).getValue();
+        final String password = context.getProperty(PASSWORD).getValue();
+        if (username == null) {
+            return null;
+        }
+
+        final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        if (password == null) {
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username));
+        } else {
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        }
+        return credentialsProvider;
+    }
+
+    private CloseableHttpClient createClient(final ProcessContext context, final Config config, final ObjectHolder<String> dnHolder) {
+        final HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+        clientBuilder.setConnectionManager(config.getConnectionManager());
+        if (config.isConnectionManagerShared()) {
+            // the pool outlives the client, and keeps connections alive as configured in the service
+            final HttpConnectionPoolService poolService = context.getProperty(CONNECTION_POOL_SERVICE).asControllerService(HttpConnectionPoolService.class);
+            clientBuilder.setConnectionManagerShared(true);
+            clientBuilder.setKeepAliveStrategy(poolService.getKeepAliveStrategy());
+        }
+        clientBuilder.setUserAgent(context.getProperty(USER_AGENT).getValue());
+        clientBuilder.addInterceptorFirst(new HttpResponseInterceptor() {
+            @Override
+            public void process(final HttpResponse response, final HttpContext httpContext) throws HttpException, IOException {
+                HttpCoreContext coreContext = HttpCoreContext.adapt(httpContext);
+                ManagedHttpClientConnection conn = coreContext.getConnection(ManagedHttpClientConnection.class);
+                if (!conn.isOpen()) {
+                    return;
+                }
+
+                SSLSession sslSession = conn.getSSLSession();
+
+                if (sslSession != null) {
+                    dnHolder.set(TlsSettings.getPeerDn(sslSession));
+                }
+            }
+        });
+
+        clientBuilder.disableAutomaticRetries();
+        clientBuilder.disableContentCompression();
+
+        // set the credentials if appropriate
+        final CredentialsProvider credentialsProvider = createCredentialsProvider(context);
+        if (credentialsProvider != null) {
+            clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+        }
+        return clientBuilder.build();
+    }
+
+    /**
+     * Pulls the next batch of FlowFiles that share the same URL from the
+     * session, negotiating the capabilities of the destination if needed.
+     *
+     * @param carried if null, a FlowFile whose URL differs from the batch's is
+     * thrown back on the queue; otherwise it is added to this list, which is
+     * drained before pulling from the session again
+     * @return the batch, or null if there is nothing (more) to send
+     */
+    private Batch nextBatch(final ProcessContext context, final ProcessSession session, final List<FlowFile> carried) {
+        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
         final ProcessorLog logger = getLogger();
 
         final Double maxBatchBytes = context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B);
@@ -407,7 +1015,7 @@ public class PostHTTP2 extends AbstractProcessor {
 
         final ObjectHolder<String> dnHolder = new ObjectHolder<>("none");
         while (true) {
-            FlowFile flowFile = session.get();
+            FlowFile flowFile = (carried == null || carried.isEmpty()) ? session.get() : carried.remove(0);
             if (flowFile == null) {
                 break;
             }
@@ -425,7 +1033,11 @@ public class PostHTTP2 extends AbstractProcessor {
 
             // If this FlowFile doesn't have the same url, throw it back on the queue and stop grabbing FlowFiles
             if (lastUrl != null && !lastUrl.equals(url)) {
-                session.transfer(flowFile);
+                if (carried == null) {
+                    session.transfer(flowFile);
+                } else {
+                    carried.add(flowFile);
+                }
                 break;
             }
 
@@ -434,50 +1046,7 @@ public class PostHTTP2 extends AbstractProcessor {
 
             if (client == null || destinationAccepts == null) {
                 final Config config = getConfig(url, context);
-                final HttpClientConnectionManager conMan = config.getConnectionManager();
-                
-                final HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-                clientBuilder.setConnectionManager(conMan);
-                clientBuilder.setUserAgent(userAgent);
-                clientBuilder.addInterceptorFirst(new HttpResponseInterceptor() {
-                    @Override
-                    public void process(final HttpResponse response, final HttpContext httpContext) throws HttpException, IOException {
-                        HttpCoreContext coreContext = HttpCoreContext.adapt(httpContext);
-                        ManagedHttpClientConnection conn = coreContext.getConnection(ManagedHttpClientConnection.class);
-                        if ( !conn.isOpen() ) {
-                            return;
-                        }
-                        
-                        SSLSession sslSession = conn.getSSLSession();
-                        
-                        if ( sslSession != null ) {
-                            final X509Certificate[] certChain = sslSession.getPeerCertificateChain();
-                            if (certChain == null || certChain.length == 0) {
-                                throw new SSLPeerUnverifiedException("No certificates found");
-                            }
-
-                            final X509Certificate cert = certChain[0];
-                            dnHolder.set(cert.getSubjectDN().getName().trim());
-                        }
-                    }
-                });
-                
-                clientBuilder.disableAutomaticRetries();
-                clientBuilder.disableContentCompression();
-                
-                final String username = context.getProperty(USERNAME).getValue();
-                final String password = context.getProperty(PASSWORD).getValue();
-                // set the credentials if appropriate
-                if (username != null) {
-                    final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                    if (password == null) {
-                        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username));
-                    } else {
-                        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
-                    };
-                    clientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-                }
-                client = clientBuilder.build();
+                client = createClient(context, config, dnHolder);
 
                 // determine whether or not destination accepts flowfile/gzip
                 destinationAccepts = config.getDestinationAccepts();
@@ -495,31 +1064,48 @@ public class PostHTTP2 extends AbstractProcessor {
                         session.transfer(flowFile, REL_FAILURE);
                         logger.error("Unable to communicate with destination {} to determine whether or not it can accept flowfiles/gzip; routing {} to failure due to {}", new Object[]{url, flowFile, e});
                         context.yield();
-                        return;
+                        return null;
                     }
                 }
             }
 
+            // counted before a single FlowFile breaks off, so that every batch reports the size of its content
+            bytesToSend += flowFile.getSize();
+
             // if we are not sending as flowfile, or if the destination doesn't accept V3 or V2 (streaming) format,
             // then only use a single FlowFile
             if (!sendAsFlowFile || (!destinationAccepts.isFlowFileV3Accepted() && !destinationAccepts.isFlowFileV2Accepted())) {
                 break;
             }
 
-            bytesToSend += flowFile.getSize();
-            if (bytesToSend > maxBatchBytes.longValue()) {
+            // without a Max Batch Size, each FlowFile is sent separately
+            if (maxBatchBytes == null || bytesToSend > maxBatchBytes.longValue()) {
                 break;
             }
         }
 
         if (toSend.isEmpty()) {
-            return;
+            return null;
         }
 
-        final String url = lastUrl;
+        return new Batch(lastUrl, toSend, destinationAccepts, client, transactionId, dnHolder, bytesToSend);
+    }
+
+    /**
+     * Creates the POST for the given batch.
+     *
+     * @return the POST or null if the destination does not accept any of the
+     * FlowFile packaging formats while configured to send as FlowFile
+     */
+    private HttpPost createPost(final ProcessContext context, final ProcessSession session, final Batch batch, final RequestConfig requestConfig) {
+        final boolean sendAsFlowFile = context.getProperty(SEND_AS_FLOWFILE).asBoolean();
+        final int compressionLevel = context.getProperty(COMPRESSION_LEVEL).asInteger();
+        final StreamThrottler throttler = throttlerRef.get();
+
+        final String url = batch.getUrl();
         final HttpPost post = new HttpPost(url);
-        final List<FlowFile> flowFileList = toSend;
-        final DestinationAccepts accepts = destinationAccepts;
+        final List<FlowFile> flowFileList = batch.getFlowFiles();
+        final DestinationAccepts accepts = batch.getDestinationAccepts();
         final boolean isDestinationLegacyNiFi = accepts.getProtocolVersion() == null;
 
         final EntityTemplate entity = new EntityTemplate(new ContentProducer() {
@@ -581,7 +1167,7 @@ public class PostHTTP2 extends AbstractProcessor {
         entity.setChunked(context.getProperty(CHUNKED_ENCODING).asBoolean());
         post.setEntity(entity);
         post.setConfig(requestConfig);
-        
+
         final String contentType;
         if (sendAsFlowFile) {
             if (accepts.isFlowFileV3Accepted()) {
@@ -591,13 +1177,10 @@ public class PostHTTP2 extends AbstractProcessor {
             } else if (accepts.isFlowFileV1Accepted()) {
                 contentType = APPLICATION_FLOW_FILE_V1;
             } else {
-                logger.error("Cannot send data to {} because the destination does not accept FlowFiles and this processor is configured to deliver FlowFiles; rolling back session", new Object[]{url});
-                session.rollback();
-                context.yield();
-                return;
+                return null;
             }
         } else {
-            final String attributeValue = toSend.get(0).getAttribute(CoreAttributes.MIME_TYPE.key());
+            final String attributeValue = flowFileList.get(0).getAttribute(CoreAttributes.MIME_TYPE.key());
             contentType = (attributeValue == null) ? DEFAULT_CONTENT_TYPE : attributeValue;
         }
 
@@ -617,108 +1200,36 @@ public class PostHTTP2 extends AbstractProcessor {
         post.setHeader(CONTENT_TYPE, contentType);
         post.setHeader(FLOWFILE_CONFIRMATION_HEADER, "true");
         post.setHeader(PROTOCOL_VERSION_HEADER, PROTOCOL_VERSION);
-        post.setHeader(TRANSACTION_ID_HEADER, transactionId);
+        post.setHeader(TRANSACTION_ID_HEADER, batch.getTransactionId());
         if (compressionLevel > 0 && accepts.isGzipAccepted()) {
             post.setHeader(GZIPPED_HEADER, "true");
         }
 
-        // Do the actual POST
-        final String flowFileDescription = toSend.size() <= 10 ? toSend.toString() : toSend.size() + " FlowFiles";
-
-        final String uploadDataRate;
-        final long uploadMillis;
-        CloseableHttpResponse response = null;
-        try {
-            final StopWatch stopWatch = new StopWatch(true);
-            response = client.execute(post);
-
-            // consume input stream entirely, ignoring its contents. If we
-            // don't do this, the Connection will not be returned to the pool
-            EntityUtils.consume(response.getEntity());
-            stopWatch.stop();
-            uploadDataRate = stopWatch.calculateDataRate(bytesToSend);
-            uploadMillis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
-        } catch (final IOException e) {
-            logger.error("Failed to Post {} due to {}; transferring to failure", new Object[]{flowFileDescription, e});
-            context.yield();
-            for (FlowFile flowFile : toSend) {
-                flowFile = session.penalize(flowFile);
-                session.transfer(flowFile, REL_FAILURE);
-            }
-            return;
-        } finally {
-            if ( response != null ) {
-                try {
-                    response.close();
-                } catch (IOException e) {
-                    getLogger().warn("Failed to close HTTP Response due to {}", new Object[] {e});
-                }
-            }
-        }
-
-        // If we get a 'SEE OTHER' status code and an HTTP header that indicates that the intent
-        // of the Location URI is a flowfile hold, we will store this holdUri. This prevents us
-        // from posting to some other webservice and then attempting to delete some resource to which
-        // we are redirected
-        final int responseCode = response.getStatusLine().getStatusCode();
-        final String responseReason = response.getStatusLine().getReasonPhrase();
-        String holdUri = null;
-        if (responseCode == HttpServletResponse.SC_SEE_OTHER) {
-            final Header locationUriHeader = response.getFirstHeader(LOCATION_URI_INTENT_NAME);
-            if (locationUriHeader != null) {
-                if (LOCATION_URI_INTENT_VALUE.equals(locationUriHeader.getValue())) {
-                    final Header holdUriHeader = response.getFirstHeader(LOCATION_HEADER_NAME);
-                    if (holdUriHeader != null) {
-                        holdUri = holdUriHeader.getValue();
-                    }
-                }
-            }
-
-            if (holdUri == null) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: sent content and received status code {}:{} but no Hold URI", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                return;
-            }
-        }
+        return post;
+    }
 
-        if (holdUri == null) {
-            if (responseCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: response code was {}:{}; will yield processing, since the destination is temporarily unavailable", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
+    /**
+     * @return the Location of the response if its intent is a flowfile hold,
+     * null otherwise
+     */
+    private String getHoldUri(final HttpResponse response) {
+        final Header locationUriHeader = response.getFirstHeader(LOCATION_URI_INTENT_NAME);
+        if (locationUriHeader != null) {
+            if (LOCATION_URI_INTENT_VALUE.equals(locationUriHeader.getValue())) {
+                final Header holdUriHeader = response.getFirstHeader(LOCATION_HEADER_NAME);
+                if (holdUriHeader != null) {
+                    return holdUriHeader.getValue();
                 }
-                context.yield();
-                return;
             }
-
-            if (responseCode >= 300) {
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    logger.error("Failed to Post {} to {}: response code was {}:{}", new Object[]{flowFile, url, responseCode, responseReason});
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                return;
-            }
-
-            logger.info("Successfully Posted {} to {} in {} at a rate of {}", new Object[]{
-                flowFileDescription, url, FormatUtils.formatMinutesSeconds(uploadMillis, TimeUnit.MILLISECONDS), uploadDataRate});
-
-            for (final FlowFile flowFile : toSend) {
-                session.getProvenanceReporter().send(flowFile, url, "Remote DN=" + dnHolder.get(), uploadMillis, true);
-                session.transfer(flowFile, REL_SUCCESS);
-            }
-            return;
         }
+        return null;
+    }
 
-        //
-        // the response indicated a Hold URI; delete the Hold.
-        //
-        // determine the full URI of the Flow File's Hold; Unfortunately, the responses that are returned have
-        // changed over the past, so we have to take into account a few different possibilities.
+    /**
+     * determine the full URI of the Flow File's Hold; Unfortunately, the responses that are returned have
+     * changed over the past, so we have to take into account a few different possibilities.
+     */
+    private String resolveHoldUri(final String url, final String holdUri) {
         String fullHoldUri = holdUri;
         if (holdUri.startsWith("/contentListener")) {
             // If the Hold URI that we get starts with /contentListener, it may not really be /contentListener,
@@ -739,49 +1250,7 @@ public class PostHTTP2 extends AbstractProcessor {
             // Absolute URL
             fullHoldUri = url + (url.endsWith("/") ? "" : "/") + holdUri;
         }
-
-        final HttpDelete delete = new HttpDelete(fullHoldUri);
-        delete.setHeader(TRANSACTION_ID_HEADER, transactionId);
-
-        while (true) {
-            try {
-                final HttpResponse holdResponse = client.execute(delete);
-                EntityUtils.consume(holdResponse.getEntity());
-                final int holdStatusCode = holdResponse.getStatusLine().getStatusCode();
-                final String holdReason = holdResponse.getStatusLine().getReasonPhrase();
-                if (holdStatusCode >= 300) {
-                    logger.error("Failed to delete Hold that destination placed on {}: got response code {}:{}; routing to failure",
-                            new Object[]{flowFileDescription, holdStatusCode, holdReason});
-
-                    for (FlowFile flowFile : toSend) {
-                        flowFile = session.penalize(flowFile);
-                        session.transfer(flowFile, REL_FAILURE);
-                    }
-                    return;
-                }
-
-                logger.info("Successfully Posted {} to {} in {} milliseconds at a rate of {}",
-                        new Object[]{flowFileDescription, url, uploadMillis, uploadDataRate});
-
-                for (FlowFile flowFile : toSend) {
-                    session.getProvenanceReporter().send(flowFile, url);
-                    session.transfer(flowFile, REL_SUCCESS);
-                }
-                return;
-            } catch (final IOException e) {
-                logger.warn("Failed to delete Hold that destination placed on {} due to {}", new Object[]{flowFileDescription, e});
-            }
-
-            if (!isScheduled()) {
-                context.yield();
-                logger.warn("Failed to delete Hold that destination placed on {}; Processor has been stopped so routing FlowFile(s) to failure", new Object[]{flowFileDescription});
-                for (FlowFile flowFile : toSend) {
-                    flowFile = session.penalize(flowFile);
-                    session.transfer(flowFile, REL_FAILURE);
-                }
-                return;
-            }
-        }
+        return fullHoldUri;
     }
 
 
@@ -862,63 +1331,53 @@ public class PostHTTP2 extends AbstractProcessor {
         }
     }
 
-    private static class DestinationAccepts {
+    private static class Batch {
 
-        private final boolean flowFileV1;
-        private final boolean flowFileV2;
-        private final boolean flowFileV3;
-        private final boolean gzip;
-        private final Integer protocolVersion;
-
-        public DestinationAccepts(final boolean flowFileV3, final boolean flowFileV2, final boolean flowFileV1,
-                final boolean gzip, final Integer protocolVersion) {
-            this.flowFileV3 = flowFileV3;
-            this.flowFileV2 = flowFileV2;
-            this.flowFileV1 = flowFileV1;
-            this.gzip = gzip;
-            this.protocolVersion = protocolVersion;
-        }
+        private final String url;
+        private final List<FlowFile> flowFiles;
+        private final DestinationAccepts destinationAccepts;
+        private final CloseableHttpClient client;
+        private final String transactionId;
+        private final ObjectHolder<String> dnHolder;
+        private final long bytesToSend;
 
-        public boolean isFlowFileV3Accepted() {
-            return flowFileV3;
-        }
-
-        public boolean isFlowFileV2Accepted() {
-            return flowFileV2;
+        public Batch(final String url, final List<FlowFile> flowFiles, final DestinationAccepts destinationAccepts, final CloseableHttpClient client,
+                final String transactionId, final ObjectHolder<String> dnHolder, final long bytesToSend) {
+            this.url = url;
+            this.flowFiles = flowFiles;
+            this.destinationAccepts = destinationAccepts;
+            this.client = client;
+            this.transactionId = transactionId;
+            this.dnHolder = dnHolder;
+            this.bytesToSend = bytesToSend;
         }
 
-        public boolean isFlowFileV1Accepted() {
-            return flowFileV1;
+        public String getUrl() {
+            return url;
         }
 
-        public boolean isGzipAccepted() {
-            return gzip;
+        public List<FlowFile> getFlowFiles() {
+            return flowFiles;
         }
 
-        public Integer getProtocolVersion() {
-            return protocolVersion;
+        public DestinationAccepts getDestinationAccepts() {
+            return destinationAccepts;
         }
-    }
-
-    private static class Config {
 
-        private volatile DestinationAccepts destinationAccepts;
-        private final HttpClientConnectionManager conMan;
-
-        public Config(final HttpClientConnectionManager conMan) {
-            this.conMan = conMan;
+        public CloseableHttpClient getClient() {
+            return client;
         }
 
-        public DestinationAccepts getDestinationAccepts() {
-            return this.destinationAccepts;
+        public String getTransactionId() {
+            return transactionId;
         }
 
-        public void setDestinationAccepts(final DestinationAccepts destinationAccepts) {
-            this.destinationAccepts = destinationAccepts;
+        public ObjectHolder<String> getDnHolder() {
+            return dnHolder;
         }
 
-        public HttpClientConnectionManager getConnectionManager() {
-            return conMan;
+        public long getBytesToSend() {
+            return bytesToSend;
         }
     }
 }
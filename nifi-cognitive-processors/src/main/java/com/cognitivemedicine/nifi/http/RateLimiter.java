@@ -0,0 +1,107 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests per second and the bytes per second sent to a single
+ * destination, with a token bucket for each that holds up to a second worth
+ * of tokens.
+ * <p>
+ * Each bucket is kept as the time at which it will be full again, in the
+ * manner of the generic cell rate algorithm, and updated with a
+ * compare-and-set, so tasks posting to the same destination never block one
+ * another. Callers are told how long to wait instead of being made to wait,
+ * so that they can do something else meanwhile.
+ */
+class RateLimiter {
+
+    private final TokenBucket requests;
+    private final TokenBucket bytes;
+
+    /**
+     * @param requestsPerSecond the most requests per second, or null for no
+     * limit
+     * @param bytesPerSecond the most bytes per second, or null for no limit
+     */
+    public RateLimiter(final Integer requestsPerSecond, final Double bytesPerSecond) {
+        this.requests = (requestsPerSecond == null) ? null : new TokenBucket(requestsPerSecond);
+        this.bytes = (bytesPerSecond == null) ? null : new TokenBucket(bytesPerSecond);
+    }
+
+    /**
+     * Takes the tokens for one request of the given size, if both buckets
+     * hold enough of them. A request larger than a second worth of bytes is
+     * let through whenever the byte bucket is full.
+     *
+     * @return 0 if the request may go ahead, or else the nanoseconds after
+     * which it may be tried again
+     */
+    public long tryAcquire(final long requestBytes) {
+        final long now = System.nanoTime();
+        if (requests != null) {
+            final long wait = requests.tryTake(1L, now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        if (bytes != null) {
+            final long wait = bytes.tryTake(requestBytes, now);
+            if (wait > 0) {
+                if (requests != null) {
+                    requests.giveBack(1L);
+                }
+                return wait;
+            }
+        }
+        return 0L;
+    }
+
+    private static class TokenBucket {
+
+        private final double nanosPerToken;
+        private final long capacityNanos;
+        // when the bucket will be full again; before then it lacks (fullAt - now) / nanosPerToken tokens
+        private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+        TokenBucket(final double tokensPerSecond) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1L) / tokensPerSecond;
+            this.capacityNanos = TimeUnit.SECONDS.toNanos(1L);
+        }
+
+        long tryTake(final long tokens, final long now) {
+            final long costNanos = (long) Math.ceil(tokens * nanosPerToken);
+            while (true) {
+                final long current = fullAt.get();
+                final long base = Math.max(current, now);
+                final long next = base + costNanos;
+                // a request worth more than the whole bucket goes through once it is full, leaving it in debt
+                if (next - now > capacityNanos && current - now > 0) {
+                    return Math.max(1L, Math.min(next - now - capacityNanos, current - now));
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0L;
+                }
+            }
+        }
+
+        void giveBack(final long tokens) {
+            fullAt.addAndGet(-(long) Math.ceil(tokens * nanosPerToken));
+        }
+    }
+}
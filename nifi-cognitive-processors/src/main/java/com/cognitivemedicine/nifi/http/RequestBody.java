@@ -0,0 +1,78 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.http.nio.entity.NByteArrayEntity;
+
+/**
+ * Holds the body of a POST of the non-blocking HTTP Engines, which is
+ * produced in memory by the thread that owns the session, and hands its
+ * bytes over to the entity that sends them without copying them.
+ */
+final class RequestBody extends ByteArrayOutputStream {
+
+    RequestBody(final long expectedSize) {
+        super((int) Math.min(Math.max(expectedSize, 1024L), Integer.MAX_VALUE - 8));
+    }
+
+    /**
+     * @return an entity that sends what has been written so far; nothing is
+     * to be written afterwards
+     */
+    public Entity toEntity() {
+        return new Entity(buf, 0, count);
+    }
+
+    /**
+     * An entity over the bytes of a request body, which can be sent again
+     * without copying them.
+     */
+    static final class Entity extends NByteArrayEntity {
+
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        Entity(final byte[] bytes, final int offset, final int length) {
+            super(bytes, offset, length);
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return an entity that sends the same bytes, for a duplicate of the
+         * request, as an entity keeps track of how much of it has been sent
+         */
+        public Entity duplicate() {
+            final Entity duplicate = new Entity(bytes, offset, length);
+            duplicate.setContentType(getContentType());
+            duplicate.setContentEncoding(getContentEncoding());
+            return duplicate;
+        }
+
+        /**
+         * @return the bytes of the body, which are only copied if the array
+         * they are in holds more than them
+         */
+        public byte[] getBytes() {
+            return (offset == 0 && length == bytes.length) ? bytes : Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.ByteArrayBuffer;
+
+/**
+ * Holds the body of a response as it arrives: in memory up to a limit, and
+ * past it in a file of a spill directory, written through a FileChannel so
+ * that large responses stay off the heap. Once complete, the body becomes an
+ * entity; a spilled one streams out of its file and deletes it once read.
+ * <p>
+ * Not thread safe; a buffer belongs to the consumer of a single response.
+ */
+final class ResponseBuffer {
+
+    static final String SPILL_SUFFIX = ".spill";
+
+    private final Factory factory;
+    private ByteArrayBuffer memory;
+    private Path file;
+    private FileChannel channel;
+    private long length;
+
+    private ResponseBuffer(final Factory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to the body.
+     */
+    public void write(final ByteBuffer src) throws IOException {
+        final int count = src.remaining();
+        if (file == null && length + count > factory.memoryLimit) {
+            spill();
+        }
+        if (file != null) {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else {
+            if (memory == null) {
+                memory = new ByteArrayBuffer(Math.max(count, 4096));
+            }
+            if (src.hasArray()) {
+                memory.append(src.array(), src.arrayOffset() + src.position(), count);
+                src.position(src.limit());
+            } else {
+                final byte[] bytes = new byte[count];
+                src.get(bytes);
+                memory.append(bytes, 0, count);
+            }
+        }
+        length += count;
+    }
+
+    private void spill() throws IOException {
+        Files.createDirectories(factory.directory);
+        file = Files.createTempFile(factory.directory, "response-", SPILL_SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        if (memory != null) {
+            final ByteBuffer held = ByteBuffer.wrap(memory.buffer(), 0, memory.length());
+            while (held.hasRemaining()) {
+                channel.write(held);
+            }
+            memory = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the body so far
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Hands the body over to an entity, after which this buffer no longer
+     * holds anything.
+     */
+    public AbstractHttpEntity toEntity() throws IOException {
+        if (file == null) {
+            final ByteArrayEntity entity = new ByteArrayEntity(memory == null ? new byte[0] : memory.toByteArray());
+            memory = null;
+            return entity;
+        }
+
+        final Path spilled = file;
+        file = null;
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            Files.deleteIfExists(spilled);
+            throw e;
+        } finally {
+            channel = null;
+        }
+        return new SpilledEntity(spilled, length);
+    }
+
+    /**
+     * Throws away the body, deleting its file if it was spilled.
+     */
+    public void discard() {
+        memory = null;
+        if (file == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // about to delete it anyway
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            // left for Factory#clear()
+        }
+        channel = null;
+        file = null;
+    }
+
+    /**
+     * Creates the buffers of the responses of a processor, all of which spill
+     * to the same directory. The directory belongs to the processor, which
+     * clears it when it is scheduled and stopped.
+     */
+    static class Factory {
+
+        private final Path directory;
+        private final long memoryLimit;
+
+        /**
+         * @param directory the directory to spill to; it is created on the
+         * first spill
+         * @param memoryLimit the most bytes of a body held in memory
+         */
+        public Factory(final Path directory, final long memoryLimit) {
+            this.directory = directory;
+            this.memoryLimit = memoryLimit;
+        }
+
+        /**
+         * @return a factory of buffers that hold every body in memory
+         */
+        public static Factory inMemory() {
+            return new Factory(null, Long.MAX_VALUE);
+        }
+
+        public ResponseBuffer newBuffer() {
+            return new ResponseBuffer(this);
+        }
+
+        /**
+         * Deletes the spilled bodies left in the directory, which nothing may
+         * be reading any more.
+         */
+        public void clear() throws IOException {
+            if (directory == null || !Files.isDirectory(directory)) {
+                return;
+            }
+            try (final DirectoryStream<Path> spilled = Files.newDirectoryStream(directory, "*" + SPILL_SUFFIX)) {
+                for (final Path path : spilled) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * A body spilled to a file, which can be read once and is deleted as soon
+     * as it has been.
+     */
+    private static class SpilledEntity extends AbstractHttpEntity {
+
+        private final Path file;
+        private final long length;
+        private volatile boolean consumed;
+
+        public SpilledEntity(final Path file, final long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        private FileChannel open() throws IOException {
+            if (consumed) {
+                throw new NoSuchFileException(file.toString(), null, "the spilled response has already been read");
+            }
+            consumed = true;
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return Channels.newInputStream(open());
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            try (final FileChannel in = open()) {
+                final WritableByteChannel target = Channels.newChannel(out);
+                long position = 0L;
+                while (position < length) {
+                    final long transferred = in.transferTo(position, length - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Spilled response " + file + " ended after " + position + " of " + length + " bytes");
+                    }
+                    position += transferred;
+                }
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return !consumed;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * Decides whether, and when, a failed request is tried again.
+ * <p>
+ * Retries never wait on a thread: the FlowFiles are sent back to the incoming
+ * queue with the time of their next attempt in {@link #RETRY_AT_ATTRIBUTE},
+ * and are not picked up again before then. The backoff doubles with every
+ * attempt, up to the max backoff, and half of it is random so that the
+ * FlowFiles of a failed burst do not all come back at once.
+ * <p>
+ * Retries are also bounded by a budget shared by every task of the processor:
+ * every request sent adds the retry ratio to the budget, every retry takes
+ * one off, so that a destination that is down is not sent more than its
+ * share of extra requests.
+ */
+class RetryPolicy {
+
+    /**
+     * Number of times the FlowFile has been tried again.
+     */
+    public static final String RETRY_COUNT_ATTRIBUTE = "http.retry.count";
+
+    /**
+     * Time, in milliseconds since the epoch, before which the FlowFile is not
+     * tried again.
+     */
+    public static final String RETRY_AT_ATTRIBUTE = "http.retry.at";
+
+    /**
+     * Hold URI that is still to be released for the FlowFile, if it was the
+     * DELETE rather than the POST that failed.
+     */
+    public static final String HOLD_URI_ATTRIBUTE = "http.hold.uri";
+
+    /**
+     * Transaction ID of the hold in {@link #HOLD_URI_ATTRIBUTE}.
+     */
+    public static final String TRANSACTION_ID_ATTRIBUTE = "http.transaction.id";
+
+    /**
+     * Number of retries the budget holds when the processor starts, and at
+     * most.
+     */
+    private static final double MAX_BUDGET = 10.0;
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double budgetRatio;
+    private double budget = MAX_BUDGET;
+
+    /**
+     * @param maxRetries the number of times a FlowFile is tried again at most
+     * @param initialBackoffMillis the backoff before the first retry
+     * @param maxBackoffMillis the longest backoff
+     * @param budgetRatio the share of requests that may be retries
+     */
+    public RetryPolicy(final int maxRetries, final long initialBackoffMillis, final long maxBackoffMillis, final double budgetRatio) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * Records that a request was sent, which adds to the retry budget.
+     */
+    public synchronized void onRequest() {
+        budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+    }
+
+    /**
+     * Takes a retry out of the budget, if the FlowFile may be tried again.
+     *
+     * @param retryCount the number of times the FlowFile was tried again so far
+     * @return the backoff before the next attempt, in milliseconds, or -1 if
+     * there is to be no further attempt
+     */
+    public synchronized long nextBackoff(final int retryCount) {
+        if (retryCount >= maxRetries || budget < 1.0) {
+            return -1L;
+        }
+        budget -= 1.0;
+
+        final long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(retryCount, 30));
+        final long half = Math.max(backoff / 2, 0L);
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    public static int getRetryCount(final FlowFile flowFile) {
+        final String retryCount = flowFile.getAttribute(RETRY_COUNT_ATTRIBUTE);
+        try {
+            return retryCount == null ? 0 : Integer.parseInt(retryCount);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the FlowFile is not waiting for its next attempt
+     */
+    public static boolean isDue(final FlowFile flowFile, final long now) {
+        final String retryAt = flowFile.getAttribute(RETRY_AT_ATTRIBUTE);
+        try {
+            return retryAt == null || Long.parseLong(retryAt) <= now;
+        } catch (final NumberFormatException e) {
+            return true;
+        }
+    }
+}
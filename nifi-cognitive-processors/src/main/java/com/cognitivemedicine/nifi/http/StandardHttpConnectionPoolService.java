@@ -0,0 +1,261 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.ControllerServiceInitializationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.ssl.SSLContextService;
+
+@Tags({"http", "https", "connection", "pool", "cognitive"})
+@CapabilityDescription("Keeps a single pool of HTTP connections, with global and per destination limits, that is shared by every PostAdvancedHTTP and "
+        + "PostHTTP2 referring to this service, along with what each destination was found to accept. Connections stay alive between requests and "
+        + "across processors, and are closed once they have been idle for too long.")
+public class StandardHttpConnectionPoolService extends AbstractControllerService implements HttpConnectionPoolService {
+
+    public static final PropertyDescriptor SSL_CONTEXT_SERVICE = new PropertyDescriptor.Builder()
+            .name("SSL Context Service")
+            .description("The Controller Service to use in order to obtain an SSL Context for https URLs")
+            .required(false)
+            .identifiesControllerService(SSLContextService.class)
+            .build();
+    public static final PropertyDescriptor MAX_TOTAL_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("Max Total Connections")
+            .description("The maximum number of connections open at any time, across all destinations")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .build();
+    public static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder()
+            .name("Max Connections Per Destination")
+            .description("The maximum number of connections open at any time to a single destination (scheme, host and port)")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("20")
+            .build();
+    public static final PropertyDescriptor KEEP_ALIVE_DURATION = new PropertyDescriptor.Builder()
+            .name("Keep-Alive Duration")
+            .description("The maximum time a connection is kept open between requests. A shorter duration sent by the destination in a Keep-Alive header wins")
+            .required(true)
+            .defaultValue("60 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor IDLE_CONNECTION_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Idle Connection Timeout")
+            .description("How long a pooled connection may go unused before it is closed")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor TCP_NO_DELAY = new PropertyDescriptor.Builder()
+            .name("TCP No Delay")
+            .description("Whether to disable Nagle's algorithm (TCP_NODELAY) on every connection, so that small requests are sent without delay")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+    public static final PropertyDescriptor SEND_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("Socket Send Buffer Size")
+            .description("The size of the send buffer (SO_SNDBUF) of every connection. If not specified, the default of the operating system is used")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor RECEIVE_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("Socket Receive Buffer Size")
+            .description("The size of the receive buffer (SO_RCVBUF) of every connection. If not specified, the default of the operating system is used")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    private List<PropertyDescriptor> properties;
+
+    private final ConcurrentMap<String, AtomicReference<DestinationAccepts>> destinationAccepts = new ConcurrentHashMap<>();
+    private volatile PoolingHttpClientConnectionManager conMan;
+    private volatile TlsSettings tlsSettings;
+    private volatile ConnectionKeepAliveStrategy keepAliveStrategy;
+    private volatile ScheduledExecutorService reaper;
+
+    @Override
+    protected void init(final ControllerServiceInitializationContext config) throws InitializationException {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(SSL_CONTEXT_SERVICE);
+        properties.add(TlsSettings.TLS_PROTOCOLS);
+        properties.add(TlsSettings.TLS_CIPHER_SUITES);
+        properties.add(MAX_TOTAL_CONNECTIONS);
+        properties.add(MAX_CONNECTIONS_PER_ROUTE);
+        properties.add(KEEP_ALIVE_DURATION);
+        properties.add(IDLE_CONNECTION_TIMEOUT);
+        properties.add(TCP_NO_DELAY);
+        properties.add(SEND_BUFFER_SIZE);
+        properties.add(RECEIVE_BUFFER_SIZE);
+        this.properties = Collections.unmodifiableList(properties);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        final RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+        final SSLContextService sslContextService = context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
+        TlsSettings tlsSettings = null;
+        if (sslContextService != null) {
+            try {
+                tlsSettings = TlsSettings.create(sslContextService, context.getProperty(TlsSettings.TLS_PROTOCOLS).getValue(),
+                        context.getProperty(TlsSettings.TLS_CIPHER_SUITES).getValue());
+            } catch (final Exception e) {
+                throw new InitializationException(e);
+            }
+
+            registryBuilder.register("https", tlsSettings.createSocketFactory());
+        }
+
+        final PoolingHttpClientConnectionManager conMan = new PoolingHttpClientConnectionManager(registryBuilder.build());
+        conMan.setMaxTotal(context.getProperty(MAX_TOTAL_CONNECTIONS).asInteger());
+        conMan.setDefaultMaxPerRoute(context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger());
+
+        final SocketConfig.Builder socketConfig = SocketConfig.custom()
+                .setTcpNoDelay(context.getProperty(TCP_NO_DELAY).asBoolean())
+                .setSoKeepAlive(true);
+        if (context.getProperty(SEND_BUFFER_SIZE).getValue() != null) {
+            socketConfig.setSndBufSize(context.getProperty(SEND_BUFFER_SIZE).asDataSize(DataUnit.B).intValue());
+        }
+        if (context.getProperty(RECEIVE_BUFFER_SIZE).getValue() != null) {
+            socketConfig.setRcvBufSize(context.getProperty(RECEIVE_BUFFER_SIZE).asDataSize(DataUnit.B).intValue());
+        }
+        conMan.setDefaultSocketConfig(socketConfig.build());
+
+        final long keepAliveMillis = context.getProperty(KEEP_ALIVE_DURATION).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(final HttpResponse response, final HttpContext httpContext) {
+                final long announced = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, httpContext);
+                return (announced > 0) ? Math.min(announced, keepAliveMillis) : keepAliveMillis;
+            }
+        };
+
+        final long idleMillis = context.getProperty(IDLE_CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long reapMillis = Math.max(1000L, Math.min(idleMillis / 2, 30000L));
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "HTTP Connection Pool Reaper " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                conMan.closeExpiredConnections();
+                conMan.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+                getLogger().debug("Closed idle connections: {}", new Object[]{conMan.getTotalStats()});
+            }
+        }, reapMillis, reapMillis, TimeUnit.MILLISECONDS);
+
+        this.tlsSettings = tlsSettings;
+        this.conMan = conMan;
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+        if (conMan != null) {
+            conMan.shutdown();
+            conMan = null;
+        }
+        tlsSettings = null;
+        destinationAccepts.clear();
+    }
+
+    @Override
+    public HttpClientConnectionManager getConnectionManager() {
+        return conMan;
+    }
+
+    @Override
+    public SSLContext getSSLContext() {
+        final TlsSettings tlsSettings = this.tlsSettings;
+        return tlsSettings == null ? null : tlsSettings.getSSLContext();
+    }
+
+    @Override
+    public String[] getTlsProtocols() {
+        final TlsSettings tlsSettings = this.tlsSettings;
+        return tlsSettings == null ? null : tlsSettings.getProtocols();
+    }
+
+    @Override
+    public String[] getTlsCipherSuites() {
+        final TlsSettings tlsSettings = this.tlsSettings;
+        return tlsSettings == null ? null : tlsSettings.getCipherSuites();
+    }
+
+    @Override
+    public ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return keepAliveStrategy;
+    }
+
+    @Override
+    public AtomicReference<DestinationAccepts> getDestinationAccepts(final String baseUrl) {
+        AtomicReference<DestinationAccepts> accepts = destinationAccepts.get(baseUrl);
+        if (accepts == null) {
+            accepts = new AtomicReference<>();
+            final AtomicReference<DestinationAccepts> existing = destinationAccepts.putIfAbsent(baseUrl, accepts);
+            if (existing != null) {
+                accepts = existing;
+            }
+        }
+        return accepts;
+    }
+}
@@ -0,0 +1,249 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.ssl.SSLContextService;
+
+/**
+ * The SSLContext, protocols and cipher suites used to open TLS connections.
+ * <p>
+ * SSLContexts are built once per SSLContextService and shared by every
+ * destination and every component using that service, rather than re-reading
+ * the keystore and truststore for each new base URL. Sharing the context also
+ * shares its client session cache, so a reconnect to a host that was seen
+ * before resumes the previous TLS session with an abbreviated handshake.
+ */
+final class TlsSettings {
+
+    public static final PropertyDescriptor TLS_PROTOCOLS = new PropertyDescriptor.Builder()
+            .name("TLS Protocols")
+            .description("Comma separated list of the TLS protocols that may be negotiated for https URLs. Protocols this JVM does not support are "
+                    + "ignored")
+            .required(true)
+            .defaultValue("TLSv1.2, TLSv1.3")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor TLS_CIPHER_SUITES = new PropertyDescriptor.Builder()
+            .name("TLS Cipher Suites")
+            .description("Comma separated list of the cipher suites that may be negotiated for https URLs. If not specified, the defaults of the "
+                    + "JVM are used")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    /**
+     * Max number of TLS sessions remembered per SSLContext, and for how long,
+     * so that reconnects can skip the full handshake.
+     */
+    private static final int SESSION_CACHE_SIZE = 10000;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    /**
+     * Name of the {@link SSLSession} value caching the DN of the peer.
+     */
+    private static final String PEER_DN = "com.cognitivemedicine.nifi.http.peer-dn";
+
+    private static final ConcurrentMap<String, CachedContext> contexts = new ConcurrentHashMap<>();
+
+    private final SSLContext sslContext;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+
+    /**
+     * @param sslContext the context to open connections with
+     * @param protocols the protocols to enable
+     * @param cipherSuites the cipher suites to enable; null to use the
+     * defaults of the JVM
+     */
+    TlsSettings(final SSLContext sslContext, final String[] protocols, final String[] cipherSuites) {
+        this.sslContext = sslContext;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
+    /**
+     * Builds the settings from the values of {@link #TLS_PROTOCOLS} and
+     * {@link #TLS_CIPHER_SUITES}, using the cached SSLContext of the service.
+     *
+     * @throws IllegalArgumentException if none of the protocols is supported
+     */
+    static TlsSettings create(final SSLContextService service, final String protocols, final String cipherSuites)
+            throws IOException, GeneralSecurityException {
+        final SSLContext sslContext = getSSLContext(service);
+        final List<String> supported = Arrays.asList(sslContext.getSupportedSSLParameters().getProtocols());
+        final List<String> enabled = new ArrayList<>();
+        for (final String protocol : split(protocols)) {
+            if (supported.contains(protocol)) {
+                enabled.add(protocol);
+            }
+        }
+        if (enabled.isEmpty()) {
+            throw new IllegalArgumentException("None of the TLS Protocols " + protocols + " is supported; supported protocols are " + supported);
+        }
+
+        return new TlsSettings(sslContext, enabled.toArray(new String[enabled.size()]), cipherSuites == null ? null : split(cipherSuites));
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    public String[] getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * @return the cipher suites to enable, or null to use the defaults of the
+     * JVM
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
+    public SSLConnectionSocketFactory createSocketFactory() {
+        return new SSLConnectionSocketFactory(sslContext, protocols, cipherSuites, SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    public SSLIOSessionStrategy createIOSessionStrategy() {
+        return new SSLIOSessionStrategy(sslContext, protocols, cipherSuites, SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    /**
+     * Returns the SSLContext of the given service, building it only if the
+     * service was never seen before or its keystore or truststore changed.
+     */
+    static SSLContext getSSLContext(final SSLContextService service) throws IOException, GeneralSecurityException {
+        final List<Object> fingerprint = fingerprint(service);
+        final CachedContext cached = contexts.get(service.getIdentifier());
+        if (cached != null && cached.fingerprint.equals(fingerprint)) {
+            return cached.sslContext;
+        }
+
+        final SSLContext sslContext = createSSLContext(service);
+        contexts.put(service.getIdentifier(), new CachedContext(fingerprint, sslContext));
+        return sslContext;
+    }
+
+    /**
+     * Returns the DN of the certificate presented by the peer of the session.
+     * It is extracted once and kept on the session, so connections that are
+     * reused or resume the session do not parse the certificate again.
+     *
+     * @throws SSLPeerUnverifiedException if the peer presented no certificate
+     */
+    static String getPeerDn(final SSLSession sslSession) throws SSLPeerUnverifiedException {
+        final Object cached = sslSession.getValue(PEER_DN);
+        if (cached != null) {
+            return (String) cached;
+        }
+
+        final Certificate[] certChain = sslSession.getPeerCertificates();
+        if (certChain == null || certChain.length == 0 || !(certChain[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException("No certificates found");
+        }
+
+        final String dn = ((X509Certificate) certChain[0]).getSubjectDN().getName().trim();
+        sslSession.putValue(PEER_DN, dn);
+        return dn;
+    }
+
+    private static List<Object> fingerprint(final SSLContextService service) {
+        final List<Object> fingerprint = new ArrayList<>();
+        for (final String filename : new String[]{service.getTrustStoreFile(), service.getKeyStoreFile()}) {
+            fingerprint.add(filename);
+            fingerprint.add(filename == null ? null : new File(filename).lastModified());
+        }
+        fingerprint.add(service.getTrustStoreType());
+        fingerprint.add(service.getTrustStorePassword());
+        fingerprint.add(service.getKeyStoreType());
+        fingerprint.add(service.getKeyStorePassword());
+        return fingerprint;
+    }
+
+    private static SSLContext createSSLContext(final SSLContextService service) throws IOException, GeneralSecurityException {
+        SSLContextBuilder builder = SSLContexts.custom();
+        final String trustFilename = service.getTrustStoreFile();
+        if (trustFilename != null) {
+            final KeyStore truststore = KeyStore.getInstance(service.getTrustStoreType());
+            try (final InputStream in = new FileInputStream(new File(trustFilename))) {
+                truststore.load(in, service.getTrustStorePassword().toCharArray());
+            }
+            builder = builder.loadTrustMaterial(truststore, new TrustSelfSignedStrategy());
+        }
+
+        final String keyFilename = service.getKeyStoreFile();
+        if (keyFilename != null) {
+            final KeyStore keystore = KeyStore.getInstance(service.getKeyStoreType());
+            try (final InputStream in = new FileInputStream(new File(keyFilename))) {
+                keystore.load(in, service.getKeyStorePassword().toCharArray());
+            }
+            builder = builder.loadKeyMaterial(keystore, service.getKeyStorePassword().toCharArray());
+        }
+
+        final SSLContext sslContext = builder.build();
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return sslContext;
+    }
+
+    private static String[] split(final String value) {
+        final List<String> values = new ArrayList<>();
+        for (final String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                values.add(part.trim());
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static class CachedContext {
+
+        private final List<Object> fingerprint;
+        private final SSLContext sslContext;
+
+        public CachedContext(final List<Object> fingerprint, final SSLContext sslContext) {
+            this.fingerprint = fingerprint;
+            this.sslContext = sslContext;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* 
+ * Copyright 2015 Cognitive Medical Systems, Inc (http://www.cognitivemedciine.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cognitivemedicine.nifi.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.nifi.stream.io.StreamUtils;
+import org.apache.nifi.util.FlowFilePackagerV3;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Compares the CPU cost and the ratio of the {@link CompressionCodec}s on a
+ * FlowFile-v3 batch of JSON documents, as PostAdvancedHTTP sends it, and on
+ * the same documents compressed one by one, with and without a
+ * {@link DictionaryTrainer} dictionary, and the wall-clock throughput of
+ * the batch compressed by a {@link ParallelCompressionOutputStream}. It is
+ * not a unit test; run it by
+ * hand:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) com.cognitivemedicine.nifi.http.CompressionCodecBenchmark
+ * </pre>
+ * The optional arguments are the number of documents in the batch (default
+ * 20000) and the number of measured rounds (default 5).
+ */
+public class CompressionCodecBenchmark {
+
+    private static final String[] NAMES = {"Esteban", "Maria", "John", "Aiko", "Olusegun", "Priya", "Lars", "Fatima"};
+    private static final String[] CODES = {"8480-6", "8462-4", "8867-4", "9279-1", "2708-6", "8310-5", "29463-7", "8302-2"};
+
+    public static void main(final String[] args) throws IOException {
+        final int documents = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        final byte[] batch = createBatch(documents);
+        System.out.println(String.format("Batch of %d JSON documents packaged as FlowFile-v3: %d bytes", documents, batch.length));
+        System.out.println(String.format("%-8s %5s %10s %8s %12s", "codec", "level", "bytes", "ratio", "CPU MB/s"));
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (final CompressionCodec codec : CompressionCodec.values()) {
+            final int[] levels = (codec == CompressionCodec.GZIP || codec == CompressionCodec.ZSTD) ? new int[]{1, 6, 9} : new int[]{1};
+            for (final int level : levels) {
+                // warm up the JIT and the native libraries first
+                long compressedSize = compress(codec, level, batch);
+                compress(codec, level, batch);
+
+                final long start = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < rounds; i++) {
+                    compressedSize = compress(codec, level, batch);
+                }
+                final double cpuSeconds = (threads.getCurrentThreadCpuTime() - start) / 1e9;
+
+                final double megabytes = (double) batch.length * rounds / (1024 * 1024);
+                System.out.println(String.format("%-8s %5d %10d %8.2f %12.1f", codec.getEncoding(), level, compressedSize,
+                        (double) batch.length / compressedSize, megabytes / cpuSeconds));
+            }
+        }
+
+        // the documents one by one, as they go out when not sent as FlowFile
+        final List<byte[]> singles = new ArrayList<>();
+        final Random random = new Random(7L);
+        for (int i = 0; i < documents; i++) {
+            singles.add(createDocument(random));
+        }
+        final DictionaryTrainer trainer = new DictionaryTrainer(16 * 1024, Long.MAX_VALUE);
+        for (int i = 0; i < documents / 2; i++) {
+            // train on other documents than the measured ones
+            trainer.addSample(createDocument(random));
+        }
+        trainer.claimTraining();
+        final DictionaryTrainer.Dictionary dictionary = trainer.train();
+
+        long totalSize = 0L;
+        for (final byte[] single : singles) {
+            totalSize += single.length;
+        }
+        System.out.println();
+        System.out.println(String.format("%d single documents of %d bytes on average, compressed one by one", documents, totalSize / documents));
+        System.out.println(String.format("%-14s %5s %8s %12s", "codec", "level", "ratio", "CPU MB/s"));
+        for (final CompressionCodec codec : new CompressionCodec[]{CompressionCodec.GZIP, CompressionCodec.ZSTD, null}) {
+            final int level = 3;
+            long compressedSize = compressEach(codec, dictionary, level, singles);
+            final long start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < rounds; i++) {
+                compressedSize = compressEach(codec, dictionary, level, singles);
+            }
+            final double cpuSeconds = (threads.getCurrentThreadCpuTime() - start) / 1e9;
+            final double megabytes = (double) totalSize * rounds / (1024 * 1024);
+            System.out.println(String.format("%-14s %5d %8.2f %12.1f", codec == null ? "zstd+dict" : codec.getEncoding(), level,
+                    (double) totalSize / compressedSize, megabytes / cpuSeconds));
+        }
+
+        // the batch in blocks on a pool, as with Compression Threads above 1
+        final int processors = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final byte[] largeBatch = createBatch(Math.max(documents, 50000));
+        System.out.println();
+        System.out.println(String.format("Batch of %d bytes compressed in blocks of %d bytes on %d threads", largeBatch.length,
+                ParallelCompressionOutputStream.BLOCK_SIZE, processors));
+        System.out.println(String.format("%-8s %5s %8s %8s %12s", "codec", "level", "threads", "ratio", "wall MB/s"));
+        final ExecutorService pool = Executors.newFixedThreadPool(processors);
+        try {
+            for (final CompressionCodec codec : new CompressionCodec[]{CompressionCodec.GZIP, CompressionCodec.ZSTD}) {
+                final int level = (codec == CompressionCodec.GZIP) ? 6 : 3;
+                for (final int threadCount : new int[]{1, processors}) {
+                    byte[] compressed = compressParallel(codec, level, largeBatch, (threadCount == 1) ? null : pool, threadCount);
+                    final long start = System.nanoTime();
+                    for (int i = 0; i < rounds; i++) {
+                        compressed = compressParallel(codec, level, largeBatch, (threadCount == 1) ? null : pool, threadCount);
+                    }
+                    final double seconds = (System.nanoTime() - start) / 1e9;
+                    if (!Arrays.equals(largeBatch, decompress(codec, compressed))) {
+                        throw new IllegalStateException(codec.getEncoding() + " on " + threadCount + " threads did not round-trip");
+                    }
+                    final double megabytes = (double) largeBatch.length * rounds / (1024 * 1024);
+                    System.out.println(String.format("%-8s %5d %8d %8.2f %12.1f", codec.getEncoding(), level, threadCount,
+                            (double) largeBatch.length / compressed.length, megabytes / seconds));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param pool the pool to compress the blocks on, or null to compress the
+     * batch as one stream on the calling thread
+     */
+    private static byte[] compressParallel(final CompressionCodec codec, final int level, final byte[] batch, final ExecutorService pool,
+            final int threads) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(batch.length / 2);
+        try (final OutputStream out = (pool == null) ? codec.compress(compressed, level)
+                : new ParallelCompressionOutputStream(compressed, codec, level, pool, 2 * threads)) {
+            out.write(batch);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(final CompressionCodec codec, final byte[] compressed) throws IOException {
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream(compressed.length * 8);
+        try (final InputStream in = (codec == CompressionCodec.GZIP) ? new GZIPInputStream(new ByteArrayInputStream(compressed))
+                : new ZstdInputStream(new ByteArrayInputStream(compressed))) {
+            StreamUtils.copy(in, decompressed);
+        }
+        return decompressed.toByteArray();
+    }
+
+    /**
+     * @param codec the codec, or null to compress with zstd and the given
+     * dictionary
+     */
+    private static long compressEach(final CompressionCodec codec, final DictionaryTrainer.Dictionary dictionary, final int level,
+            final List<byte[]> singles) throws IOException {
+        long compressedSize = 0L;
+        for (final byte[] single : singles) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(single.length);
+            try (final OutputStream out = (codec == null) ? dictionary.compress(compressed, level) : codec.compress(compressed, level)) {
+                out.write(single);
+            }
+            compressedSize += compressed.size();
+        }
+        return compressedSize;
+    }
+
+    private static long compress(final CompressionCodec codec, final int level, final byte[] batch) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(batch.length / 2);
+        try (final OutputStream out = codec.compress(compressed, level)) {
+            out.write(batch);
+        }
+        return compressed.size();
+    }
+
+    /**
+     * @return the given number of observation-like JSON documents, each
+     * packaged with its attributes as PostAdvancedHTTP does for a
+     * destination that accepts FlowFile-v3
+     */
+    private static byte[] createBatch(final int documents) throws IOException {
+        final Random random = new Random(42L);
+        final FlowFilePackagerV3 packager = new FlowFilePackagerV3();
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (int i = 0; i < documents; i++) {
+            final byte[] content = createDocument(random);
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("filename", UUID.randomUUID().toString());
+            attributes.put("path", "./");
+            attributes.put("uuid", UUID.randomUUID().toString());
+            attributes.put("mime.type", "application/json");
+            packager.packageFlowFile(new ByteArrayInputStream(content), batch, attributes, content.length);
+        }
+        return batch.toByteArray();
+    }
+
+    /**
+     * @return an observation-like JSON document
+     */
+    private static byte[] createDocument(final Random random) throws IOException {
+        final int name = random.nextInt(NAMES.length);
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"resourceType\":\"Observation\",\"id\":\"").append(UUID.randomUUID())
+                .append("\",\"status\":\"final\",\"subject\":{\"reference\":\"Patient/").append(random.nextInt(100000))
+                .append("\",\"display\":\"").append(NAMES[name]).append("\"},\"effectiveDateTime\":\"2015-")
+                .append(String.format("%02d-%02dT%02d:%02d:00Z", 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60)))
+                .append("\",\"component\":[");
+        final int components = 1 + random.nextInt(6);
+        for (int c = 0; c < components; c++) {
+            if (c > 0) {
+                json.append(',');
+            }
+            json.append("{\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"").append(CODES[random.nextInt(CODES.length)])
+                    .append("\"}]},\"valueQuantity\":{\"value\":").append(String.format("%.1f", random.nextDouble() * 200))
+                    .append(",\"unit\":\"mmHg\",\"system\":\"http://unitsofmeasure.org\"}}");
+        }
+        json.append("]}");
+        return json.toString().getBytes("UTF-8");
+    }
+}
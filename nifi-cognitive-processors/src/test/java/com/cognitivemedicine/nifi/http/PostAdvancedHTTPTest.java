@@ -15,23 +15,66 @@
  */
 package com.cognitivemedicine.nifi.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.core5.function.Supplier;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerExchangeHandler;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.support.AbstractServerExchangeHandler;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.nifi.util.FlowFilePackagerV3;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.mock.Expectation;
+import org.mockserver.model.Delay;
 import org.mockserver.model.Header;
-import org.mockserver.model.HttpRequest;
 import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
 import static org.mockserver.integration.ClientAndServer.startClientAndServer;
 
 public class PostAdvancedHTTPTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private TestRunner testRunner;
     private ClientAndServer mockServer;
 
@@ -112,6 +155,1131 @@ public class PostAdvancedHTTPTest {
         out.assertContentEquals(predefinedPOSTResponse);
     }
 
+    @Test
+    public void testJsonPathAttributes() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_IGNORE);
+        testRunner.setProperty("response.success", "$.success");
+        testRunner.setProperty("response.message", "$.message");
+        testRunner.setProperty("response.missing", "$.missing");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("response.success", "true");
+        out.assertAttributeEquals("response.message", "Alles Gut!");
+        out.assertAttributeNotExists("response.missing");
+        out.assertContentEquals("{data:{name: \"Esteban\", age: 32}}");
+    }
+
+    @Test
+    public void testJsonPathAttributesWithContent() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty("response.message", "$.message");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("response.message", "Alles Gut!");
+        out.assertContentEquals(predefinedPOSTResponse);
+    }
+
+    @Test
+    public void testJsonPathSkippedForLargeResponse() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_ATTRIBUTE);
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION_NAME, "response");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_MEMORY_RESPONSE_SIZE, "10 B");
+        testRunner.setProperty("response.message", "$.message");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS).get(0);
+        out.assertAttributeEquals(PostAdvancedHTTP.RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+        out.assertAttributeEquals(PostAdvancedHTTP.JSONPATH_SKIPPED_ATTRIBUTE, "true");
+        out.assertAttributeNotExists("response.message");
+    }
+
+    @Test
+    public void testInvalidJsonPath() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty("response.message", "$.message[");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testAsyncEngine() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "2");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 5);
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            out.assertContentEquals(predefinedPOSTResponse);
+        }
+    }
+
+    @Test
+    public void testMaxInFlightData() {
+        testMaxInFlightData(false);
+    }
+
+    @Test
+    public void testMaxInFlightDataAsFlowFile() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_BATCH_COUNT, "1");
+        testMaxInFlightData(true);
+    }
+
+    private void testMaxInFlightData(final boolean sendAsFlowFile) {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "4");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_DATA, "40 B");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        // each body is larger than half the budget, so the second and third batches each wait for the one before
+        // rather than going out together, and none is held back for good
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+        Assert.assertEquals(Long.valueOf(2), testRunner.getCounterValue("Data Limited Batches for http://localhost:8585"));
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"), org.mockserver.client.proxy.Times.exactly(3));
+    }
+
+    @Test
+    public void testFanOutEngine() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/${path.name}");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_FAN_OUT);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "3");
+
+        // one of them goes nowhere, without holding back the others
+        for (int i = 0; i < 5; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("path.name", i == 2 ? "missing" : "do-post");
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes(), attributes);
+        }
+        testRunner.run();
+
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_SUCCESS, 4);
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_FAILURE, 1);
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            out.assertContentEquals(predefinedPOSTResponse);
+        }
+        testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_FAILURE).get(0).assertAttributeEquals("path.name", "missing");
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"));
+        Assert.assertEquals(4, invocations.length);
+    }
+
+    @Test
+    public void testAsyncEngineUnreachable() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8586/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "0");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testContentForBatch() {
+        // accept FlowFile packages so that all the FlowFiles go in a single POST
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post")
+        )
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            out.assertContentEquals(predefinedPOSTResponse);
+        }
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"));
+        Assert.assertEquals(1, invocations.length);
+    }
+
+    @Test
+    public void testContentLengthForBatch() throws IOException {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.CHUNKED_ENCODING, "false");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+
+        // the destination did not tell its protocol version, so it gets the attributes legacy NiFi expects
+        final ByteArrayOutputStream packaged = new ByteArrayOutputStream();
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            final Map<String, String> attributes = new HashMap<>(out.getAttributes());
+            attributes.put("nf.file.name", out.getAttribute("filename"));
+            attributes.put("nf.file.path", out.getAttribute("path"));
+            new FlowFilePackagerV3().packageFlowFile(new ByteArrayInputStream(out.toByteArray()), packaged, attributes, out.getSize());
+        }
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"));
+        Assert.assertEquals(1, invocations.length);
+        final org.mockserver.model.HttpRequest post = invocations[0].getHttpRequest();
+        Assert.assertNull(getHeader(post, "Transfer-Encoding"));
+        Assert.assertEquals(String.valueOf(packaged.size()), getHeader(post, "Content-Length"));
+    }
+
+    @Test
+    public void testMaxBatchCount() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_BATCH_COUNT, "2");
+        testRunner.setProperty(PostAdvancedHTTP.TARGET_BATCH_LATENCY, "1 sec");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run(3);
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 5);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"), org.mockserver.client.proxy.Times.exactly(3));
+        Assert.assertEquals(Long.valueOf(3), testRunner.getCounterValue("Batches up to 1 KB for http://localhost:8585"));
+        Assert.assertEquals(Long.valueOf(64), testRunner.getCounterValue("Batch Size Limit (KB) for http://localhost:8585"));
+    }
+
+    @Test
+    public void testBatchSizeHistogram() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+
+        final byte[] content = new byte[2000];
+        Arrays.fill(content, (byte) 'a');
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        // a FlowFile sent on its own is filed under its own size
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Batches up to 4 KB for http://localhost:8585"));
+        Assert.assertNull(testRunner.getCounterValue("Batches up to 1 KB for http://localhost:8585"));
+    }
+
+    @Test
+    public void testBatchLinger() throws InterruptedException {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.BATCH_LINGER, "3 sec");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        // the second FlowFile arrives while the task lingers over the first
+        final Thread latecomer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500L);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                testRunner.enqueue("{data:{name: \"Esteban\", age: 33}}".getBytes());
+            }
+        });
+        latecomer.start();
+        testRunner.run();
+        latecomer.join();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 2);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"), org.mockserver.client.proxy.Times.exactly(1));
+    }
+
+    @Test
+    public void testDestinationBuckets() {
+        for (final String path : new String[]{"/do-post", "/do-post-b"}) {
+            mockServer.when(
+                    org.mockserver.model.HttpRequest.request()
+                    .withMethod("HEAD")
+                    .withPath(path))
+                    .respond(
+                            HttpResponse.response()
+                            .withStatusCode(200)
+                            .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+        }
+        this.configureServerResource(mockServer, "/do-post-b", "POST", predefinedPOSTResponse);
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/${post.path}");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_DESTINATION_BUCKETS, "2");
+
+        // a queue that interleaves two destinations
+        for (int i = 0; i < 6; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("post.path", (i % 2 == 0) ? "do-post" : "do-post-b");
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes(), attributes);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 6);
+        for (final String path : new String[]{"/do-post", "/do-post-b"}) {
+            mockServer.verify(org.mockserver.model.HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath(path), org.mockserver.client.proxy.Times.exactly(1));
+        }
+    }
+
+    @Test
+    public void testCompressionCodec() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3))
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT_ENCODING, "gzip, zstd;q=0.9")));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_LEVEL, "3");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_CODEC, "zstd");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.CODEC_HEADER, "zstd")));
+    }
+
+    @Test
+    public void testAdaptiveCompression() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3))
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT_ENCODING, "gzip")));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_LEVEL, "6");
+        testRunner.setProperty(PostAdvancedHTTP.ADAPTIVE_COMPRESSION, "true");
+
+        // too small to be worth compressing
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run(1, false);
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.GZIPPED_HEADER, "true")), org.mockserver.client.proxy.Times.exactly(0));
+
+        final StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            document.append("{data:{name: \"Esteban\", age: ").append(i).append("}}\n");
+        }
+        testRunner.clearTransferState();
+        testRunner.enqueue(document.toString().getBytes());
+        testRunner.run(1, true, false);
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.GZIPPED_HEADER, "true")), org.mockserver.client.proxy.Times.exactly(1));
+        Assert.assertTrue(testRunner.getCounterValue("Compression Ratio (%) for http://localhost:8585") > 500);
+    }
+
+    @Test
+    public void testParallelCompression() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3))
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT_ENCODING, "gzip")));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_LEVEL, "1");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_THREADS, "2");
+
+        // large enough to be split into several blocks
+        final StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            document.append("{data:{name: \"Esteban\", age: ").append(i).append("}}\n");
+        }
+        testRunner.enqueue(document.toString().getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.GZIPPED_HEADER, "true")));
+    }
+
+    @Test
+    public void testCompressionCodecFallsBackToGzip() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3))
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT_ENCODING, "gzip")));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_LEVEL, "3");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_CODEC, "lz4");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.GZIPPED_HEADER, "true")));
+    }
+
+    @Test
+    public void testCompressionDictionary() throws InterruptedException {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3))
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT_ENCODING, "zstd"))
+                        .withHeader(new Header(PostAdvancedHTTP.DICTIONARIES_HEADER, "")));
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("PUT")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(201));
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_LEVEL, "3");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_CODEC, "zstd");
+        testRunner.setProperty(PostAdvancedHTTP.COMPRESSION_DICTIONARY_SIZE, "1 KB");
+
+        // the first batch is sampled and sent with plain zstd while the dictionary is learned
+        for (int i = 0; i < 200; i++) {
+            testRunner.enqueue(("{\"resourceType\": \"Patient\", \"id\": \"" + i + "\", \"name\": [{\"given\": [\"Esteban\"], \"family\": \"Aliverti\"}], "
+                    + "\"gender\": \"male\", \"birthDate\": \"19" + (10 + i % 90) + "-0" + (1 + i % 9) + "-1" + (i % 10) + "\", "
+                    + "\"address\": [{\"city\": \"San Diego\", \"state\": \"CA\", \"postalCode\": \"92" + (100 + i) + "\"}], "
+                    + "\"telecom\": [{\"system\": \"phone\", \"value\": \"555-" + (1000 + i) + "\"}]}").getBytes());
+        }
+        testRunner.run(1, false, true);
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 200);
+
+        final PostAdvancedHTTP processor = (PostAdvancedHTTP) testRunner.getProcessor();
+        for (int i = 0; i < 100 && processor.getDictionaryTrainer().getDictionary() == null; i++) {
+            Thread.sleep(100L);
+        }
+        final DictionaryTrainer.Dictionary dictionary = processor.getDictionaryTrainer().getDictionary();
+        Assert.assertNotNull(dictionary);
+
+        // the next batch is compressed with the dictionary, once the destination was sent it
+        testRunner.enqueue("{\"resourceType\": \"Patient\", \"id\": \"200\"}".getBytes());
+        testRunner.run(1, true, false);
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 201);
+
+        final String dictionaryId = String.valueOf(dictionary.getId());
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("PUT")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.DICTIONARY_HEADER, dictionaryId)));
+        mockServer.verify(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post")
+                .withHeader(new Header(PostAdvancedHTTP.DICTIONARY_HEADER, dictionaryId)));
+    }
+
+    @Test
+    public void testMaxResponseSize() throws IOException {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RESPONSE_SIZE, "10 B");
+
+        final byte[] content = "{data:{name: \"Esteban\", age: 32}}".getBytes();
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_FAILURE, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_FAILURE).get(0);
+        out.assertContentEquals(content);
+        out.assertAttributeEquals(PostAdvancedHTTP.RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+    }
+
+    @Test
+    public void testMaxResponseSizeAsyncEngine() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RESPONSE_SIZE, "10 B");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_FAILURE).get(0).assertAttributeEquals(PostAdvancedHTTP.RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+    }
+
+    @Test
+    public void testResponseSpilledToDisk() throws IOException {
+        final File spillDirectory = temporaryFolder.newFolder();
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_MEMORY_RESPONSE_SIZE, "10 B");
+        testRunner.setProperty(PostAdvancedHTTP.RESPONSE_SPILL_DIRECTORY, spillDirectory.getAbsolutePath());
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            out.assertContentEquals(predefinedPOSTResponse);
+            out.assertAttributeNotExists(PostAdvancedHTTP.RESPONSE_TRUNCATED_ATTRIBUTE);
+        }
+
+        // the responses were spilled, and their files deleted once read
+        final File[] processorDirectories = spillDirectory.listFiles();
+        Assert.assertEquals(1, processorDirectories.length);
+        Assert.assertEquals(0, processorDirectories[0].listFiles().length);
+    }
+
+    @Test
+    public void testTruncatedResponseAttribute() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_ATTRIBUTE);
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION_NAME, "response-content");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_IN_MEMORY_RESPONSE_SIZE, "10 B");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        final MockFlowFile out = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("response-content", predefinedPOSTResponse.substring(0, 10));
+        out.assertAttributeEquals(PostAdvancedHTTP.RESPONSE_TRUNCATED_ATTRIBUTE, "true");
+    }
+
+    @Test
+    public void testJsonArrayAggregation() {
+        configureServerResource(mockServer, "/do-batch", "POST", "[{\"age\": 0}, {\"age\": 1}, {\"age\": 2}]");
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-batch");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.AGGREGATION, "json-array");
+        testRunner.setProperty(PostAdvancedHTTP.CHUNKED_ENCODING, "false");
+        testRunner.setProperty("response.age", "$.age");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(("{\"name\": \"Esteban\", \"age\": " + i + "}").getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+        final List<MockFlowFile> outs = testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS);
+        for (int i = 0; i < 3; i++) {
+            outs.get(i).assertContentEquals("{\"age\":" + i + "}");
+            outs.get(i).assertAttributeEquals("response.age", String.valueOf(i));
+        }
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-batch"));
+        Assert.assertEquals(1, invocations.length);
+        final org.mockserver.model.HttpRequest post = invocations[0].getHttpRequest();
+        final String body = "[{\"name\": \"Esteban\", \"age\": 0},{\"name\": \"Esteban\", \"age\": 1},{\"name\": \"Esteban\", \"age\": 2}]";
+        Assert.assertEquals(body, ((StringBody) post.getBody()).getValue());
+        Assert.assertEquals("application/json", getHeader(post, "Content-Type"));
+        Assert.assertEquals(String.valueOf(body.length()), getHeader(post, "Content-Length"));
+    }
+
+    @Test
+    public void testNdjsonAggregationWithCorrelation() {
+        // the results come back in another order, and one of them is missing
+        configureServerResource(mockServer, "/do-batch", "POST", "{\"id\": \"c\", \"ok\": true}\n{\"id\": \"a\", \"ok\": false}\n");
+
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-batch");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_ATTRIBUTE);
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION_NAME, "response-content");
+        testRunner.setProperty(PostAdvancedHTTP.AGGREGATION, "ndjson");
+        testRunner.setProperty(PostAdvancedHTTP.CORRELATION_ATTRIBUTE, "record.id");
+        testRunner.assertNotValid();
+        testRunner.setProperty(PostAdvancedHTTP.CORRELATION_JSON_PATH, "$.id");
+
+        for (final String id : Arrays.asList("a", "b", "c")) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("record.id", id);
+            testRunner.enqueue(("{\"id\": \"" + id + "\"}").getBytes(), attributes);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 3);
+        final Map<String, MockFlowFile> outs = new HashMap<>();
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            outs.put(out.getAttribute("record.id"), out);
+        }
+        outs.get("a").assertAttributeEquals("response-content", "{\"id\": \"a\", \"ok\": false}");
+        outs.get("b").assertAttributeNotExists("response-content");
+        outs.get("c").assertAttributeEquals("response-content", "{\"id\": \"c\", \"ok\": true}");
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-batch"));
+        Assert.assertEquals(1, invocations.length);
+        Assert.assertEquals("{\"id\": \"a\"}\n{\"id\": \"b\"}\n{\"id\": \"c\"}\n", ((StringBody) invocations[0].getHttpRequest().getBody()).getValue());
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/unavailable"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(503));
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/unavailable");
+        testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+        testRunner.setProperty(PostAdvancedHTTP.ADAPTIVE_CONCURRENCY, "true");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "0");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_FAILURE, 5);
+
+        // each 503 takes 10% off the limit of 10 in-flight requests
+        Assert.assertEquals(Long.valueOf(5), testRunner.getCounterValue("Concurrency Limit for http://localhost:8585"));
+    }
+
+    @Test
+    public void testDestinationRequestRate() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_DESTINATION_REQUEST_RATE, "1");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        }
+        testRunner.run(3);
+
+        // the first POST uses up the second's worth of tokens; the others wait in the queue
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        Assert.assertEquals(2, testRunner.getQueueSize().getObjectCount());
+        Assert.assertEquals(Long.valueOf(2), testRunner.getCounterValue("Rate Limited Batches for http://localhost:8585"));
+    }
+
+    @Test
+    public void testDestinationRequestRateLeavesOtherDestinations() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://${host}:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_DESTINATION_REQUEST_RATE, "1");
+
+        for (final String host : new String[]{"localhost", "localhost", "127.0.0.1"}) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), Collections.singletonMap("host", host));
+        }
+        testRunner.run(3);
+
+        // the FlowFile for the throttled destination waits for its tokens without holding back the other destination
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 2);
+        Assert.assertEquals(1, testRunner.getQueueSize().getObjectCount());
+        Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Rate Limited Batches for http://localhost:8585"));
+    }
+
+    @Test
+    public void testRoundRobinEndpoints() {
+        Map<String, String> postResources = new HashMap<>();
+        postResources.put("/do-post", predefinedPOSTResponse);
+        ClientAndServer otherServer = this.startMockServer(8587, null, postResources, null);
+        try {
+            testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+            testRunner.setProperty(PostAdvancedHTTP.ENDPOINTS, "http://localhost:8585, http://localhost:8587/");
+
+            for (int i = 0; i < 4; i++) {
+                testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+            }
+            testRunner.run(4);
+
+            testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 4);
+            for (ClientAndServer server : new ClientAndServer[]{this.mockServer, otherServer}) {
+                Expectation[] invocations = server.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                        .withMethod("POST")
+                        .withPath("/do-post"));
+                Assert.assertEquals(2, invocations.length);
+            }
+        } finally {
+            otherServer.stop();
+        }
+    }
+
+    @Test
+    public void testUnhealthyEndpointEjected() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.ENDPOINTS, "http://localhost:8586,http://localhost:8585");
+        testRunner.setProperty(PostAdvancedHTTP.ENDPOINT_SELECTION, "least-outstanding-requests");
+        testRunner.setProperty(PostAdvancedHTTP.ENDPOINT_EJECTION_THRESHOLD, "1");
+        testRunner.setProperty(PostAdvancedHTTP.ENDPOINT_EJECTION_DURATION, "1 min");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "0");
+
+        for (int i = 0; i < 4; i++) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        }
+        testRunner.run(4);
+
+        // nothing listens on 8586; once a request to it has failed, everything goes to 8585
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_FAILURE, 1);
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_SUCCESS, 3);
+    }
+
+    @Test
+    public void testHedgedRequest() {
+        this.mockServer.when(org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/slow-post"))
+                .respond(HttpResponse.response()
+                        .withStatusCode(200)
+                        .withBody(predefinedPOSTResponse)
+                        .withDelay(new Delay(TimeUnit.SECONDS, 3)));
+        Map<String, String> postResources = new HashMap<>();
+        postResources.put("/slow-post", predefinedPOSTResponse);
+        ClientAndServer otherServer = this.startMockServer(8587, null, postResources, null);
+        try {
+            testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/slow-post");
+            testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+            testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_ASYNC);
+            testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "2");
+            testRunner.setProperty(PostAdvancedHTTP.ENDPOINTS, "http://localhost:8585,http://localhost:8587");
+            testRunner.setProperty(PostAdvancedHTTP.HEDGE_DELAY_PERCENTILE, "95");
+            testRunner.setProperty(PostAdvancedHTTP.MIN_HEDGE_DELAY, "200 millis");
+
+            for (int i = 0; i < 2; i++) {
+                testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+            }
+            testRunner.run(1, false, true);
+
+            // the POST to the slow endpoint is answered by its hedge long before its own response is due
+            testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 2);
+            for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+                out.assertContentEquals(predefinedPOSTResponse);
+            }
+            Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Hedged Requests"));
+            Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Hedges Won"));
+            Expectation[] invocations = otherServer.retrieveAsExpectations(org.mockserver.model.HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/slow-post"));
+            Assert.assertEquals(2, invocations.length);
+
+            // the slow endpoint is charged with the time it left the request unanswered, not with the hedge's
+            final PostAdvancedHTTP processor = (PostAdvancedHTTP) testRunner.getProcessor();
+            final double slowLatency = processor.getEndpointConfig("http://localhost:8585").getLatencyEwma();
+            final double fastLatency = processor.getEndpointConfig("http://localhost:8587").getLatencyEwma();
+            Assert.assertTrue("latency of the slow endpoint: " + slowLatency, slowLatency >= 200.0);
+            Assert.assertTrue("latency of the fast endpoint: " + fastLatency, fastLatency >= 0.0 && fastLatency < slowLatency);
+            testRunner.run(1, true, false);
+        } finally {
+            otherServer.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidEndpoints() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.ENDPOINTS, "http://localhost:8585,localhost:8587");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8586/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.CIRCUIT_BREAKER_THRESHOLD, "2");
+        testRunner.setProperty(PostAdvancedHTTP.CIRCUIT_BREAKER_OPEN_DURATION, "1 min");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "0");
+
+        for (int i = 0; i < 4; i++) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        }
+        testRunner.run(4);
+
+        // nothing listens on 8586; once two requests have failed, the rest are not even tried
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_FAILURE, 2);
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_CIRCUIT_OPEN, 2);
+    }
+
+    @Test
+    public void testRetry() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8586/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "1");
+        testRunner.setProperty(PostAdvancedHTTP.RETRY_BACKOFF, "1 min");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        // the FlowFile goes back to the queue and is left alone until its backoff has elapsed
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_FAILURE, 0);
+        Assert.assertEquals(1, testRunner.getQueueSize().getObjectCount());
+        testRunner.run();
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_FAILURE, 0);
+        Assert.assertEquals(1, testRunner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testRetryExhausted() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8586/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.MAX_RETRIES, "1");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(RetryPolicy.RETRY_COUNT_ATTRIBUTE, "1");
+        attributes.put(RetryPolicy.RETRY_AT_ATTRIBUTE, String.valueOf(System.currentTimeMillis() - 1));
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_FAILURE).get(0).assertAttributeEquals(RetryPolicy.RETRY_COUNT_ATTRIBUTE, "1");
+    }
+
+    @Test
+    public void testPollScanBounded() {
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+
+        final Map<String, String> waiting = new HashMap<>();
+        waiting.put(RetryPolicy.RETRY_COUNT_ATTRIBUTE, "1");
+        waiting.put(RetryPolicy.RETRY_AT_ATTRIBUTE, String.valueOf(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10)));
+        for (int i = 0; i < PostAdvancedHTTP.MAX_POLL_REJECTS; i++) {
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), waiting);
+        }
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.run();
+
+        // the poll gives up before it gets past the FlowFiles waiting for a retry
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_SUCCESS, 0);
+        Assert.assertEquals(PostAdvancedHTTP.MAX_POLL_REJECTS + 1, testRunner.getQueueSize().getObjectCount());
+    }
+
+    @Test
+    public void testHoldReleaseWindow() {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/hold"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(303)
+                        .withHeader(new Header(PostAdvancedHTTP.LOCATION_HEADER_NAME, "/hold/released"))
+                        .withHeader(new Header(PostAdvancedHTTP.LOCATION_URI_INTENT_NAME, PostAdvancedHTTP.LOCATION_URI_INTENT_VALUE)));
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("DELETE")
+                .withPath("/hold/released"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withBody(predefinedPOSTResponse));
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/hold");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.HOLD_RELEASE_WINDOW, "2");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+        }
+        testRunner.run();
+
+        // every batch is posted by the same task, and only routed once its hold is released
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 5);
+        for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+            out.assertContentEquals(predefinedPOSTResponse);
+        }
+    }
+
+    @Test
+    public void testHoldReleasedAtItsEndpoint() {
+        ClientAndServer otherServer = this.startMockServer(8587, null, null, null);
+        try {
+            otherServer.when(
+                    org.mockserver.model.HttpRequest.request()
+                    .withMethod("DELETE")
+                    .withPath("/hold/released"))
+                    .respond(
+                            HttpResponse.response()
+                            .withStatusCode(200));
+            testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/hold");
+            testRunner.setProperty(PostAdvancedHTTP.ENDPOINTS, "http://localhost:8585, http://localhost:8587");
+
+            // the POST went to 8587 on an earlier attempt, which is where its hold lives
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(RetryPolicy.HOLD_URI_ATTRIBUTE, "http://localhost:8587/hold/released");
+            attributes.put(RetryPolicy.TRANSACTION_ID_ATTRIBUTE, "tx-1");
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), attributes);
+            testRunner.run();
+
+            testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+            Assert.assertEquals("http://localhost:8587/hold", testRunner.getProvenanceEvents().get(0).getTransitUri());
+        } finally {
+            otherServer.stop();
+        }
+    }
+
+    @Test
+    public void testFailedNegotiationExpires() throws InterruptedException {
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"),
+                Times.once())
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(500));
+        mockServer.when(
+                org.mockserver.model.HttpRequest.request()
+                .withMethod("HEAD")
+                .withPath("/do-post"))
+                .respond(
+                        HttpResponse.response()
+                        .withStatusCode(200)
+                        .withHeader(new Header(PostAdvancedHTTP.ACCEPT, PostAdvancedHTTP.APPLICATION_FLOW_FILE_V3)));
+
+        // the URL is not static, so nothing is negotiated ahead of the first batch
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/${path}");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.SEND_AS_FLOWFILE, "true");
+        testRunner.setProperty(PostAdvancedHTTP.FAILED_NEGOTIATION_TTL, "50 millis");
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("path", "do-post");
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), attributes);
+        testRunner.run();
+
+        // the destination could not tell what it accepts, so the FlowFile stays queued
+        testRunner.assertTransferCount(PostAdvancedHTTP.REL_SUCCESS, 0);
+        Assert.assertEquals(1, testRunner.getQueueSize().getObjectCount());
+
+        Thread.sleep(100L);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS).get(0).assertContentEquals(predefinedPOSTResponse);
+    }
+
+    @Test
+    public void testConnectionPoolService() throws Exception {
+        final StandardHttpConnectionPoolService poolService = new StandardHttpConnectionPoolService();
+        testRunner.addControllerService("pool", poolService);
+        testRunner.enableControllerService(poolService);
+        testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:8585/do-post");
+        testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+        testRunner.setProperty(PostAdvancedHTTP.CONNECTION_POOL_SERVICE, "pool");
+
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 33}}".getBytes());
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 2);
+
+        // stopping the processor leaves the connection of the service open, ready for the next one
+        PoolStats stats = ((PoolingHttpClientConnectionManager) poolService.getConnectionManager()).getTotalStats();
+        Assert.assertEquals(0, stats.getLeased());
+        Assert.assertEquals(1, stats.getAvailable());
+        Assert.assertNotNull(poolService.getDestinationAccepts("http://localhost:8585").get());
+
+        testRunner.disableControllerService(poolService);
+    }
+
+    @Test
+    public void testHttp2Engine() throws Exception {
+        // mockserver only speaks HTTP/1.1, so stand up a plain h2c server instead
+        final List<ProtocolVersion> versions = new CopyOnWriteArrayList<>();
+        final HttpAsyncServer h2Server = this.startH2cServer(0, "/do-post", predefinedPOSTResponse, versions);
+        try {
+            final int port = ((InetSocketAddress) h2Server.getEndpoints().iterator().next().getAddress()).getPort();
+            testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:" + port + "/do-post");
+            testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+            testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_HTTP2);
+            testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "4");
+            testRunner.setProperty(PostAdvancedHTTP.MAX_CONCURRENT_STREAMS, "2");
+
+            for (int i = 0; i < 5; i++) {
+                testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+            }
+            testRunner.run();
+
+            testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 5);
+            for (final MockFlowFile out : testRunner.getFlowFilesForRelationship(PostAdvancedHTTP.REL_SUCCESS)) {
+                out.assertContentEquals(predefinedPOSTResponse);
+            }
+            Assert.assertEquals(5, versions.size());
+            for (final ProtocolVersion version : versions) {
+                Assert.assertEquals(HttpVersion.HTTP_2, version);
+            }
+        } finally {
+            h2Server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testHttp2StreamsExhausted() throws Exception {
+        final List<ProtocolVersion> versions = new CopyOnWriteArrayList<>();
+        final HttpAsyncServer h2Server = this.startH2cServer(0, "/do-post", predefinedPOSTResponse, versions, 1500L);
+        try {
+            final int port = ((InetSocketAddress) h2Server.getEndpoints().iterator().next().getAddress()).getPort();
+            testRunner.setProperty(PostAdvancedHTTP.URL, "http://localhost:" + port + "/do-post");
+            testRunner.setProperty(PostAdvancedHTTP.DESTINATION, PostAdvancedHTTP.DESTINATION_CONTENT);
+            testRunner.setProperty(PostAdvancedHTTP.HTTP_ENGINE, PostAdvancedHTTP.ENGINE_HTTP2);
+            testRunner.setProperty(PostAdvancedHTTP.MAX_IN_FLIGHT_REQUESTS, "2");
+            testRunner.setProperty(PostAdvancedHTTP.MAX_CONCURRENT_STREAMS, "1");
+            testRunner.setProperty(PostAdvancedHTTP.DATA_TIMEOUT, "500 millis");
+
+            for (int i = 0; i < 2; i++) {
+                testRunner.enqueue(("{data:{name: \"Esteban\", age: " + i + "}}").getBytes());
+            }
+            testRunner.run();
+
+            // the second batch gives up waiting for the only stream and goes back to the queue rather than failing
+            testRunner.assertAllFlowFilesTransferred(PostAdvancedHTTP.REL_SUCCESS, 2);
+            Assert.assertTrue(testRunner.getCounterValue("Stream Limited Batches for http://localhost:" + port) >= 1L);
+        } finally {
+            h2Server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    protected HttpAsyncServer startH2cServer(int port, String path, final String body, final List<ProtocolVersion> versions) throws Exception {
+        return this.startH2cServer(port, path, body, versions, 0L);
+    }
+
+    protected HttpAsyncServer startH2cServer(int port, String path, final String body, final List<ProtocolVersion> versions, final long delayMillis) throws Exception {
+        HttpAsyncServer server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .register(path, new Supplier<AsyncServerExchangeHandler>() {
+                    @Override
+                    public AsyncServerExchangeHandler get() {
+                        return new AbstractServerExchangeHandler<Message<HttpRequest, String>>() {
+                            @Override
+                            protected AsyncRequestConsumer<Message<HttpRequest, String>> supplyConsumer(HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+                                return new BasicRequestConsumer<>(entityDetails != null ? new StringAsyncEntityConsumer() : null);
+                            }
+
+                            @Override
+                            protected void handle(Message<HttpRequest, String> request, AsyncServerRequestHandler.ResponseTrigger responseTrigger, HttpContext context) throws HttpException, IOException {
+                                versions.add(context.getProtocolVersion());
+                                if (delayMillis > 0) {
+                                    try {
+                                        Thread.sleep(delayMillis);
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                }
+                                responseTrigger.submitResponse(new BasicResponseProducer(200, new StringAsyncEntityProducer(body, ContentType.APPLICATION_JSON)), context);
+                            }
+                        };
+                    }
+                })
+                .create();
+        server.start();
+        server.listen(new InetSocketAddress(port), URIScheme.HTTP).get();
+        return server;
+    }
+
     protected ClientAndServer startMockServer(int port, Map<String, String> getResources, Map<String, String> postResources, Map<String, String> putResources) {
         ClientAndServer mockServer = startClientAndServer(port);
 
@@ -136,9 +1304,18 @@ public class PostAdvancedHTTPTest {
         return mockServer;
     }
 
+    private String getHeader(org.mockserver.model.HttpRequest request, String name) {
+        for (Header header : request.getHeaders()) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValues().get(0);
+            }
+        }
+        return null;
+    }
+
     private void configureServerResource(ClientAndServer server, String url, String operation, String body) {
         server.when(
-                HttpRequest.request()
+                org.mockserver.model.HttpRequest.request()
                 .withMethod(operation.toUpperCase())
                 .withPath(url)
         )
@@ -15,13 +15,34 @@
  */
 package com.cognitivemedicine.nifi.http;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.ssl.SSLContextService;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import static org.hamcrest.Matchers.everyItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import org.junit.After;
 import static org.junit.Assert.assertThat;
 import org.junit.Before;
@@ -36,6 +57,10 @@ import org.mockserver.model.StringBody;
 
 public class PostHTTP2Test {
 
+    private static final String KEYSTORE = "src/test/resources/localhost-ks.jks";
+    private static final String TRUSTSTORE = "src/test/resources/localhost-ts.jks";
+    private static final String CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256";
+
     private TestRunner testRunner;
     private ClientAndServer mockServer;
 
@@ -83,6 +108,120 @@ public class PostHTTP2Test {
         assertThat(body.getValue(), is(flowFileContent));
     }
 
+    @Test
+    public void testVariableURLAsyncEngine() {
+        testRunner.setProperty(PostHTTP2.URL, "http://${test.host}:${test.port}/${test.context}");
+        testRunner.setProperty(PostHTTP2.HTTP_ENGINE, PostHTTP2.ENGINE_ASYNC);
+
+        Map<String,String> attributes = new HashMap<>();
+        attributes.put("test.host", "localhost");
+        attributes.put("test.port", "8585");
+        attributes.put("test.context", "do-post");
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), attributes);
+        testRunner.enqueue("{data:{name: \"Esteban\", age: 33}}".getBytes(), attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PostHTTP2.REL_SUCCESS, 2);
+
+        Expectation[] invocations = this.mockServer.retrieveAsExpectations(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/do-post"));
+        assertThat(Arrays.asList(invocations), hasSize(2));
+    }
+
+    @Test
+    public void testDestinationPoolEviction() {
+        final PostHTTP2 processor = new PostHTTP2();
+        testRunner = TestRunners.newTestRunner(processor);
+        testRunner.setProperty(PostHTTP2.URL, "http://${test.host}:8585/do-post");
+        testRunner.setProperty(PostHTTP2.MAX_DESTINATION_POOLS, "1");
+
+        // two names for the same server make for two destinations
+        for (String host : Arrays.asList("localhost", "127.0.0.1", "localhost")) {
+            Map<String,String> attributes = new HashMap<>();
+            attributes.put("test.host", host);
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes(), attributes);
+        }
+        testRunner.run(3);
+
+        testRunner.assertAllFlowFilesTransferred(PostHTTP2.REL_SUCCESS, 3);
+
+        ConfigCache configCache = processor.getConfigCache();
+        assertThat(configCache.getMisses(), is(3L));
+        assertThat(configCache.getEvictions(), is(2L));
+        assertThat(configCache.size(), is(0));
+    }
+
+    @Test
+    public void testHttpsReusesSSLContext() throws Exception {
+        final List<String> negotiated = new CopyOnWriteArrayList<>();
+        HttpsServer secureServer = this.startHttpsServer(8589, negotiated);
+        try {
+            final KeyStoreSSLContextService sslContextService = new KeyStoreSSLContextService();
+            testRunner.addControllerService("ssl-context", sslContextService);
+            testRunner.enableControllerService(sslContextService);
+            testRunner.setProperty(PostHTTP2.SSL_CONTEXT_SERVICE, "ssl-context");
+            testRunner.setProperty(PostHTTP2.TLS_PROTOCOLS, "TLSv1.2, SSLv2Hello-not-a-protocol");
+            testRunner.setProperty(PostHTTP2.TLS_CIPHER_SUITES, CIPHER_SUITE);
+            testRunner.setProperty(PostHTTP2.URL, "https://localhost:8589/do-post");
+
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 32}}".getBytes());
+            testRunner.enqueue("{data:{name: \"Esteban\", age: 33}}".getBytes());
+            testRunner.run(2);
+
+            // the server would take TLSv1.3 and its own choice of cipher suite; the
+            // unsupported protocol is skipped and only the configured ones reach the socket
+            testRunner.assertAllFlowFilesTransferred(PostHTTP2.REL_SUCCESS, 2);
+            assertThat(negotiated, hasSize(2));
+            assertThat(negotiated, everyItem(is("TLSv1.2 " + CIPHER_SUITE)));
+
+            // the context is built once, and remembers the session for the next handshake
+            SSLContext sslContext = TlsSettings.getSSLContext(sslContextService);
+            assertThat(TlsSettings.getSSLContext(sslContextService), sameInstance(sslContext));
+            assertThat(sslContext.getClientSessionContext().getIds().hasMoreElements(), is(true));
+        } finally {
+            secureServer.stop(0);
+        }
+    }
+
+    /**
+     * Starts an HTTPS server presenting the localhost certificate, which
+     * answers every request and records the protocol and cipher suite it was
+     * sent over.
+     */
+    private HttpsServer startHttpsServer(int port, final List<String> negotiated) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(KEYSTORE)) {
+            keystore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keystore, "changeit".toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                negotiated.add(((HttpsExchange) exchange).getSSLSession().getProtocol() + " "
+                        + ((HttpsExchange) exchange).getSSLSession().getCipherSuite());
+                try (InputStream in = exchange.getRequestBody()) {
+                    while (in.read() >= 0) {
+                    }
+                }
+                byte[] body = predefinedPOSTResponse.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
     protected ClientAndServer startMockServer(int port, Map<String, String> getResources, Map<String, String> postResources, Map<String, String> putResources) {
         ClientAndServer mockServer = startClientAndServer(port);
 
@@ -120,4 +259,59 @@ public class PostHTTP2Test {
                         .withBody(body));
     }
 
+    /**
+     * Trusts, and authenticates with, the localhost certificate.
+     */
+    private static class KeyStoreSSLContextService extends AbstractControllerService implements SSLContextService {
+
+        @Override
+        public SSLContext createSSLContext(ClientAuth clientAuth) throws ProcessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getTrustStoreFile() {
+            return TRUSTSTORE;
+        }
+
+        @Override
+        public String getTrustStoreType() {
+            return "JKS";
+        }
+
+        @Override
+        public String getTrustStorePassword() {
+            return "changeit";
+        }
+
+        @Override
+        public boolean isTrustStoreConfigured() {
+            return true;
+        }
+
+        @Override
+        public String getKeyStoreFile() {
+            return KEYSTORE;
+        }
+
+        @Override
+        public String getKeyStoreType() {
+            return "JKS";
+        }
+
+        @Override
+        public String getKeyStorePassword() {
+            return "changeit";
+        }
+
+        @Override
+        public boolean isKeyStoreConfigured() {
+            return true;
+        }
+
+        @Override
+        public String getSslAlgorithm() {
+            return "TLS";
+        }
+    }
 }